@@ -5,8 +5,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 
+import javax.annotation.PostConstruct;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceContext;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
@@ -26,6 +30,36 @@ public abstract class AbstractDao<T> {
 	@Value("${tinyspring.dao.showJPQL:false}")
 	Boolean showJpql = false;
 
+	/**
+	 * Default JDBC fetch size of the DAO's queries, 0 for the driver's default.
+	 */
+	@Value("${tinyspring.dao.fetchSize:0}")
+	Integer defaultFetchSize = 0;
+
+	/**
+	 * Default timeout of the DAO's queries in milliseconds, 0 for none.
+	 */
+	@Value("${tinyspring.dao.queryTimeout:0}")
+	Integer defaultTimeout = 0;
+
+	/**
+	 * If TRUE the DAO's queries choose their fetch size from the rows previously returned.
+	 */
+	@Value("${tinyspring.dao.adaptiveFetchSize:false}")
+	Boolean adaptiveFetchSize = false;
+
+	/**
+	 * If TRUE the DAO's paged queries reuse the totals cached by previous executions.
+	 */
+	@Value("${tinyspring.dao.cacheCount:false}")
+	Boolean cacheCount = false;
+
+	/**
+	 * Totals of the DAO's queries from this number on may be approximate, 0 to count exactly.
+	 */
+	@Value("${tinyspring.dao.approximateCountThreshold:0}")
+	Long approximateCountThreshold = 0L;
+
 	/**
 	 * Override this method to use your own entity manager.
 	 *
@@ -49,6 +83,56 @@ public abstract class AbstractDao<T> {
 	 */
 	abstract protected Class<T> getEntityClass();
 
+	/**
+	 * Override this method to declare the prepared queries of the DAO. They are registered as
+	 * JPA named queries and translated by the provider when the DAO is initialized.
+	 *
+	 * @return the prepared queries, usually kept in static fields of the DAO
+	 */
+	protected List<PreparedTinyQuery<T>> getPreparedQueries() {
+
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Register the prepared queries declared by <code>getPreparedQueries()</code> as named
+	 * queries so they are translated on startup instead of on the first request.
+	 * Invoked by the container after the entity manager is injected.
+	 *
+	 * @see #registerPreparedQueries()
+	 */
+	@PostConstruct
+	public void warmUpQueries() {
+
+		registerPreparedQueries();
+	}
+
+	/**
+	 * Register the prepared queries declared by <code>getPreparedQueries()</code> as named
+	 * queries of the entity manager factory.
+	 *
+	 * @return number of queries registered
+	 */
+	public int registerPreparedQueries() {
+
+		List<PreparedTinyQuery<T>> queries = getPreparedQueries();
+		if(queries == null || queries.isEmpty()) {
+			return 0;
+		}
+
+		EntityManagerFactory entityManagerFactory = getEntityManager().getEntityManagerFactory();
+		long begin = System.nanoTime();
+		for(PreparedTinyQuery<T> query : queries) {
+			long start = System.nanoTime();
+			query.register(entityManagerFactory);
+			log.info("Warmed query {} in {} ms", query.getName(),
+					(System.nanoTime() - start) / 1000000);
+		}
+		log.info("{} warmed {} queries in {} ms", getClass().getSimpleName(), queries.size(),
+				(System.nanoTime() - begin) / 1000000);
+		return queries.size();
+	}
+
 	public Optional<T> findById(Object id) {
 
 		try {
@@ -62,16 +146,20 @@ public abstract class AbstractDao<T> {
 	public void persist(T entity) {
 
 		getEntityManager().persist(entity);
+		TinyQuery.evictCaches(getEntityManager(), getEntityClass());
 	}
 
 	public T merge(T entity) {
 
-		return getEntityManager().merge(entity);
+		T merged = getEntityManager().merge(entity);
+		TinyQuery.evictCaches(getEntityManager(), getEntityClass());
+		return merged;
 	}
 
 	public void remove(T entity) {
 
 		getEntityManager().remove(entity);
+		TinyQuery.evictCaches(getEntityManager(), getEntityClass());
 	}
 
 	public void removeById(Object id) {
@@ -86,9 +174,30 @@ public abstract class AbstractDao<T> {
 		}
 	}
 
+	/**
+	 * Count all the entities. The count is approximate if it reaches
+	 * <code>tinyspring.dao.approximateCountThreshold</code>.
+	 *
+	 * @return the number of entities
+	 *
+	 * @see #estimateTotalCount()
+	 */
 	public long totalCount() {
 
-		return this.beginQuery().select().count();
+		return estimateTotalCount().getValue();
+	}
+
+	/**
+	 * Count all the entities, approximately if the count reaches
+	 * <code>tinyspring.dao.approximateCountThreshold</code>.
+	 *
+	 * @return the count and whether it is exact
+	 *
+	 * @see org.triiskelion.tinyspring.dao.TinyQuery#approximateCount(long)
+	 */
+	public CountEstimate estimateTotalCount() {
+
+		return this.beginQuery().select().estimateCount();
 	}
 
 	public List<T> findAll() {
@@ -96,6 +205,17 @@ public abstract class AbstractDao<T> {
 		return this.beginQuery().select().getResultList();
 	}
 
+	/**
+	 * Find the distinct values of a column.
+	 *
+	 * @param targetColumn
+	 * 		the column
+	 * @param predicates
+	 * 		the restriction of the entities
+	 *
+	 * @return the distinct values. A single column is selected, so they are returned as plain
+	 * values rather than as a RowSet, which saves nothing for rows of one value.
+	 */
 	@SuppressWarnings("unchecked")
 	public List getColumnValues(String targetColumn, TinyPredicate... predicates) {
 
@@ -108,9 +228,105 @@ public abstract class AbstractDao<T> {
 		return query.getUntypedResultList();
 	}
 
+	/**
+	 * Find the most frequent values of a column with their number of entities. The values are
+	 * counted, ordered and limited in the database, ties are ordered by value.
+	 *
+	 * @param targetColumn
+	 * 		the column
+	 * @param limit
+	 * 		maximum number of values to return
+	 * @param predicates
+	 * 		the restriction of the counted entities
+	 *
+	 * @return the number of entities of each value, most frequent first
+	 */
+	public LinkedHashMap<Object, Long> getColumnValues(String targetColumn, int limit,
+	                                                   TinyPredicate... predicates) {
+
+		TinyQuery<T> query = beginQuery().select();
+		if(predicates != null && predicates.length > 0) {
+			query.where(predicates);
+		}
+		return query.orderBy(Aggregate.COUNT.of("*"), OrderType.DESC)
+		            .orderBy(targetColumn, OrderType.ASC)
+		            .limit(0, limit)
+		            .aggregateBy(targetColumn, Aggregate.COUNT, "*");
+	}
+
 	public TinyQuery<T> beginQuery() {
 
-		return new TinyQuery<>(getEntityManager(), getEntityClass(), showJpql);
+		return configureQuery(new TinyQuery<>(getEntityManager(), getEntityClass(), showJpql));
+	}
+
+	/**
+	 * Apply the DAO's default execution hints to a query created by <code>beginQuery()
+	 * </code>. Override this method to set other defaults, e.g. read-only queries for a
+	 * reporting DAO. Hints set on the query afterwards take precedence.
+	 *
+	 * @param query
+	 * 		the new query
+	 *
+	 * @return the query
+	 */
+	protected TinyQuery<T> configureQuery(TinyQuery<T> query) {
+
+		if(defaultFetchSize != null && defaultFetchSize > 0) {
+			query.fetchSize(defaultFetchSize);
+		}
+		if(defaultTimeout != null && defaultTimeout > 0) {
+			query.timeout(defaultTimeout);
+		}
+		if(adaptiveFetchSize != null && adaptiveFetchSize) {
+			query.adaptiveFetchSize();
+		}
+		if(cacheCount != null && cacheCount) {
+			query.cacheCount();
+		}
+		if(approximateCountThreshold != null && approximateCountThreshold > 0) {
+			query.approximateCount(approximateCountThreshold);
+		}
+		return query;
+	}
+
+	/**
+	 * Begin an execution of a prepared query with the DAO's entity manager.
+	 *
+	 * @param query
+	 * 		the prepared query, usually kept in a static field of the DAO
+	 *
+	 * @return a new execution of the query
+	 */
+	public PreparedTinyQuery.Execution<T> beginQuery(PreparedTinyQuery<T> query) {
+
+		return configureQuery(query, query.with(getEntityManager()));
+	}
+
+	/**
+	 * Apply the DAO's default fetch size and timeout to an execution created by <code>
+	 * beginQuery(PreparedTinyQuery)</code>, unless the prepared query sets them itself. The
+	 * count cache, approximate counts and adaptive fetch size are features of TinyQuery and
+	 * do not apply to prepared queries.
+	 *
+	 * @param query
+	 * 		the prepared query
+	 * @param execution
+	 * 		the new execution of the query
+	 *
+	 * @return the execution
+	 */
+	protected PreparedTinyQuery.Execution<T> configureQuery(PreparedTinyQuery<T> query,
+	                                                         PreparedTinyQuery.Execution<T> execution) {
+
+		if(defaultFetchSize != null && defaultFetchSize > 0
+				&& !query.getHints().containsKey(TinyQuery.FETCH_SIZE)) {
+			execution.fetchSize(defaultFetchSize);
+		}
+		if(defaultTimeout != null && defaultTimeout > 0
+				&& !query.getHints().containsKey(TinyQuery.TIMEOUT)) {
+			execution.timeout(defaultTimeout);
+		}
+		return execution;
 	}
 
 
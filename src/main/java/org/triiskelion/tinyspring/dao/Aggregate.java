@@ -0,0 +1,82 @@
+package org.triiskelion.tinyspring.dao;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregate functions of JPQL.
+ * <p/>
+ * An aggregate is written in place of a column as <code>function(column)</code>, e.g.
+ * <code>sum(price)</code>, <code>count(distinct user.id)</code> or <code>count(*)</code> to
+ * count the rows. It can be selected, ordered by and used by the predicates of
+ * <code>having()</code>.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#aggregateBy(String, Aggregate, String)
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#having(TinyPredicate...)
+ */
+public enum Aggregate {
+	SUM("sum("), AVG("avg("), MIN("min("), MAX("max("), COUNT("count("),
+	COUNT_DISTINCT("count(distinct ");
+
+	private static final Pattern PATTERN =
+			Pattern.compile("(?i)(sum|avg|min|max|count)\\((distinct\\s+)?([\\w.]+|\\*)\\)");
+
+	private final String prefix;
+
+	Aggregate(String prefix) {
+
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @param column
+	 * 		the column, <code>*</code> to count the rows
+	 *
+	 * @return the aggregate of the column written in place of a column
+	 */
+	public String of(String column) {
+
+		return prefix + column + ")";
+	}
+
+	/**
+	 * @param column
+	 * 		a column or an aggregate
+	 *
+	 * @return the opening of the JPQL function and the aggregated column, null if the column
+	 * is not an aggregate.
+	 */
+	static String[] split(String column) {
+
+		Matcher matcher = PATTERN.matcher(column);
+		if(!matcher.matches()) {
+			return null;
+		}
+		String function = matcher.group(1).toUpperCase() + "(";
+		if(matcher.group(2) != null) {
+			function += "DISTINCT ";
+		}
+		if(matcher.group(3).equals("*") && !function.equals("COUNT(")) {
+			throw new IllegalArgumentException("only rows can be counted: " + column);
+		}
+		return new String[]{ function, matcher.group(3) };
+	}
+
+	/**
+	 * @param alias
+	 * 		alias of the entity
+	 * @param column
+	 * 		a column or an aggregate
+	 *
+	 * @return the column prefixed by the alias, inside the function if it is an aggregate
+	 */
+	static String render(String alias, String column) {
+
+		String[] aggregate = split(column);
+		if(aggregate == null) {
+			return alias + "." + column;
+		}
+		return aggregate[0] + alias + (aggregate[1].equals("*") ? "" : "." + aggregate[1]) + ")";
+	}
+}
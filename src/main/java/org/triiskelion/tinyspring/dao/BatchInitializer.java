@@ -0,0 +1,148 @@
+package org.triiskelion.tinyspring.dao;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Query;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Initializes the lazy associations of loaded entities in batches instead of one statement
+ * per entity when they are navigated, e.g. by the mappers of a Page.
+ * <p/>
+ * For each association the ids of the entities whose association is not loaded yet are
+ * collected, and the entities are selected again by these ids with a LEFT JOIN FETCH of the
+ * association, in chunks of IN lists. The associations are initialized on the managed
+ * instances, so later navigation is served by the persistence context. Detached entities are
+ * skipped.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#initialize(String...)
+ */
+public final class BatchInitializer {
+
+	private BatchInitializer() {
+
+	}
+
+	/**
+	 * Initialize the associations of the entities with IN lists of up to
+	 * <code>TinyQuery.DEFAULT_IN_LIST_LIMIT</code> ids.
+	 *
+	 * @see #initialize(EntityManager, Class, Collection, int, String...)
+	 */
+	public static <T> void initialize(EntityManager entityManager, Class<T> entityClass,
+	                                  Collection<? extends T> entities, String... associations) {
+
+		initialize(entityManager, entityClass, entities, TinyQuery.DEFAULT_IN_LIST_LIMIT,
+				associations);
+	}
+
+	/**
+	 * Initialize the associations of the entities.
+	 *
+	 * @param entityManager
+	 * 		the entity manager the entities are managed by
+	 * @param entityClass
+	 * 		class of the entities, which must have a single id attribute
+	 * @param entities
+	 * 		the loaded entities
+	 * @param batchSize
+	 * 		maximum number of ids per query, e.g. the parameter limit of the database
+	 * @param associations
+	 * 		names of the associations of the entity class, e.g. <code>author</code> or
+	 * 		<code>tags</code>. Each of them is fetched by its own queries so that collections
+	 * 		do not multiply each other's rows.
+	 */
+	public static <T> void initialize(EntityManager entityManager, Class<T> entityClass,
+	                                  Collection<? extends T> entities, int batchSize,
+	                                  String... associations) {
+
+		if(batchSize <= 0) {
+			throw new IllegalArgumentException("batch size must be positive");
+		}
+		if(entities.isEmpty() || associations.length == 0) {
+			return;
+		}
+		String idAttribute = getIdAttribute(entityManager, entityClass);
+		if(idAttribute == null) {
+			throw new IllegalArgumentException(entityClass.getName() + " has no single id");
+		}
+		PersistenceUnitUtil util = entityManager.getEntityManagerFactory()
+		                                        .getPersistenceUnitUtil();
+		for(String association : associations) {
+			if(association.indexOf('.') >= 0) {
+				throw new IllegalArgumentException("only direct associations can be "
+						+ "initialized: " + association);
+			}
+			Set<Object> ids = new LinkedHashSet<>();
+			for(T entity : entities) {
+				if(entity != null && !util.isLoaded(entity, association)
+						&& entityManager.contains(entity)) {
+					ids.add(util.getIdentifier(entity));
+				}
+			}
+			List<Object> pending = new ArrayList<>(ids);
+			for(int from = 0; from < pending.size(); from += batchSize) {
+				List<Object> chunk = pending.subList(from,
+						Math.min(from + batchSize, pending.size()));
+				createQuery(entityManager, entityClass, idAttribute, association, chunk,
+						batchSize).getResultList();
+			}
+		}
+	}
+
+	/**
+	 * @return name of the single id attribute of the entity, null if it has a composite id or
+	 * is not an entity.
+	 */
+	static <T> String getIdAttribute(EntityManager entityManager, Class<T> entityClass) {
+
+		try {
+			EntityType<T> type = entityManager.getMetamodel().entity(entityClass);
+			if(type.hasSingleIdAttribute()) {
+				for(SingularAttribute<? super T, ?> attribute : type.getSingularAttributes()) {
+					if(attribute.isId()) {
+						return attribute.getName();
+					}
+				}
+			}
+		} catch(IllegalArgumentException e) {
+			// not an entity
+		}
+		return null;
+	}
+
+	/**
+	 * Create the query selecting the entities of the ids with a fetch join of the association.
+	 * The ids are bound one parameter each, padded like the IN lists of TinyPredicate but to
+	 * no more than the batch size.
+	 */
+	private static Query createQuery(EntityManager entityManager, Class<?> entityClass,
+	                                 String idAttribute, String association, List<Object> ids,
+	                                 int batchSize) {
+
+		String alias = TinyQuery.TABLE_ALIAS;
+		int paddedSize = TinyPredicate.paddedSize(ids.size(), batchSize);
+		StringBuilder jpql = new StringBuilder();
+		jpql.append("SELECT DISTINCT ").append(alias)
+		    .append(" FROM ").append(entityClass.getCanonicalName()).append(' ').append(alias)
+		    .append(" LEFT JOIN FETCH ").append(alias).append('.').append(association)
+		    .append(" WHERE ").append(alias).append('.').append(idAttribute).append(" IN (");
+		for(int i = 0; i < paddedSize; i++) {
+			jpql.append(i == 0 ? ":_id" : ",:_id").append(i);
+		}
+		jpql.append(')');
+
+		Query query = entityManager.createQuery(jpql.toString());
+		for(int i = 0; i < paddedSize; i++) {
+			query.setParameter("_id" + i, ids.get(Math.min(i, ids.size() - 1)));
+		}
+		return query;
+	}
+}
@@ -0,0 +1,21 @@
+package org.triiskelion.tinyspring.dao;
+
+import java.util.List;
+
+/**
+ * Processes the result of a query chunk by chunk.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#forEachChunk(int, ChunkHandler)
+ */
+public interface ChunkHandler<T> {
+
+	/**
+	 * @param chunk
+	 * 		the rows of the chunk. The entity manager is cleared after the method returns,
+	 * 		its changes are flushed before if a transaction is active.
+	 *
+	 * @return FALSE to stop processing the result
+	 */
+	boolean handle(List<T> chunk);
+}
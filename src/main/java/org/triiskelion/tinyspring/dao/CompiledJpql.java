@@ -0,0 +1,20 @@
+package org.triiskelion.tinyspring.dao;
+
+/**
+ * The JPQL built from a TinyQuery along with the names of the parameters generated for its
+ * predicates, in the order the predicate values are visited. This object is immutable.
+ *
+ * @author Sebastian MA
+ */
+class CompiledJpql {
+
+	final String jpql;
+
+	final String[] parameterNames;
+
+	CompiledJpql(String jpql, String[] parameterNames) {
+
+		this.jpql = jpql;
+		this.parameterNames = parameterNames;
+	}
+}
@@ -0,0 +1,194 @@
+package org.triiskelion.tinyspring.dao;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the totals counted by <code>TinyQuery.getPagedResult()</code>, so that
+ * paging through the same listing counts it once per time to live instead of once per page.
+ * The value counts of <code>TinyQuery.facets()</code> are cached the same way.
+ * <p/>
+ * A total is keyed by the count JPQL and the bound values, paging excluded. It is evicted
+ * when its time to live expires or when an entity class the query reads from is modified
+ * through <code>TinyQuery.execute()</code> or <code>AbstractDao.persist/merge/remove</code>,
+ * and again at each use of the cache until the modifying transaction has ended, see
+ * <code>TinyQuery.evictCaches()</code>.
+ * Modifications made by other means, e.g. native SQL or another application, are only
+ * reflected after the time to live.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#cacheCount()
+ */
+public class CountCache {
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 1024;
+
+	public static final long DEFAULT_TIME_TO_LIVE = 60;
+
+	/**
+	 * Entity class of a query whose entities can not all be determined, e.g. with a fetch join
+	 * on a path. Such totals are evicted by the modification of any entity class.
+	 */
+	static final Class<?> ANY_ENTITY = Object.class;
+
+	private final Cache<List<Object>, Total> totals;
+
+	/**
+	 * Incremented on every eviction, so that a total counted before the modification of the
+	 * entities was committed is not cached.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	public CountCache() {
+
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param maximumSize
+	 * 		maximum number of totals to keep. Least recently used entries are evicted first.
+	 * @param timeToLive
+	 * 		time a total is kept after it has been counted
+	 * @param unit
+	 * 		unit of the time to live
+	 */
+	public CountCache(long maximumSize, long timeToLive, TimeUnit unit) {
+
+		if(timeToLive <= 0) {
+			throw new IllegalArgumentException("time to live must be positive");
+		}
+		totals = CacheBuilder.newBuilder()
+		                     .maximumSize(maximumSize)
+		                     .expireAfterWrite(timeToLive, unit)
+		                     .recordStats()
+		                     .build();
+	}
+
+	Long get(List<Object> key) {
+
+		return (Long) getValue(key);
+	}
+
+	/**
+	 * @return the cached counts, null if absent
+	 */
+	Object getValue(List<Object> key) {
+
+		TinyQuery.processPendingEvictions();
+		Total total = totals.getIfPresent(key);
+		return total == null ? null : total.value;
+	}
+
+	/**
+	 * @return the current generation, to be passed to <code>put()</code> with a total counted
+	 * afterwards.
+	 */
+	long generation() {
+
+		return generation.get();
+	}
+
+	/**
+	 * Cache a total unless entities have been modified since the given generation.
+	 */
+	void put(List<Object> key, long value, Set<Class<?>> entityClasses, long generation) {
+
+		putValue(key, value, entityClasses, generation);
+	}
+
+	/**
+	 * Cache counts unless entities have been modified since the given generation. The counts
+	 * must not be modified afterwards.
+	 */
+	void putValue(List<Object> key, Object value, Set<Class<?>> entityClasses,
+	              long generation) {
+
+		TinyQuery.processPendingEvictions();
+		if(this.generation.get() == generation) {
+			totals.put(key, new Total(value, Collections.unmodifiableSet(entityClasses)));
+			if(this.generation.get() != generation) {
+				totals.invalidate(key);
+			}
+		}
+	}
+
+	/**
+	 * Evict the totals of the queries reading from the entity class.
+	 *
+	 * @param entityClass
+	 * 		the modified entity class
+	 */
+	public void evict(Class<?> entityClass) {
+
+		generation.incrementAndGet();
+		Iterator<Map.Entry<List<Object>, Total>> iterator = totals.asMap().entrySet().iterator();
+		while(iterator.hasNext()) {
+			Set<Class<?>> entityClasses = iterator.next().getValue().entityClasses;
+			if(entityClasses.contains(ANY_ENTITY)) {
+				iterator.remove();
+				continue;
+			}
+			for(Class<?> cached : entityClasses) {
+				if(cached.isAssignableFrom(entityClass) || entityClass.isAssignableFrom(cached)) {
+					iterator.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of totals found in the cache
+	 */
+	public long getHitCount() {
+
+		return totals.stats().hitCount();
+	}
+
+	/**
+	 * @return number of totals which had to be counted
+	 */
+	public long getMissCount() {
+
+		return totals.stats().missCount();
+	}
+
+	/**
+	 * @return number of totals currently cached
+	 */
+	public long size() {
+
+		TinyQuery.processPendingEvictions();
+		return totals.size();
+	}
+
+	/**
+	 * Discard all cached totals. The counters are kept.
+	 */
+	public void clear() {
+
+		generation.incrementAndGet();
+		totals.invalidateAll();
+	}
+
+	private static class Total {
+
+		final Object value;
+
+		final Set<Class<?>> entityClasses;
+
+		Total(Object value, Set<Class<?>> entityClasses) {
+
+			this.value = value;
+			this.entityClasses = entityClasses;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.triiskelion.tinyspring.dao;
+
+/**
+ * The result of <code>TinyQuery.estimateCount()</code>: an exact count, a lower bound when
+ * the count was capped, or an estimate from the statistics of the database.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#approximateCount(long)
+ */
+public final class CountEstimate {
+
+	public enum Kind {
+		/**
+		 * the value is the exact count
+		 */
+		EXACT,
+		/**
+		 * counting stopped at the cap, there are at least <code>value</code> rows
+		 */
+		AT_LEAST,
+		/**
+		 * the value is estimated from the statistics of the database
+		 */
+		ESTIMATED
+	}
+
+	private final long value;
+
+	private final Kind kind;
+
+	public CountEstimate(long value, Kind kind) {
+
+		if(kind == null) {
+			throw new IllegalArgumentException("kind must not be null");
+		}
+		this.value = value;
+		this.kind = kind;
+	}
+
+	public long getValue() {
+
+		return value;
+	}
+
+	public Kind getKind() {
+
+		return kind;
+	}
+
+	public boolean isExact() {
+
+		return kind == Kind.EXACT;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+
+		if(!(obj instanceof CountEstimate)) {
+			return false;
+		}
+		CountEstimate other = (CountEstimate) obj;
+		return value == other.value && kind == other.kind;
+	}
+
+	@Override
+	public int hashCode() {
+
+		return 31 * (int) (value ^ (value >>> 32)) + kind.hashCode();
+	}
+
+	/**
+	 * @return the value followed by "+" if it is a lower bound, preceded by "~" if it is
+	 * estimated, e.g. "10000+"
+	 */
+	@Override
+	public String toString() {
+
+		switch(kind) {
+			case AT_LEAST:
+				return value + "+";
+			case ESTIMATED:
+				return "~" + value;
+			default:
+				return String.valueOf(value);
+		}
+	}
+}
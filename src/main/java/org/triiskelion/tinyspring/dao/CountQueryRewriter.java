@@ -0,0 +1,255 @@
+package org.triiskelion.tinyspring.dao;
+
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites a SELECT JPQL expression into the JPQL counting its result.
+ * <p/>
+ * The expression is scanned clause by clause at the top level only, so subqueries and string
+ * literals are left untouched:
+ * <ul>
+ * <li>ORDER BY is removed</li>
+ * <li>FETCH is removed from the joins</li>
+ * <li><code>SELECT DISTINCT x</code> is counted as <code>count(DISTINCT x)</code></li>
+ * <li>any other select list, including multiple columns and constructor expressions, is
+ * counted as <code>count(alias)</code> of the first entity in the FROM clause, so every row of
+ * the joins is counted even if a selected column is NULL.</li>
+ * </ul>
+ * Queries with GROUP BY, HAVING, aggregates in the select list or DISTINCT over multiple
+ * columns can not be counted by a single JPQL expression and are not rewritten. Their rows
+ * are counted one by one, selected as cheaply as possible by <code>toResultRowQuery()</code>.
+ *
+ * @author Sebastian MA
+ */
+final class CountQueryRewriter {
+
+	private static final Pattern AGGREGATE = Pattern.compile(
+			"\\b(count|sum|avg|min|max)\\s*\\(", Pattern.CASE_INSENSITIVE);
+
+	private CountQueryRewriter() {
+
+	}
+
+	/**
+	 * @param jpql
+	 * 		a SELECT JPQL expression
+	 *
+	 * @return the JPQL counting the result of the expression, null if the result can not be
+	 * counted by a single JPQL expression.
+	 */
+	static String rewrite(String jpql) {
+
+		int select = indexOfKeyword(jpql, "SELECT", 0);
+		int from = indexOfKeyword(jpql, "FROM", select < 0 ? 0 : select + 6);
+		if(from < 0) {
+			throw new IllegalArgumentException("count() failed. FROM not found in: " + jpql);
+		}
+		if(indexOfKeyword(jpql, "GROUP", from) >= 0
+				|| indexOfKeyword(jpql, "HAVING", from) >= 0) {
+			return null;
+		}
+		int end = indexOfKeyword(jpql, "ORDER", from);
+		String fromClause = removeFetch(
+				jpql.substring(from, end < 0 ? jpql.length() : end).trim());
+
+		String selectList = select < 0 ? "" : jpql.substring(select + 6, from).trim();
+		String countExpression;
+		if(startsWithKeyword(selectList, "DISTINCT")) {
+			String item = selectList.substring(8).trim();
+			if(indexOfTopLevel(item, ',') >= 0 || startsWithKeyword(item, "NEW")) {
+				return null;
+			}
+			countExpression = "count(DISTINCT " + item + ")";
+		} else {
+			if(AGGREGATE.matcher(selectList).find()) {
+				return null;
+			}
+			String alias = findRootAlias(fromClause);
+			countExpression = alias == null ? "count(*)" : "count(" + alias + ")";
+		}
+		return "SELECT " + countExpression + " " + fromClause;
+	}
+
+	/**
+	 * Rewrite a count query created by <code>rewrite()</code> into a query returning one row
+	 * per counted row, so that the rows can be counted up to a limit with
+	 * <code>setMaxResults()</code>. The counted entities are not selected unless DISTINCT.
+	 *
+	 * @param countJpql
+	 * 		a count query created by <code>rewrite()</code>
+	 *
+	 * @return the row query
+	 */
+	static String toRowQuery(String countJpql) {
+
+		int open = countJpql.indexOf('(');
+		int from = indexOfKeyword(countJpql, "FROM", 0);
+		int close = countJpql.lastIndexOf(')', from);
+		String expression = countJpql.substring(open + 1, close).trim();
+		String fromClause = countJpql.substring(from);
+		if(startsWithKeyword(expression, "DISTINCT")) {
+			return "SELECT " + expression + " " + fromClause;
+		}
+		return "SELECT 1 " + fromClause;
+	}
+
+	/**
+	 * Rewrite a SELECT JPQL expression which <code>rewrite()</code> can not count into a
+	 * query returning as many rows, to be counted one by one. ORDER BY and FETCH are removed
+	 * and the select list is replaced by a constant, so one value is read per row. The select
+	 * list is kept if it is DISTINCT or if it aggregates without GROUP BY, since it decides the
+	 * number of rows then. Clauses with parameters are kept too, their parameters being bound.
+	 *
+	 * @param jpql
+	 * 		a SELECT JPQL expression
+	 *
+	 * @return the query returning one cheap row per row of the expression
+	 */
+	static String toResultRowQuery(String jpql) {
+
+		int select = indexOfKeyword(jpql, "SELECT", 0);
+		int from = indexOfKeyword(jpql, "FROM", select < 0 ? 0 : select + 6);
+		if(from < 0) {
+			throw new IllegalArgumentException("count() failed. FROM not found in: " + jpql);
+		}
+		int order = indexOfKeyword(jpql, "ORDER", from);
+		if(order >= 0 && hasParameter(jpql.substring(order))) {
+			order = -1;
+		}
+		String fromClause = removeFetch(
+				jpql.substring(from, order < 0 ? jpql.length() : order).trim());
+
+		String selectList = select < 0 ? "" : jpql.substring(select + 6, from).trim();
+		boolean grouped = indexOfKeyword(fromClause, "GROUP", 0) >= 0;
+		if(startsWithKeyword(selectList, "DISTINCT") || hasParameter(selectList)
+				|| !grouped && AGGREGATE.matcher(selectList).find()) {
+			return "SELECT " + selectList + " " + fromClause;
+		}
+		return "SELECT 1 " + fromClause;
+	}
+
+	/**
+	 * @param countJpql
+	 * 		a count query created by <code>rewrite()</code>
+	 *
+	 * @return TRUE if the query counts all the rows of a single entity, i.e. it has no WHERE
+	 * clause, no join and no DISTINCT.
+	 */
+	static boolean isUnfiltered(String countJpql) {
+
+		int from = indexOfKeyword(countJpql, "FROM", 0);
+		String selectList = countJpql.substring(0, from);
+		String fromClause = countJpql.substring(from + 4).trim();
+		return selectList.toUpperCase().indexOf("DISTINCT") < 0
+				&& indexOfKeyword(fromClause, "WHERE", 0) < 0
+				&& indexOfKeyword(fromClause, "JOIN", 0) < 0
+				&& indexOfTopLevel(fromClause, ',') < 0;
+	}
+
+	/**
+	 * @return the identification variable of the first entity of a FROM clause, null if the
+	 * entity has none.
+	 */
+	static String findRootAlias(String fromClause) {
+
+		String[] tokens = fromClause.split("[\\s,]+", 5);
+		// FROM Entity [AS] alias
+		if(tokens.length < 3) {
+			return null;
+		}
+		String alias = tokens[2];
+		if(alias.equalsIgnoreCase("AS") && tokens.length > 3) {
+			alias = tokens[3];
+		}
+		for(String keyword : new String[]{ "WHERE", "JOIN", "LEFT", "INNER", "ORDER", "GROUP" }) {
+			if(alias.equalsIgnoreCase(keyword)) {
+				return null;
+			}
+		}
+		return alias;
+	}
+
+	private static String removeFetch(String fromClause) {
+
+		StringBuilder buffer = new StringBuilder(fromClause);
+		int fetch;
+		while((fetch = indexOfKeyword(buffer.toString(), "FETCH", 0)) >= 0) {
+			buffer.delete(fetch, fetch + 6);
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * @return TRUE if the text has a named or positional parameter outside of string literals
+	 */
+	private static boolean hasParameter(String text) {
+
+		boolean quoted = false;
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(c == '\'') {
+				quoted = !quoted;
+			} else if(!quoted && (c == ':' || c == '?')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean startsWithKeyword(String text, String keyword) {
+
+		return matchesKeyword(text, 0, keyword);
+	}
+
+	private static boolean matchesKeyword(String text, int offset, String keyword) {
+
+		int end = offset + keyword.length();
+		return text.regionMatches(true, offset, keyword, 0, keyword.length())
+				&& (text.length() == end || !Character.isJavaIdentifierPart(text.charAt(end)));
+	}
+
+	/**
+	 * Find a keyword outside of parentheses and string literals.
+	 *
+	 * @return index of the keyword, -1 if not found
+	 */
+	static int indexOfKeyword(String jpql, String keyword, int fromIndex) {
+
+		int depth = 0;
+		boolean quoted = false;
+		for(int i = fromIndex; i < jpql.length(); i++) {
+			char c = jpql.charAt(i);
+			if(c == '\'') {
+				quoted = !quoted;
+			} else if(quoted) {
+				continue;
+			} else if(c == '(') {
+				depth++;
+			} else if(c == ')') {
+				depth--;
+			} else if(depth == 0
+					&& (i == 0 || !Character.isJavaIdentifierPart(jpql.charAt(i - 1))
+					&& jpql.charAt(i - 1) != '.')
+					&& matchesKeyword(jpql, i, keyword)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOfTopLevel(String text, char target) {
+
+		int depth = 0;
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(c == '(') {
+				depth++;
+			} else if(c == ')') {
+				depth--;
+			} else if(c == target && depth == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,53 @@
+package org.triiskelion.tinyspring.dao;
+
+import java.util.Arrays;
+
+/**
+ * The values of a numeric column as <code>double</code>s.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#getDoubleColumn(String)
+ */
+public final class DoubleColumn extends NumericColumn {
+
+	private double[] values = new double[0];
+
+	DoubleColumn(String name) {
+
+		super(name);
+	}
+
+	/**
+	 * @param row
+	 * 		index of the row
+	 *
+	 * @return the value of the row, zero if it is NULL
+	 */
+	public double get(int row) {
+
+		checkIndex(row);
+		return values[row];
+	}
+
+	/**
+	 * @return a copy of the values, NULLs are zero
+	 */
+	public double[] toArray() {
+
+		return Arrays.copyOf(values, size);
+	}
+
+	@Override
+	void ensureCapacity(int capacity) {
+
+		if(capacity > values.length) {
+			values = Arrays.copyOf(values, grow(values.length, capacity));
+		}
+	}
+
+	@Override
+	void set(int row, Number value) {
+
+		values[row] = value.doubleValue();
+	}
+}
@@ -0,0 +1,154 @@
+package org.triiskelion.tinyspring.dao;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The columns a view model is selected from by a <code>SELECT NEW</code> constructor
+ * expression, derived from its fields.
+ * <p/>
+ * The fields annotated with <code>@Projected</code> are selected, or all the instance
+ * fields if none is annotated, in the order they are declared, superclass fields first. The
+ * view model must have a constructor whose parameters match the types of these fields.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.Projected
+ */
+final class DtoProjection {
+
+	private static final ConcurrentMap<Class<?>, DtoProjection> projections =
+			new ConcurrentHashMap<>();
+
+	final Class<?> dtoClass;
+
+	/**
+	 * the columns of the entity, one for each parameter of the constructor
+	 */
+	final String[] columns;
+
+	/**
+	 * the fields of the view model the columns are selected into
+	 */
+	final String[] fieldNames;
+
+	private DtoProjection(Class<?> dtoClass, String[] columns, String[] fieldNames) {
+
+		this.dtoClass = dtoClass;
+		this.columns = columns;
+		this.fieldNames = fieldNames;
+	}
+
+	/**
+	 * @param dtoClass
+	 * 		the view model
+	 *
+	 * @return the projection of the view model
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if the view model has no constructor matching its fields
+	 */
+	static DtoProjection of(Class<?> dtoClass) {
+
+		DtoProjection projection = projections.get(dtoClass);
+		if(projection == null) {
+			projection = create(dtoClass);
+			projections.putIfAbsent(dtoClass, projection);
+		}
+		return projection;
+	}
+
+	private static DtoProjection create(Class<?> dtoClass) {
+
+		List<Class<?>> hierarchy = new ArrayList<>();
+		for(Class<?> c = dtoClass; c != null && c != Object.class; c = c.getSuperclass()) {
+			hierarchy.add(c);
+		}
+		Collections.reverse(hierarchy);
+
+		List<Field> annotated = new ArrayList<>();
+		List<Field> all = new ArrayList<>();
+		for(Class<?> c : hierarchy) {
+			for(Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+						|| field.isSynthetic()) {
+					continue;
+				}
+				all.add(field);
+				if(field.isAnnotationPresent(Projected.class)) {
+					annotated.add(field);
+				}
+			}
+		}
+		List<Field> fields = annotated.isEmpty() ? all : annotated;
+		if(fields.isEmpty()) {
+			throw new IllegalArgumentException(dtoClass.getName() + " has no field to select");
+		}
+
+		Class<?>[] types = new Class<?>[fields.size()];
+		String[] columns = new String[fields.size()];
+		String[] fieldNames = new String[fields.size()];
+		for(int i = 0; i < types.length; i++) {
+			Field field = fields.get(i);
+			Projected projected = field.getAnnotation(Projected.class);
+			types[i] = field.getType();
+			fieldNames[i] = field.getName();
+			columns[i] = projected == null || projected.value().isEmpty()
+			             ? field.getName()
+			             : projected.value();
+		}
+		if(!hasConstructor(dtoClass, types)) {
+			throw new IllegalArgumentException(dtoClass.getName()
+					+ " has no constructor matching its fields " + Arrays.toString(fieldNames));
+		}
+		return new DtoProjection(dtoClass, columns, fieldNames);
+	}
+
+	private static boolean hasConstructor(Class<?> dtoClass, Class<?>[] types) {
+
+		for(Constructor<?> constructor : dtoClass.getDeclaredConstructors()) {
+			Class<?>[] parameters = constructor.getParameterTypes();
+			if(parameters.length != types.length) {
+				continue;
+			}
+			boolean matched = true;
+			for(int i = 0; i < types.length && matched; i++) {
+				matched = wrap(parameters[i]).isAssignableFrom(wrap(types[i]));
+			}
+			if(matched) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Class<?> wrap(Class<?> type) {
+
+		if(!type.isPrimitive()) {
+			return type;
+		} else if(type == int.class) {
+			return Integer.class;
+		} else if(type == long.class) {
+			return Long.class;
+		} else if(type == boolean.class) {
+			return Boolean.class;
+		} else if(type == double.class) {
+			return Double.class;
+		} else if(type == float.class) {
+			return Float.class;
+		} else if(type == short.class) {
+			return Short.class;
+		} else if(type == byte.class) {
+			return Byte.class;
+		} else {
+			return Character.class;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package org.triiskelion.tinyspring.dao;
+
+/**
+ * Formats of <code>TinyQuery.export()</code>. Both are encoded in UTF-8.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#export(ExportFormat, java.nio.channels.WritableByteChannel, boolean)
+ */
+public enum ExportFormat {
+	/**
+	 * one JSON object per line. Selected columns are written as properties named after the
+	 * columns, entities and view models as serialized by fastjson without their unloaded
+	 * associations.
+	 */
+	NDJSON,
+	/**
+	 * comma separated values quoted as specified by RFC 4180, with a header line of the
+	 * column names. Only selected columns and view models can be exported as CSV.
+	 */
+	CSV
+}
@@ -0,0 +1,59 @@
+package org.triiskelion.tinyspring.dao;
+
+/**
+ * The result of <code>TinyQuery.export()</code>.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#export(ExportFormat, java.nio.channels.WritableByteChannel, boolean)
+ */
+public final class ExportResult {
+
+	private final long rows;
+
+	private final long bytes;
+
+	private final long elapsedNanos;
+
+	public ExportResult(long rows, long bytes, long elapsedNanos) {
+
+		this.rows = rows;
+		this.bytes = bytes;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return number of rows exported
+	 */
+	public long getRows() {
+
+		return rows;
+	}
+
+	/**
+	 * @return number of bytes encoded, before compression
+	 */
+	public long getBytes() {
+
+		return bytes;
+	}
+
+	public long getElapsedMillis() {
+
+		return elapsedNanos / 1000000;
+	}
+
+	/**
+	 * @return throughput of the export in rows per second
+	 */
+	public double getRowsPerSecond() {
+
+		return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+
+		return String.format("%d rows, %d bytes in %d ms (%.0f rows/s)",
+				rows, bytes, getElapsedMillis(), getRowsPerSecond());
+	}
+}
@@ -0,0 +1,121 @@
+package org.triiskelion.tinyspring.dao;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chooses the JDBC fetch size of a query from the number of rows returned by the previous
+ * executions of queries with the same shape, so that a typical result is fetched in one round
+ * trip without allocating buffers for rows that never come.
+ * <p/>
+ * The number of rows is tracked as an exponential moving average per shape. The advised fetch
+ * size is the next power of two of the average, between the minimum and the maximum.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#adaptiveFetchSize()
+ */
+public class FetchSizeAdvisor {
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 1024;
+
+	public static final int DEFAULT_MIN_FETCH_SIZE = 16;
+
+	public static final int DEFAULT_MAX_FETCH_SIZE = 1000;
+
+	/**
+	 * Weight of the latest execution in the moving average
+	 */
+	private static final double WEIGHT = 0.25;
+
+	private final Cache<List<Object>, Double> observedRows;
+
+	private final int minFetchSize;
+
+	private final int maxFetchSize;
+
+	public FetchSizeAdvisor() {
+
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_MIN_FETCH_SIZE, DEFAULT_MAX_FETCH_SIZE);
+	}
+
+	/**
+	 * @param maximumSize
+	 * 		maximum number of query shapes to track. Least recently used entries are evicted
+	 * 		first.
+	 * @param minFetchSize
+	 * 		the smallest fetch size to advise
+	 * @param maxFetchSize
+	 * 		the largest fetch size to advise
+	 */
+	public FetchSizeAdvisor(long maximumSize, int minFetchSize, int maxFetchSize) {
+
+		if(minFetchSize <= 0 || maxFetchSize < minFetchSize) {
+			throw new IllegalArgumentException("invalid fetch size range");
+		}
+		this.observedRows = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+		this.minFetchSize = minFetchSize;
+		this.maxFetchSize = maxFetchSize;
+	}
+
+	/**
+	 * @param shape
+	 * 		shape of the query
+	 *
+	 * @return the advised fetch size, null if no query of the shape has been observed.
+	 */
+	public Integer advise(List<Object> shape) {
+
+		Double rows = observedRows.getIfPresent(shape);
+		if(rows == null) {
+			return null;
+		}
+		int size = (int) Math.ceil(rows);
+		int fetchSize = Integer.highestOneBit(Math.max(size, 1));
+		if(fetchSize < size) {
+			fetchSize <<= 1;
+		}
+		return Math.min(Math.max(fetchSize, minFetchSize), maxFetchSize);
+	}
+
+	/**
+	 * Record the number of rows returned by an execution.
+	 *
+	 * @param shape
+	 * 		shape of the query
+	 * @param rows
+	 * 		number of rows returned
+	 */
+	public void record(List<Object> shape, int rows) {
+
+		ConcurrentMap<List<Object>, Double> map = observedRows.asMap();
+		while(true) {
+			Double previous = map.get(shape);
+			if(previous == null) {
+				if(map.putIfAbsent(shape, (double) rows) == null) {
+					return;
+				}
+			} else if(map.replace(shape, previous, previous * (1 - WEIGHT) + rows * WEIGHT)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return number of query shapes currently tracked
+	 */
+	public long size() {
+
+		return observedRows.size();
+	}
+
+	/**
+	 * Forget all observations.
+	 */
+	public void clear() {
+
+		observedRows.invalidateAll();
+	}
+}
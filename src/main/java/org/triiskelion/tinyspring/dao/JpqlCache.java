@@ -0,0 +1,78 @@
+package org.triiskelion.tinyspring.dao;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.List;
+
+/**
+ * A bounded cache of the JPQL built by TinyQuery, keyed by the shape of the query.
+ * <p/>
+ * The shape of a query is everything that affects the built JPQL: the entity class, the verb,
+ * the selected columns, the joins, the structure of the predicates, the ORDER BY and GROUP BY
+ * clauses and whether it is a count query. The bound values are not part of the shape, so
+ * queries that only differ by their values share the same entry.
+ *
+ * @author Sebastian MA
+ */
+public class JpqlCache {
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 1024;
+
+	private final Cache<List<Object>, CompiledJpql> cache;
+
+	/**
+	 * @param maximumSize
+	 * 		maximum number of query shapes to keep. Least recently used entries are evicted
+	 * 		first.
+	 */
+	public JpqlCache(long maximumSize) {
+
+		cache = CacheBuilder.newBuilder()
+		                    .maximumSize(maximumSize)
+		                    .recordStats()
+		                    .build();
+	}
+
+	CompiledJpql get(List<Object> shape) {
+
+		return cache.getIfPresent(shape);
+	}
+
+	void put(List<Object> shape, CompiledJpql compiled) {
+
+		cache.put(shape, compiled);
+	}
+
+	/**
+	 * @return number of queries whose JPQL was found in the cache
+	 */
+	public long getHitCount() {
+
+		return cache.stats().hitCount();
+	}
+
+	/**
+	 * @return number of queries whose JPQL had to be built
+	 */
+	public long getMissCount() {
+
+		return cache.stats().missCount();
+	}
+
+	/**
+	 * @return number of query shapes currently cached
+	 */
+	public long size() {
+
+		return cache.size();
+	}
+
+	/**
+	 * Discard all cached query shapes. The counters are kept.
+	 */
+	public void clear() {
+
+		cache.invalidateAll();
+	}
+}
@@ -0,0 +1,201 @@
+package org.triiskelion.tinyspring.dao;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Encodes the sort key values of the last row of a keyset page into an opaque, URL-safe
+ * cursor and decodes it back.
+ * <p/>
+ * Each value is written with a type tag, so it is decoded to the same type. Only common key
+ * types are supported: strings, numbers, booleans, characters, dates, UUIDs and enums.
+ * Nothing but enum constants is instantiated by name, so a forged cursor can not create
+ * arbitrary objects.
+ *
+ * @author Sebastian MA
+ */
+final class KeysetCursor {
+
+	private static final int VERSION = 1;
+
+	private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+	private static final byte NULL = 0, STRING = 1, INTEGER = 2, LONG = 3, SHORT = 4, BYTE = 5,
+			DOUBLE = 6, FLOAT = 7, BOOLEAN = 8, CHARACTER = 9, BIG_DECIMAL = 10,
+			BIG_INTEGER = 11, DATE = 12, SQL_DATE = 13, TIMESTAMP = 14, UUID_TYPE = 15, ENUM = 16;
+
+	private KeysetCursor() {
+
+	}
+
+	/**
+	 * @param values
+	 * 		the sort key values
+	 *
+	 * @return the cursor
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if the type of a value is not supported
+	 */
+	static String encode(Object[] values) {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(VERSION);
+			out.writeByte(values.length);
+			for(Object value : values) {
+				write(out, value);
+			}
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return ENCODING.encode(bytes.toByteArray());
+	}
+
+	/**
+	 * @param cursor
+	 * 		a cursor created by <code>encode()</code>
+	 *
+	 * @return the sort key values
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if the cursor is malformed
+	 */
+	static Object[] decode(String cursor) {
+
+		try(DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(ENCODING.decode(cursor)))) {
+			if(in.readByte() != VERSION) {
+				throw new IllegalArgumentException("unsupported cursor version");
+			}
+			Object[] values = new Object[in.readByte()];
+			for(int i = 0; i < values.length; i++) {
+				values[i] = read(in);
+			}
+			if(in.read() != -1) {
+				throw new IllegalArgumentException("malformed cursor");
+			}
+			return values;
+		} catch(IOException | IllegalArgumentException | ClassNotFoundException e) {
+			throw new IllegalArgumentException("malformed cursor: " + cursor, e);
+		}
+	}
+
+	private static void write(DataOutputStream out, Object value) throws IOException {
+
+		if(value == null) {
+			out.writeByte(NULL);
+		} else if(value instanceof String) {
+			out.writeByte(STRING);
+			out.writeUTF((String) value);
+		} else if(value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		} else if(value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if(value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		} else if(value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if(value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if(value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if(value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if(value instanceof Character) {
+			out.writeByte(CHARACTER);
+			out.writeChar((Character) value);
+		} else if(value instanceof BigDecimal) {
+			out.writeByte(BIG_DECIMAL);
+			out.writeUTF(value.toString());
+		} else if(value instanceof BigInteger) {
+			out.writeByte(BIG_INTEGER);
+			out.writeUTF(value.toString());
+		} else if(value instanceof Timestamp) {
+			out.writeByte(TIMESTAMP);
+			out.writeLong(((Timestamp) value).getTime());
+			out.writeInt(((Timestamp) value).getNanos());
+		} else if(value instanceof java.sql.Date) {
+			out.writeByte(SQL_DATE);
+			out.writeLong(((Date) value).getTime());
+		} else if(value instanceof Date) {
+			out.writeByte(DATE);
+			out.writeLong(((Date) value).getTime());
+		} else if(value instanceof UUID) {
+			out.writeByte(UUID_TYPE);
+			out.writeLong(((UUID) value).getMostSignificantBits());
+			out.writeLong(((UUID) value).getLeastSignificantBits());
+		} else if(value instanceof Enum) {
+			out.writeByte(ENUM);
+			out.writeUTF(((Enum) value).getDeclaringClass().getName());
+			out.writeUTF(((Enum) value).name());
+		} else {
+			throw new IllegalArgumentException(
+					"sort key of type " + value.getClass().getName() + " is not supported");
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object read(DataInputStream in) throws IOException, ClassNotFoundException {
+
+		byte type = in.readByte();
+		switch(type) {
+			case NULL:
+				return null;
+			case STRING:
+				return in.readUTF();
+			case INTEGER:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case SHORT:
+				return in.readShort();
+			case BYTE:
+				return in.readByte();
+			case DOUBLE:
+				return in.readDouble();
+			case FLOAT:
+				return in.readFloat();
+			case BOOLEAN:
+				return in.readBoolean();
+			case CHARACTER:
+				return in.readChar();
+			case BIG_DECIMAL:
+				return new BigDecimal(in.readUTF());
+			case BIG_INTEGER:
+				return new BigInteger(in.readUTF());
+			case TIMESTAMP:
+				Timestamp timestamp = new Timestamp(in.readLong());
+				timestamp.setNanos(in.readInt());
+				return timestamp;
+			case SQL_DATE:
+				return new java.sql.Date(in.readLong());
+			case DATE:
+				return new Date(in.readLong());
+			case UUID_TYPE:
+				return new UUID(in.readLong(), in.readLong());
+			case ENUM:
+				Class<?> enumClass = Class.forName(in.readUTF(), false,
+						Thread.currentThread().getContextClassLoader());
+				if(!enumClass.isEnum()) {
+					throw new IllegalArgumentException("not an enum: " + enumClass.getName());
+				}
+				return Enum.valueOf((Class<? extends Enum>) enumClass, in.readUTF());
+			default:
+				throw new IllegalArgumentException("unknown type tag " + type);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.triiskelion.tinyspring.dao;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * The values of an integral column as <code>long</code>s. Floating point and fractional values
+ * are rejected instead of being truncated.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#getLongColumn(String)
+ */
+public final class LongColumn extends NumericColumn {
+
+	private long[] values = new long[0];
+
+	LongColumn(String name) {
+
+		super(name);
+	}
+
+	/**
+	 * @param row
+	 * 		index of the row
+	 *
+	 * @return the value of the row, zero if it is NULL
+	 */
+	public long get(int row) {
+
+		checkIndex(row);
+		return values[row];
+	}
+
+	/**
+	 * @return a copy of the values, NULLs are zero
+	 */
+	public long[] toArray() {
+
+		return Arrays.copyOf(values, size);
+	}
+
+	@Override
+	void ensureCapacity(int capacity) {
+
+		if(capacity > values.length) {
+			values = Arrays.copyOf(values, grow(values.length, capacity));
+		}
+	}
+
+	/**
+	 * Store a value. Integral values are stored as they are; a Float or Double, a BigDecimal
+	 * with a fraction and a value out of the range of <code>long</code> are rejected rather
+	 * than truncated.
+	 *
+	 * @throws IllegalStateException
+	 * 		if the value is not an integral <code>long</code>
+	 */
+	@Override
+	void set(int row, Number value) {
+
+		if(value instanceof Float || value instanceof Double) {
+			throw notIntegral(value);
+		}
+		if(value instanceof BigDecimal) {
+			try {
+				values[row] = ((BigDecimal) value).longValueExact();
+			} catch(ArithmeticException e) {
+				throw notIntegral(value);
+			}
+			return;
+		}
+		if(value instanceof BigInteger && ((BigInteger) value).bitLength() > 63) {
+			throw notIntegral(value);
+		}
+		values[row] = value.longValue();
+	}
+
+	private IllegalStateException notIntegral(Number value) {
+
+		return new IllegalStateException("column " + getName() + " is not integral: " + value
+				+ ", use getDoubleColumn() instead");
+	}
+}
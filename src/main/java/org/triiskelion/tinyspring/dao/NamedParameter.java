@@ -0,0 +1,48 @@
+package org.triiskelion.tinyspring.dao;
+
+/**
+ * A placeholder used as the value of a predicate when the value is supplied later, e.g. on
+ * each execution of a PreparedTinyQuery. The predicate is rendered with the parameter's name
+ * instead of a generated one.
+ * <p/>
+ * <code>equal("username", parameter("username"))</code> is rendered as
+ * <code>_this.username=:username</code>
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyPredicate#parameter(String)
+ */
+public final class NamedParameter {
+
+	private final String name;
+
+	public NamedParameter(String name) {
+
+		if(name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("parameter name must not be empty");
+		}
+		this.name = name;
+	}
+
+	public String getName() {
+
+		return name;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+
+		return obj instanceof NamedParameter && name.equals(((NamedParameter) obj).name);
+	}
+
+	@Override
+	public int hashCode() {
+
+		return name.hashCode();
+	}
+
+	@Override
+	public String toString() {
+
+		return ":" + name;
+	}
+}
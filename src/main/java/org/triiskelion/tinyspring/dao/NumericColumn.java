@@ -0,0 +1,118 @@
+package org.triiskelion.tinyspring.dao;
+
+import java.util.BitSet;
+
+/**
+ * The values of a numeric column held in a primitive array, with the NULLs recorded in a
+ * separate bitmap. The array grows as rows are appended, chunk by chunk.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.LongColumn
+ * @see org.triiskelion.tinyspring.dao.DoubleColumn
+ */
+public abstract class NumericColumn {
+
+	static final int INITIAL_CAPACITY = 256;
+
+	private final String name;
+
+	private final BitSet nulls = new BitSet();
+
+	int size;
+
+	NumericColumn(String name) {
+
+		this.name = name;
+	}
+
+	/**
+	 * @return name of the column
+	 */
+	public String getName() {
+
+		return name;
+	}
+
+	/**
+	 * @return number of rows
+	 */
+	public int size() {
+
+		return size;
+	}
+
+	/**
+	 * @param row
+	 * 		index of the row
+	 *
+	 * @return TRUE if the value of the row is NULL
+	 */
+	public boolean isNull(int row) {
+
+		checkIndex(row);
+		return nulls.get(row);
+	}
+
+	/**
+	 * @return TRUE if any value is NULL
+	 */
+	public boolean hasNulls() {
+
+		return !nulls.isEmpty();
+	}
+
+	/**
+	 * @return number of NULL values
+	 */
+	public int getNullCount() {
+
+		return nulls.cardinality();
+	}
+
+	/**
+	 * @return a copy of the bitmap whose set bits are the indexes of the NULL values
+	 */
+	public BitSet getNulls() {
+
+		return (BitSet) nulls.clone();
+	}
+
+	void checkIndex(int row) {
+
+		if(row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("row " + row + " of " + size);
+		}
+	}
+
+	/**
+	 * Make room for more rows, at least doubling the capacity when it grows.
+	 */
+	abstract void ensureCapacity(int capacity);
+
+	abstract void set(int row, Number value);
+
+	/**
+	 * Append a value, NULL values are stored as zero and recorded in the bitmap.
+	 *
+	 * @throws IllegalStateException
+	 * 		if the value is not a number
+	 */
+	void add(Object value) {
+
+		ensureCapacity(size + 1);
+		if(value == null) {
+			nulls.set(size);
+		} else if(value instanceof Number) {
+			set(size, (Number) value);
+		} else {
+			throw new IllegalStateException("column " + name + " is not numeric: "
+					+ value.getClass().getName());
+		}
+		size++;
+	}
+
+	static int grow(int length, int capacity) {
+
+		return Math.max(capacity, Math.max(length * 2, INITIAL_CAPACITY));
+	}
+}
@@ -0,0 +1,54 @@
+package org.triiskelion.tinyspring.dao;
+
+/**
+ * A reference to a column of the enclosing query, used as the value of a predicate of a
+ * subquery to correlate it with the enclosing query.
+ * <p/>
+ * <code>exists(new TinyQuery&lt;&gt;(Book.class).select().where(equal("user.id", outer("id"))))
+ * </code> is rendered as
+ * <code>EXISTS (SELECT _s0 FROM Book _s0 WHERE _s0.user.id=_this.id)</code>
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyPredicate#outer(String)
+ */
+public final class OuterColumn {
+
+	/**
+	 * Alias written for the enclosing query, replaced by the enclosing query's alias when the
+	 * subquery is embedded.
+	 */
+	static final String OUTER_ALIAS = "_outer";
+
+	private final String column;
+
+	public OuterColumn(String column) {
+
+		if(column == null || column.isEmpty()) {
+			throw new IllegalArgumentException("column must not be empty");
+		}
+		this.column = column;
+	}
+
+	public String getColumn() {
+
+		return column;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+
+		return obj instanceof OuterColumn && column.equals(((OuterColumn) obj).column);
+	}
+
+	@Override
+	public int hashCode() {
+
+		return column.hashCode();
+	}
+
+	@Override
+	public String toString() {
+
+		return OUTER_ALIAS + "." + column;
+	}
+}
@@ -0,0 +1,298 @@
+package org.triiskelion.tinyspring.dao;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small buffer of the next pages of paginated queries, loaded in the background after a
+ * page is served, so that browsing to the next page does not wait for the database.
+ * <p/>
+ * A page is keyed by the JPQL, the bound values and the rows of the page. It is taken out of
+ * the buffer by the first matching request and is discarded when its time to live expires,
+ * when the buffer is full or when an entity class the query reads from is modified through
+ * <code>TinyQuery.execute()</code> or <code>AbstractDao.persist/merge/remove</code>, and again
+ * at each use of the buffer until the modifying transaction has ended. Pages discarded before
+ * being requested are counted as wasted.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#prefetch(ExecutorService)
+ */
+public class PagePrefetcher {
+
+	private static final Logger log = LoggerFactory.getLogger(PagePrefetcher.class);
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 256;
+
+	public static final long DEFAULT_TIME_TO_LIVE = 10;
+
+	public static final long DEFAULT_MAXIMUM_WAIT = 500;
+
+	private final Cache<List<Object>, Prefetch> pages;
+
+	/**
+	 * Maximum time in nanoseconds to wait for a prefetch which is not done
+	 */
+	private final long maximumWait;
+
+	private final AtomicLong prefetchCount = new AtomicLong();
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong wastedCount = new AtomicLong();
+
+	public PagePrefetcher() {
+
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param maximumSize
+	 * 		maximum number of pages to keep. Least recently prefetched pages are discarded
+	 * 		first.
+	 * @param timeToLive
+	 * 		time a page is kept after its prefetch started
+	 * @param unit
+	 * 		unit of the time to live
+	 */
+	public PagePrefetcher(long maximumSize, long timeToLive, TimeUnit unit) {
+
+		this(maximumSize, timeToLive, unit, DEFAULT_MAXIMUM_WAIT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param maximumSize
+	 * 		maximum number of pages to keep. Least recently prefetched pages are discarded
+	 * 		first.
+	 * @param timeToLive
+	 * 		time a page is kept after its prefetch started
+	 * @param unit
+	 * 		unit of the time to live
+	 * @param maximumWait
+	 * 		maximum time to wait for a requested page whose prefetch is not done, 500
+	 * 		milliseconds by default
+	 * @param waitUnit
+	 * 		unit of the maximum wait
+	 */
+	public PagePrefetcher(long maximumSize, long timeToLive, TimeUnit unit, long maximumWait,
+	                      TimeUnit waitUnit) {
+
+		if(maximumWait < 0) {
+			throw new IllegalArgumentException("maximum wait must not be negative");
+		}
+		this.maximumWait = waitUnit.toNanos(maximumWait);
+		if(timeToLive <= 0) {
+			throw new IllegalArgumentException("time to live must be positive");
+		}
+		pages = CacheBuilder.newBuilder()
+		                    .maximumSize(maximumSize)
+		                    .expireAfterWrite(timeToLive, unit)
+		                    .removalListener(new RemovalListener<List<Object>, Prefetch>() {
+
+			                    @Override
+			                    public void onRemoval(
+					                    RemovalNotification<List<Object>, Prefetch> notification) {
+
+				                    // explicit removals are taken or counted by evict()
+				                    if(notification.wasEvicted()) {
+					                    discard(notification.getValue());
+				                    }
+			                    }
+		                    })
+		                    .build();
+	}
+
+	/**
+	 * Take a prefetched page out of the buffer, waiting for its query if it is still running
+	 * or queued, but no longer than the maximum wait. A prefetch not done by then is cancelled
+	 * and counted as a miss, so the caller executes the query itself instead of waiting for
+	 * a busy executor.
+	 *
+	 * @return the page, null if it has not been prefetched, was not done in time or its query
+	 * failed
+	 */
+	List take(List<Object> key) {
+
+		TinyQuery.processPendingEvictions();
+		Prefetch prefetch = pages.asMap().remove(key);
+		if(prefetch == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		try {
+			List result = (List) prefetch.future.get(maximumWait, TimeUnit.NANOSECONDS);
+			hitCount.incrementAndGet();
+			return result;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the prefetch", e);
+		} catch(ExecutionException e) {
+			log.debug("Prefetch failed. Cause:{}", e.getCause().getMessage());
+			missCount.incrementAndGet();
+			return null;
+		} catch(TimeoutException e) {
+			log.debug("Prefetch not done in time, executing the query.");
+			prefetch.future.cancel(true);
+			missCount.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Load a page in the background unless it is already buffered. Nothing is prefetched if
+	 * the executor rejects the task.
+	 *
+	 * @param key
+	 * 		key of the page
+	 * @param executor
+	 * 		the executor to load the page
+	 * @param task
+	 * 		the query of the page
+	 * @param entityClasses
+	 * 		the entity classes the query reads from
+	 */
+	void prefetch(List<Object> key, ExecutorService executor, Callable<Object> task,
+	              Set<Class<?>> entityClasses) {
+
+		TinyQuery.processPendingEvictions();
+		ConcurrentMap<List<Object>, Prefetch> map = pages.asMap();
+		if(map.containsKey(key)) {
+			return;
+		}
+		Future<Object> future;
+		try {
+			future = executor.submit(task);
+		} catch(RejectedExecutionException e) {
+			return;
+		}
+		if(map.putIfAbsent(key, new Prefetch(future,
+				Collections.unmodifiableSet(entityClasses))) != null) {
+			future.cancel(true);
+		} else {
+			prefetchCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Discard the pages of the queries reading from the entity class.
+	 *
+	 * @param entityClass
+	 * 		the modified entity class
+	 */
+	public void evict(Class<?> entityClass) {
+
+		Iterator<Map.Entry<List<Object>, Prefetch>> iterator =
+				pages.asMap().entrySet().iterator();
+		while(iterator.hasNext()) {
+			Prefetch prefetch = iterator.next().getValue();
+			for(Class<?> cached : prefetch.entityClasses) {
+				if(cached == CountCache.ANY_ENTITY || cached.isAssignableFrom(entityClass)
+						|| entityClass.isAssignableFrom(cached)) {
+					iterator.remove();
+					discard(prefetch);
+					break;
+				}
+			}
+		}
+	}
+
+	private void discard(Prefetch prefetch) {
+
+		wastedCount.incrementAndGet();
+		prefetch.future.cancel(true);
+	}
+
+	/**
+	 * @return number of pages prefetched
+	 */
+	public long getPrefetchCount() {
+
+		return prefetchCount.get();
+	}
+
+	/**
+	 * @return number of requests answered by a prefetched page
+	 */
+	public long getHitCount() {
+
+		return hitCount.get();
+	}
+
+	/**
+	 * @return number of requests whose page had not been prefetched
+	 */
+	public long getMissCount() {
+
+		return missCount.get();
+	}
+
+	/**
+	 * @return number of prefetched pages discarded without being requested
+	 */
+	public long getWastedCount() {
+
+		TinyQuery.processPendingEvictions();
+		pages.cleanUp();
+		return wastedCount.get();
+	}
+
+	/**
+	 * @return hits per request, 0 if nothing has been requested
+	 */
+	public double getHitRate() {
+
+		long hits = hitCount.get();
+		long requests = hits + missCount.get();
+		return requests == 0 ? 0 : (double) hits / requests;
+	}
+
+	/**
+	 * @return number of pages currently buffered
+	 */
+	public long size() {
+
+		TinyQuery.processPendingEvictions();
+		return pages.size();
+	}
+
+	/**
+	 * Discard all buffered pages. The counters are kept.
+	 */
+	public void clear() {
+
+		pages.invalidateAll();
+	}
+
+	private static class Prefetch {
+
+		final Future<Object> future;
+
+		final Set<Class<?>> entityClasses;
+
+		Prefetch(Future<Object> future, Set<Class<?>> entityClasses) {
+
+			this.future = future;
+			this.entityClasses = entityClasses;
+		}
+	}
+}
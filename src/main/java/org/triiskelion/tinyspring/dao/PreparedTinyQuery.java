@@ -0,0 +1,596 @@
+package org.triiskelion.tinyspring.dao;
+
+import com.google.common.base.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.triiskelion.tinyspring.viewmodel.Page;
+import org.triiskelion.tinyspring.viewmodel.Slice;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.Query;
+import java.util.*;
+
+/**
+ * An immutable query compiled from a TinyQuery by <code>TinyQuery.prepare()</code>.
+ * The JPQL is built only once, so a prepared query can be kept in a static field and shared
+ * across threads. Each execution only supplies the entity manager, the values of the
+ * parameters declared with <code>TinyPredicate.parameter(name)</code> and the pagination:
+ * <p/>
+ * <pre>
+ * static final PreparedTinyQuery&lt;User&gt; FIND_BY_NAME
+ *         = new TinyQuery&lt;&gt;(User.class).select()
+ *                                     .where(equal("name", parameter("name")))
+ *                                     .prepare();
+ *
+ * Optional&lt;User&gt; user = FIND_BY_NAME.with(entityManager)
+ *                                   .param("name", "bob")
+ *                                   .getFirstResult();
+ * </pre>
+ * A prepared query can also be registered as a JPA named query with <code>register()</code>
+ * so the provider translates it once ahead of the first execution.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#prepare()
+ */
+public final class PreparedTinyQuery<T> {
+
+	private static final Logger log = LoggerFactory.getLogger(PreparedTinyQuery.class);
+
+	private final String name;
+
+	private final Class<T> entityClass;
+
+	private final int verb;
+
+	/**
+	 * the JPQL expression
+	 */
+	private final String jpql;
+
+	/**
+	 * the JPQL expression counting the result, null if the query is not a SELECT query or
+	 * its result can not be counted by a count query.
+	 */
+	private final String countJpql;
+
+	/**
+	 * the JPQL expression returning one cheap row per row of the result, counted in place of
+	 * the count query when the result can not be counted by one, null otherwise.
+	 */
+	private final String resultRowJpql;
+
+	/**
+	 * the JPQL expression of <code>hasResult()</code> selecting a constant, null if the query
+	 * is not a SELECT query.
+	 */
+	private final String probeJpql;
+
+	/**
+	 * Parameters whose values were given when the query was built.
+	 */
+	private final Map<String, Object> fixedParameters;
+
+	private final Map<Integer, Object> positionalParameters;
+
+	/**
+	 * Names of the parameters declared with <code>TinyPredicate.parameter(name)</code>.
+	 * They must be supplied on each execution.
+	 */
+	private final Set<String> parameterNames;
+
+	/**
+	 * Hint name and the EntityGraph or its name applied to the queries returning entities,
+	 * null if none.
+	 */
+	private final String graphHint;
+
+	private final Object graph;
+
+	/**
+	 * Hints and flush mode set on the query when it was built, applied to every execution.
+	 */
+	private final Map<String, Object> hints;
+
+	private final FlushModeType flushMode;
+
+	/**
+	 * Entity manager factories the query is registered to as a named query, weakly referenced
+	 * as the query is usually kept in a static field.
+	 */
+	private final Set<EntityManagerFactory> registeredFactories = Collections.synchronizedSet(
+			Collections.newSetFromMap(new WeakHashMap<EntityManagerFactory, Boolean>()));
+
+	PreparedTinyQuery(TinyQuery<T> query, String name) {
+
+		this.entityClass = query.entityClass;
+		this.verb = query.verb;
+		this.jpql = query.compile(false).jpql;
+		this.countJpql = verb == TinyQuery.Verb.SELECT ? query.compile(true).jpql : null;
+		this.resultRowJpql = verb == TinyQuery.Verb.SELECT && countJpql == null
+		                     ? query.compileResultRows().jpql : null;
+		this.probeJpql = verb == TinyQuery.Verb.SELECT ? query.compileProbe().jpql : null;
+
+		Map<String, Object> parameters = new HashMap<>(query.namedParameters);
+		parameters.putAll(query.updateValues);
+		this.fixedParameters = Collections.unmodifiableMap(parameters);
+		this.positionalParameters = Collections.unmodifiableMap(
+				new HashMap<>(query.positionalParameters));
+
+		Set<String> names = new HashSet<>();
+		query.collectNamedParameters(names);
+		this.parameterNames = Collections.unmodifiableSet(names);
+		this.name = name != null ? name : "TinyQuery[" + jpql + "]";
+		this.graphHint = query.graphHint;
+		this.graph = query.graph;
+		this.hints = Collections.unmodifiableMap(new LinkedHashMap<>(query.hints));
+		this.flushMode = query.flushMode;
+
+		if(query.showJpql) {
+			log.info("Query prepared: " + jpql);
+		}
+	}
+
+	/**
+	 * Begin an execution of the query.
+	 *
+	 * @param entityManager
+	 * 		JPA entity manager to execute the query with
+	 *
+	 * @return a new execution, which is not thread-safe.
+	 */
+	public Execution<T> with(EntityManager entityManager) {
+
+		return new Execution<>(this, entityManager);
+	}
+
+	/**
+	 * Register the query, its count query and the row count and probe queries of a select as
+	 * named queries of the entity manager factory. The provider parses and translates them once
+	 * here instead of on the first execution, after which executions use
+	 * <code>createNamedQuery()</code>.
+	 *
+	 * @param entityManagerFactory
+	 * 		the factory to register to
+	 */
+	public void register(EntityManagerFactory entityManagerFactory) {
+
+		if(registeredFactories.contains(entityManagerFactory)) {
+			return;
+		}
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			entityManagerFactory.addNamedQuery(name, entityManager.createQuery(jpql));
+			if(countJpql != null) {
+				entityManagerFactory.addNamedQuery(getCountName(),
+						entityManager.createQuery(countJpql));
+			}
+			if(resultRowJpql != null) {
+				entityManagerFactory.addNamedQuery(getResultRowName(),
+						entityManager.createQuery(resultRowJpql));
+			}
+			if(probeJpql != null) {
+				entityManagerFactory.addNamedQuery(getProbeName(),
+						entityManager.createQuery(probeJpql));
+			}
+		} finally {
+			entityManager.close();
+		}
+		registeredFactories.add(entityManagerFactory);
+	}
+
+	/**
+	 * @param entityManagerFactory
+	 * 		the factory to check
+	 *
+	 * @return TRUE if the query is registered as a named query of the factory
+	 */
+	public boolean isRegistered(EntityManagerFactory entityManagerFactory) {
+
+		return registeredFactories.contains(entityManagerFactory);
+	}
+
+	/**
+	 * @return name of the query when registered as a named query
+	 */
+	public String getName() {
+
+		return name;
+	}
+
+	private String getCountName() {
+
+		return name + "#count";
+	}
+
+	private String getResultRowName() {
+
+		return name + "#rows";
+	}
+
+	private String getProbeName() {
+
+		return name + "#probe";
+	}
+
+	public Class<T> getEntityClass() {
+
+		return entityClass;
+	}
+
+	/**
+	 * @return the JPQL expression
+	 */
+	public String getJpql() {
+
+		return jpql;
+	}
+
+	/**
+	 * @return the JPQL expression counting the result, null if the query is not a SELECT query
+	 * or its result can not be counted by a count query.
+	 */
+	public String getCountJpql() {
+
+		return countJpql;
+	}
+
+	/**
+	 * @return names of the parameters which must be supplied on each execution
+	 */
+	public Set<String> getParameterNames() {
+
+		return parameterNames;
+	}
+
+	/**
+	 * @return the hints set on the query when it was built
+	 */
+	public Map<String, Object> getHints() {
+
+		return hints;
+	}
+
+	/**
+	 * @return the flush mode set on the query when it was built, null if none
+	 */
+	public FlushModeType getFlushMode() {
+
+		return flushMode;
+	}
+
+	public String toString() {
+
+		return jpql;
+	}
+
+	/**
+	 * A single execution of a PreparedTinyQuery holding the values of the parameters and the
+	 * pagination.
+	 */
+	public static class Execution<T> {
+
+		private final PreparedTinyQuery<T> prepared;
+
+		private final EntityManager entityManager;
+
+		private final Map<String, Object> namedParameters = new HashMap<>();
+
+		private final Map<Integer, Object> positionalParameters = new HashMap<>();
+
+		private int startRow = -1;
+
+		private int maxRow = -1;
+
+		private Integer pageNumber;
+
+		private Integer numberPerPage;
+
+		private boolean paged = false;
+
+		private final Map<String, Object> hints;
+
+		private FlushModeType flushMode;
+
+		Execution(PreparedTinyQuery<T> prepared, EntityManager entityManager) {
+
+			this.prepared = prepared;
+			this.entityManager = entityManager;
+			this.hints = new LinkedHashMap<>(prepared.hints);
+			this.flushMode = prepared.flushMode;
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#fetchSize(int)
+		 */
+		public Execution<T> fetchSize(int fetchSize) {
+
+			if(fetchSize <= 0) {
+				throw new IllegalArgumentException("fetch size must be positive");
+			}
+			hints.put(TinyQuery.FETCH_SIZE, fetchSize);
+			return this;
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#timeout(int)
+		 */
+		public Execution<T> timeout(int milliseconds) {
+
+			if(milliseconds <= 0) {
+				throw new IllegalArgumentException("timeout must be positive");
+			}
+			hints.put(TinyQuery.TIMEOUT, milliseconds);
+			return this;
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#flushMode(javax.persistence.FlushModeType)
+		 */
+		public Execution<T> flushMode(FlushModeType flushMode) {
+
+			this.flushMode = flushMode;
+			return this;
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#hint(String, Object)
+		 */
+		public Execution<T> hint(String name, Object value) {
+
+			hints.put(name, value);
+			return this;
+		}
+
+		/**
+		 * Set the value of a named parameter.
+		 *
+		 * @param name
+		 * 		the name declared with <code>TinyPredicate.parameter(name)</code> or marked in
+		 * 		the JPQL expression.
+		 * @param value
+		 * 		the value of the parameter
+		 *
+		 * @return the same Execution instance
+		 */
+		public Execution<T> param(String name, Object value) {
+
+			namedParameters.put(name, value);
+			return this;
+		}
+
+		/**
+		 * Set the value of a positional parameter.
+		 *
+		 * @param position
+		 * 		the position marked in the JPQL expression.
+		 * @param value
+		 * 		the value of the parameter
+		 *
+		 * @return the same Execution instance
+		 */
+		public Execution<T> param(int position, Object value) {
+
+			positionalParameters.put(position, value);
+			return this;
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#page(Integer, Integer)
+		 */
+		public Execution<T> page(Integer page, Integer numberPerPage) {
+
+			if(page != null && numberPerPage != null) {
+				this.pageNumber = page;
+				this.numberPerPage = numberPerPage;
+				this.paged = true;
+
+				this.startRow = (page - 1) * numberPerPage;
+				this.maxRow = numberPerPage;
+			}
+			return this;
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#limit(Integer, Integer)
+		 */
+		public Execution<T> limit(Integer startRow, Integer maxRow) {
+
+			if(startRow != null && maxRow != null) {
+				this.startRow = startRow;
+				this.maxRow = maxRow;
+				this.paged = false;
+			}
+			return this;
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#execute()
+		 */
+		public int execute() {
+
+			require(TinyQuery.Verb.UPDATE | TinyQuery.Verb.DELETE,
+					"execute() requires an update or delete query");
+			int result = createQuery(prepared.name, prepared.jpql).executeUpdate();
+			TinyQuery.evictCaches(entityManager, prepared.entityClass);
+			return result;
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#count()
+		 */
+		public long count() {
+
+			require(TinyQuery.Verb.SELECT, "count() requires a select query");
+			if(prepared.countJpql == null) {
+				return createQuery(prepared.getResultRowName(), prepared.resultRowJpql)
+						.getResultList().size();
+			}
+			return (long) createQuery(prepared.getCountName(), prepared.countJpql)
+					.getSingleResult();
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#hasResult()
+		 */
+		public boolean hasResult() {
+
+			require(TinyQuery.Verb.SELECT, "hasResult() requires a select query");
+			Query query = createQuery(prepared.getProbeName(), prepared.probeJpql);
+			return !query.setMaxResults(1).getResultList().isEmpty();
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#hasNoResult()
+		 */
+		public boolean hasNoResult() {
+
+			return !hasResult();
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#getSingleResult()
+		 */
+		public Object getSingleResult() {
+
+			require(TinyQuery.Verb.SELECT, "getSingleResult() requires a select query");
+			Query query = createQuery(prepared.name, prepared.jpql);
+			applyGraph(query);
+			return query.getSingleResult();
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#getFirstResult()
+		 */
+		public Optional<T> getFirstResult() {
+
+			List<T> result = limit(0, 1).getResultList();
+			return result.size() > 0 ? Optional.of(result.get(0)) : Optional.<T>absent();
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#getResultList()
+		 */
+		@SuppressWarnings("unchecked")
+		public List<T> getResultList() {
+
+			return (List<T>) getUntypedResultList();
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#getResultList(Class)
+		 */
+		@SuppressWarnings("unchecked")
+		public <R> List<R> getResultList(Class<R> clazz) {
+
+			return (List<R>) getUntypedResultList();
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#getUntypedResultList()
+		 */
+		public List getUntypedResultList() {
+
+			require(TinyQuery.Verb.SELECT, "getResultList() requires a select query");
+			Query query = createQuery(prepared.name, prepared.jpql);
+			applyGraph(query);
+			if(startRow >= 0 && maxRow >= 0) {
+				query.setFirstResult(startRow).setMaxResults(maxRow);
+			}
+			return query.getResultList();
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#getPagedResult()
+		 */
+		public Page<T> getPagedResult() {
+
+			if(paged) {
+				long total = count();
+				List<T> result = getResultList();
+				return new Page<>(result, pageNumber, numberPerPage, total);
+			} else {
+				throw new IllegalStateException("Query is not paged. call page() first.");
+			}
+		}
+
+		/**
+		 * @see org.triiskelion.tinyspring.dao.TinyQuery#getSlice()
+		 */
+		public Slice<T> getSlice() {
+
+			if(startRow < 0 || maxRow < 0) {
+				throw new IllegalStateException("Query is not paged. call page() first.");
+			}
+			int size = maxRow;
+			List<T> result;
+			maxRow = size + 1;
+			try {
+				result = getResultList();
+			} finally {
+				maxRow = size;
+			}
+			long page = paged ? pageNumber : (size > 0 ? startRow / size + 1 : 1);
+			if(result.size() <= size) {
+				return new Slice<>(result, page, size, false);
+			}
+			return new Slice<>(new ArrayList<>(result.subList(0, size)), page, size, true);
+		}
+
+		private void applyGraph(Query query) {
+
+			if(prepared.graph != null) {
+				Object graph = prepared.graph instanceof String
+				               ? entityManager.getEntityGraph((String) prepared.graph)
+				               : prepared.graph;
+				query.setHint(prepared.graphHint, graph);
+			}
+		}
+
+		private void require(int verb, String text) {
+
+			if((prepared.verb & verb) == 0) {
+				throw new IllegalStateException(text);
+			}
+		}
+
+		private Query createQuery(String name, String jpql) {
+
+			Query query;
+			if(prepared.isRegistered(entityManager.getEntityManagerFactory())) {
+				query = entityManager.createNamedQuery(name);
+			} else {
+				query = entityManager.createQuery(jpql);
+			}
+			return bindParameters(query);
+		}
+
+		private Query bindParameters(Query query) {
+
+			for(String name : prepared.parameterNames) {
+				if(!namedParameters.containsKey(name)) {
+					throw new IllegalArgumentException("Parameter '" + name + "' is not set");
+				}
+			}
+
+			TinyQuery.applyHints(query, hints);
+			if(flushMode != null) {
+				query.setFlushMode(flushMode);
+			}
+			for(Map.Entry<Integer, Object> entry : prepared.positionalParameters.entrySet()) {
+				query.setParameter(entry.getKey(), entry.getValue());
+			}
+			for(Map.Entry<String, Object> entry : prepared.fixedParameters.entrySet()) {
+				query.setParameter(entry.getKey(), entry.getValue());
+			}
+			for(Map.Entry<Integer, Object> entry : positionalParameters.entrySet()) {
+				query.setParameter(entry.getKey(), entry.getValue());
+			}
+			for(Map.Entry<String, Object> entry : namedParameters.entrySet()) {
+				query.setParameter(entry.getKey(), entry.getValue());
+			}
+			return query;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package org.triiskelion.tinyspring.dao;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotate the fields of a view model to select into it with
+ * <code>TinyQuery.select(ViewModel.class)</code>. The annotated fields, in the order they are
+ * declared, must match the parameters of a constructor of the view model.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#select(Class)
+ */
+@Documented
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Projected {
+
+	/**
+	 * The column of the entity the field is selected from, e.g. <code>user.name</code>.
+	 * Defaults to the name of the field.
+	 */
+	String value() default "";
+}
@@ -0,0 +1,25 @@
+package org.triiskelion.tinyspring.dao;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Estimates the number of rows of the table of an entity from the statistics of the
+ * database, which is much cheaper than counting a large table. Implementations are database
+ * specific, usually a native query on the catalog, e.g. <code>pg_class.reltuples</code> on
+ * PostgreSQL or <code>information_schema.TABLES.TABLE_ROWS</code> on MySQL.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#setRowCountEstimator(RowCountEstimator)
+ */
+public interface RowCountEstimator {
+
+	/**
+	 * @param entityManager
+	 * 		the entity manager of the query
+	 * @param entityClass
+	 * 		the entity whose rows are estimated
+	 *
+	 * @return the estimated number of rows, null if no statistics are available
+	 */
+	Long estimate(EntityManager entityManager, Class<?> entityClass);
+}
@@ -0,0 +1,255 @@
+package org.triiskelion.tinyspring.dao;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.PropertyFilter;
+import org.springframework.beans.PropertyAccessor;
+import org.springframework.beans.PropertyAccessorFactory;
+
+import javax.persistence.PersistenceUnitUtil;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the rows of a query as NDJSON or CSV into a reusable direct buffer, writing the
+ * buffer to a channel whenever it is full. Only the current row is held as characters, so
+ * the memory used does not depend on the number of rows.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#export(ExportFormat, java.nio.channels.WritableByteChannel, boolean)
+ */
+final class RowEncoder {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ExportFormat format;
+
+	/**
+	 * names of the columns, null for entities
+	 */
+	private final String[] columns;
+
+	/**
+	 * fields the columns are read from if the rows are view models, null otherwise
+	 */
+	private final String[] fields;
+
+	private final WritableByteChannel channel;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+	private final StringBuilder line = new StringBuilder(256);
+
+	private final PropertyFilter loadedOnly;
+
+	private long bytes;
+
+	/**
+	 * @param format
+	 * 		the format
+	 * @param columns
+	 * 		names of the columns, null to export entities
+	 * @param fields
+	 * 		fields of the view model the columns are read from, null if the rows are not view
+	 * 		models
+	 * @param util
+	 * 		used to skip the unloaded associations of entities
+	 * @param channel
+	 * 		the channel to write to
+	 */
+	RowEncoder(ExportFormat format, String[] columns, String[] fields,
+	           final PersistenceUnitUtil util, WritableByteChannel channel) {
+
+		if(format == ExportFormat.CSV && columns == null) {
+			throw new IllegalStateException("only selected columns can be exported as CSV");
+		}
+		this.format = format;
+		this.columns = columns;
+		this.fields = fields;
+		this.channel = channel;
+		this.loadedOnly = new PropertyFilter() {
+
+			@Override
+			public boolean apply(Object source, String name, Object value) {
+
+				return value == null || util.isLoaded(value);
+			}
+		};
+	}
+
+	/**
+	 * Write the header line of a CSV export.
+	 */
+	void writeHeader() throws IOException {
+
+		if(format != ExportFormat.CSV) {
+			return;
+		}
+		line.setLength(0);
+		for(int i = 0; i < columns.length; i++) {
+			if(i > 0) {
+				line.append(',');
+			}
+			appendCsv(columns[i]);
+		}
+		line.append("\r\n");
+		encode();
+	}
+
+	void write(Object row) throws IOException {
+
+		line.setLength(0);
+		if(columns == null) {
+			line.append(JSON.toJSONString(row, loadedOnly)).append('\n');
+		} else if(format == ExportFormat.NDJSON) {
+			line.append('{');
+			for(int i = 0; i < columns.length; i++) {
+				if(i > 0) {
+					line.append(',');
+				}
+				appendJsonString(columns[i]);
+				line.append(':');
+				appendJson(getValue(row, i));
+			}
+			line.append("}\n");
+		} else {
+			for(int i = 0; i < columns.length; i++) {
+				if(i > 0) {
+					line.append(',');
+				}
+				Object value = getValue(row, i);
+				if(value != null) {
+					appendCsv(value.toString());
+				}
+			}
+			line.append("\r\n");
+		}
+		encode();
+	}
+
+	/**
+	 * Write what is left in the buffer to the channel.
+	 */
+	void flush() throws IOException {
+
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * @return number of bytes encoded
+	 */
+	long getBytes() {
+
+		return bytes;
+	}
+
+	private Object getValue(Object row, int index) {
+
+		if(fields != null) {
+			PropertyAccessor accessor = PropertyAccessorFactory.forDirectFieldAccess(row);
+			return accessor.getPropertyValue(fields[index]);
+		}
+		return row instanceof Object[] ? ((Object[]) row)[index] : row;
+	}
+
+	private void appendJson(Object value) {
+
+		if(value == null) {
+			line.append("null");
+		} else if(value instanceof String || value instanceof Character) {
+			appendJsonString(value.toString());
+		} else if(value instanceof Number && !(value instanceof Double || value instanceof Float)
+				|| value instanceof Boolean) {
+			line.append(value);
+		} else {
+			line.append(JSON.toJSONString(value, loadedOnly));
+		}
+	}
+
+	private void appendJsonString(String value) {
+
+		line.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch(c) {
+				case '"':
+					line.append("\\\"");
+					break;
+				case '\\':
+					line.append("\\\\");
+					break;
+				case '\n':
+					line.append("\\n");
+					break;
+				case '\r':
+					line.append("\\r");
+					break;
+				case '\t':
+					line.append("\\t");
+					break;
+				default:
+					if(c < 0x20) {
+						line.append(String.format("\\u%04x", (int) c));
+					} else {
+						line.append(c);
+					}
+			}
+		}
+		line.append('"');
+	}
+
+	private void appendCsv(String value) {
+
+		boolean quoted = false;
+		for(int i = 0; i < value.length() && !quoted; i++) {
+			char c = value.charAt(i);
+			quoted = c == ',' || c == '"' || c == '\r' || c == '\n';
+		}
+		if(!quoted) {
+			line.append(value);
+			return;
+		}
+		line.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"') {
+				line.append('"');
+			}
+			line.append(c);
+		}
+		line.append('"');
+	}
+
+	/**
+	 * Encode the current line into the buffer, writing the buffer out whenever it is full.
+	 */
+	private void encode() throws IOException {
+
+		CharBuffer chars = CharBuffer.wrap(line);
+		int start = buffer.position();
+		encoder.reset();
+		while(true) {
+			CoderResult result = encoder.encode(chars, buffer, true);
+			if(result.isOverflow()) {
+				bytes += buffer.position() - start;
+				flush();
+				start = 0;
+			} else if(result.isUnderflow()) {
+				break;
+			} else {
+				result.throwException();
+			}
+		}
+		bytes += buffer.position() - start;
+	}
+}
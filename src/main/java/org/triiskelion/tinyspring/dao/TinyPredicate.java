@@ -2,10 +2,7 @@ package org.triiskelion.tinyspring.dao;
 
 import org.apache.commons.lang3.StringUtils;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 /**
  * Created with IntelliJ IDEA.
@@ -18,7 +15,7 @@ public class TinyPredicate {
 	/**
 	 * Operator of a simple predicate. Available only if the predicate is simple
 	 */
-	private final Operator operator;
+	protected final Operator operator;
 
 	protected PredicateType predicateType = PredicateType.SIMPLE;
 
@@ -26,6 +23,12 @@ public class TinyPredicate {
 
 	protected String column;
 
+	/**
+	 * Prefix of the parameter names generated for the predicate's values. Available only if
+	 * the predicate is simple
+	 */
+	protected String parameterPrefix;
+
 	/**
 	 * the parameter values of the predicate. Available only if the predicate is simple
 	 */
@@ -38,6 +41,31 @@ public class TinyPredicate {
 
 	protected boolean empty = false;
 
+	/**
+	 * TRUE if any of the values is a placeholder, i.e. a NamedParameter or an OuterColumn,
+	 * which is written into the JPQL instead of being bound. Available only if the predicate
+	 * is simple
+	 */
+	protected boolean hasPlaceholder = false;
+
+	/**
+	 * Structural signature used to order predicates canonically, computed lazily.
+	 */
+	private String signature;
+
+	/**
+	 * Orders predicates by their structural signature.
+	 */
+	private static final Comparator<TinyPredicate> SIGNATURE_ORDER
+			= new Comparator<TinyPredicate>() {
+
+		@Override
+		public int compare(TinyPredicate a, TinyPredicate b) {
+
+			return a.signature().compareTo(b.signature());
+		}
+	};
+
 
 	////////////////////////////////////////////////////////////////////////////////////////
 	// construction methods
@@ -97,10 +125,62 @@ public class TinyPredicate {
 		}
 
 		this.operator = operator;
-		this.column = String.format("%s.%s", alias, column);
-		this.values.addAll(values);
+		this.column = Aggregate.render(alias, column);
+		this.parameterPrefix = alias + "_" + column.replaceAll("\\W", "_") + "_";
+		if(values != null) {
+			this.values.addAll(values);
+			for(Object value : values) {
+				hasPlaceholder |= isPlaceholder(value);
+			}
+		}
+	}
+
+
+	/**
+	 * Creates a predicate on a subquery
+	 *
+	 * @param alias
+	 * @param column
+	 * 		null for EXISTS
+	 * @param operator
+	 * @param subquery
+	 */
+	protected TinyPredicate(String alias, String column, Operator operator,
+	                        TinyQuery<?> subquery) {
+
+		if(subquery == null) {
+			throw new IllegalArgumentException("subquery must not be null");
+		}
+		if(subquery.verb != TinyQuery.Verb.SELECT) {
+			throw new IllegalArgumentException("subquery must be a select query");
+		}
+		if(subquery.orderByClause.length() > 0) {
+			throw new IllegalArgumentException("subquery can not have an ORDER BY clause");
+		}
+		if(StringUtils.isBlank(alias)) {
+			alias = TinyQuery.TABLE_ALIAS;
+		}
+
+		this.operator = operator;
+		if(column != null) {
+			this.column = alias + "." + column;
+		}
+		this.values.add(subquery);
 	}
 
+	/**
+	 * Creates a simple predicate on the same column as the template predicate
+	 */
+	private TinyPredicate(TinyPredicate template, Operator operator, List values) {
+
+		isValid = validateParameters(operator, values);
+		empty = !isValid;
+
+		this.operator = operator;
+		this.column = template.column;
+		this.parameterPrefix = template.parameterPrefix;
+		this.values.addAll(values);
+	}
 
 	private static TinyPredicate createPredicate(PredicateType type) {
 
@@ -405,6 +485,124 @@ public class TinyPredicate {
 	}
 
 
+	/**
+	 * @param column
+	 * 		JPQL column name
+	 * @param subquery
+	 * 		a select query selecting a single column
+	 *
+	 * @return <code>column IN (subquery)</code>
+	 */
+	public static TinyPredicate in(String column, TinyQuery<?> subquery) {
+
+		return in(null, column, subquery);
+	}
+
+	/**
+	 * @param alias
+	 * 		JPQL table alias
+	 * @param column
+	 * 		JPQL column name
+	 * @param subquery
+	 * 		a select query selecting a single column
+	 *
+	 * @return <code>column IN (subquery)</code>
+	 */
+	public static TinyPredicate in(String alias, String column, TinyQuery<?> subquery) {
+
+		return new TinyPredicate(alias, column, Operator.inSubquery, subquery);
+	}
+
+	/**
+	 * @param column
+	 * 		JPQL column name
+	 * @param subquery
+	 * 		a select query selecting a single column
+	 *
+	 * @return <code>column NOT IN (subquery)</code>
+	 */
+	public static TinyPredicate notIn(String column, TinyQuery<?> subquery) {
+
+		return notIn(null, column, subquery);
+	}
+
+	/**
+	 * @param alias
+	 * 		JPQL table alias
+	 * @param column
+	 * 		JPQL column name
+	 * @param subquery
+	 * 		a select query selecting a single column
+	 *
+	 * @return <code>column NOT IN (subquery)</code>
+	 */
+	public static TinyPredicate notIn(String alias, String column, TinyQuery<?> subquery) {
+
+		return new TinyPredicate(alias, column, Operator.notInSubquery, subquery);
+	}
+
+	/**
+	 * The subquery is embedded into the JPQL of the enclosing query with its own alias, and
+	 * its parameters are merged into the enclosing query's. Use <code>outer(column)</code>
+	 * to correlate it with the enclosing query. JPQL does not order a subquery, so it must
+	 * not have an ORDER BY clause.
+	 *
+	 * @param subquery
+	 * 		a select query
+	 *
+	 * @return <code>EXISTS (subquery)</code>
+	 */
+	public static TinyPredicate exists(TinyQuery<?> subquery) {
+
+		return new TinyPredicate(null, null, Operator.exists, subquery);
+	}
+
+	/**
+	 * @param subquery
+	 * 		a select query
+	 *
+	 * @return <code>NOT EXISTS (subquery)</code>
+	 *
+	 * @see #exists(TinyQuery)
+	 */
+	public static TinyPredicate notExists(TinyQuery<?> subquery) {
+
+		return new TinyPredicate(null, null, Operator.notExists, subquery);
+	}
+
+	/**
+	 * Creates a reference to a column of the enclosing query to use as the value of a
+	 * predicate of a subquery, e.g. <code>equal("user.id", outer("id"))</code>.
+	 *
+	 * @param column
+	 * 		JPQL column name of the enclosing query's entity
+	 *
+	 * @return the reference
+	 *
+	 * @see #exists(TinyQuery)
+	 */
+	public static OuterColumn outer(String column) {
+
+		return new OuterColumn(column);
+	}
+
+	/**
+	 * Creates a placeholder to use as the value of a predicate when the value is supplied on
+	 * execution, e.g. <code>equal("username", parameter("username"))</code>.
+	 * As the value of an IN predicate it must be the only value and is bound to a collection.
+	 *
+	 * @param name
+	 * 		name of the parameter in the JPQL expression
+	 *
+	 * @return the placeholder
+	 *
+	 * @see org.triiskelion.tinyspring.dao.PreparedTinyQuery
+	 */
+	public static NamedParameter parameter(String name) {
+
+		return new NamedParameter(name);
+	}
+
 	/**
 	 * Concatenate the predicates with AND
 	 *
@@ -474,6 +672,159 @@ public class TinyPredicate {
 	}
 
 
+	/**
+	 * Returns the canonical form of the predicate, which is logically equivalent and is
+	 * rendered to the same JPQL as any other equivalent predicate written differently:
+	 * <ul>
+	 * <li>nested AND/AND and OR/OR are flattened</li>
+	 * <li>invalid predicates are dropped if ignored, an OR with an ignored operand places no
+	 * restriction at all</li>
+	 * <li>equal and in predicates on the same column inside an OR are folded into one in</li>
+	 * <li>double negation is removed</li>
+	 * <li>operands of AND and OR are ordered by their structure</li>
+	 * </ul>
+	 * The predicate itself is not modified.
+	 *
+	 * @param ignoreInvalid
+	 * 		TRUE to drop invalid predicates, otherwise they are kept
+	 *
+	 * @return the canonical predicate, or null if the predicate places no restriction.
+	 */
+	public TinyPredicate normalize(boolean ignoreInvalid) {
+
+		TinyPredicate result;
+		switch(predicateType) {
+			case SIMPLE:
+				return isValid || !ignoreInvalid ? this : null;
+			case NOT:
+				TinyPredicate operand = predicateList.get(0).normalize(ignoreInvalid);
+				if(operand == null) {
+					return null;
+				}
+				if(operand.predicateType == PredicateType.NOT) {
+					return operand.predicateList.get(0);
+				}
+				result = createPredicate(PredicateType.NOT);
+				result.predicateList.add(operand);
+				return result;
+			case AND:
+			case OR:
+				List<TinyPredicate> operands = new ArrayList<>(predicateList.size());
+				for(TinyPredicate p : predicateList) {
+					TinyPredicate normalized = p.normalize(ignoreInvalid);
+					if(normalized == null) {
+						if(predicateType == PredicateType.OR) {
+							return null;
+						}
+					} else if(normalized.predicateType == predicateType) {
+						operands.addAll(normalized.predicateList);
+					} else {
+						operands.add(normalized);
+					}
+				}
+				if(predicateType == PredicateType.OR) {
+					operands = foldEquals(operands);
+				}
+				if(operands.isEmpty()) {
+					return null;
+				}
+				if(operands.size() == 1) {
+					return operands.get(0);
+				}
+				Collections.sort(operands, SIGNATURE_ORDER);
+				result = createPredicate(predicateType);
+				result.predicateList.addAll(operands);
+				return result;
+			default:
+				throw new IllegalArgumentException("Unknown predicate type");
+		}
+	}
+
+	/**
+	 * Fold the equal and in predicates on the same column among the operands of an OR into a
+	 * single in predicate.
+	 */
+	private static List<TinyPredicate> foldEquals(List<TinyPredicate> operands) {
+
+		Map<String, List<TinyPredicate>> groups = new HashMap<>();
+		boolean folding = false;
+		for(TinyPredicate p : operands) {
+			if(p.isFoldable()) {
+				List<TinyPredicate> group = groups.get(p.column);
+				if(group == null) {
+					group = new ArrayList<>(2);
+					groups.put(p.column, group);
+				} else {
+					folding = true;
+				}
+				group.add(p);
+			}
+		}
+		if(!folding) {
+			return operands;
+		}
+
+		List<TinyPredicate> result = new ArrayList<>(operands.size());
+		for(TinyPredicate p : operands) {
+			List<TinyPredicate> group = p.isFoldable() ? groups.get(p.column) : null;
+			if(group == null || group.size() == 1) {
+				result.add(p);
+			} else if(group.get(0) == p) {
+				Set<Object> values = new LinkedHashSet<>();
+				for(TinyPredicate member : group) {
+					values.addAll(member.values);
+				}
+				result.add(new TinyPredicate(p, Operator.in, new ArrayList<>(values)));
+			}
+		}
+		return result;
+	}
+
+	private boolean isFoldable() {
+
+		return predicateType == PredicateType.SIMPLE && isValid && !hasPlaceholder
+				&& (operator == Operator.equal || operator == Operator.in);
+	}
+
+	/**
+	 * The structural signature of the predicate. Predicates with the same signature are
+	 * rendered to the same JPQL.
+	 */
+	String signature() {
+
+		if(signature == null) {
+			StringBuilder buffer = new StringBuilder();
+			if(predicateType == PredicateType.SIMPLE) {
+				buffer.append(column).append(' ').append(operator.name());
+				if(operator == Operator.in) {
+					buffer.append('#').append(values.size());
+				}
+				if(hasPlaceholder) {
+					for(Object value : values) {
+						buffer.append(' ').append(isPlaceholder(value) ? value : "?");
+					}
+				}
+				if(isSubquery()) {
+					buffer.append(((TinyQuery<?>) values.get(0)).createShape(false));
+				}
+				if(!isValid) {
+					buffer.append('!');
+				}
+			} else {
+				buffer.append(predicateType.name()).append('(');
+				for(int i = 0; i < predicateList.size(); i++) {
+					if(i > 0) {
+						buffer.append(',');
+					}
+					buffer.append(predicateList.get(i).signature());
+				}
+				buffer.append(')');
+			}
+			signature = buffer.toString();
+		}
+		return signature;
+	}
+
 	/**
 	 * Validates the values of the expression.
 	 *
@@ -510,52 +861,58 @@ public class TinyPredicate {
 					}
 				}
 				return result;
+			case exists:
+			case notExists:
+			case inSubquery:
+			case notInSubquery:
+				return values != null && values.size() == 1 && values.get(0) instanceof TinyQuery;
 			default:
 				throw new IllegalArgumentException("Unknown operator");
 		}
 
 	}
 
-	public String createExpression(TinyQuery query) {
+	/**
+	 * @return TRUE if the predicate's value is a subquery
+	 */
+	boolean isSubquery() {
 
-		StringBuilder buffer = new StringBuilder(column);
-		switch(operator) {
-			case isNull:
-				buffer.append(" IS NULL ");
-				break;
-			case isNotNull:
-				buffer.append(" IS NOT NULL ");
-				break;
-			case equal:
-				buffer.append("=");
-				break;
-			case notEqual:
-				buffer.append("<>");
-				break;
-			case lessThan:
-				buffer.append("<");
-				break;
-			case lessThanOrEqual:
-				buffer.append("<=");
-				break;
-			case greaterThan:
-				buffer.append(">");
-				break;
-			case greaterThanOrEqual:
-				buffer.append(">=");
-				break;
-			case like:
-				buffer.append(" LIKE ");
-				break;
-			case between:
-				buffer.append(" BETWEEN");
-				break;
-			case in:
-				buffer.append(" IN ");
-				break;
-			default:
-				throw new IllegalArgumentException("Unknown operator");
+		return predicateType == PredicateType.SIMPLE
+				&& (operator == Operator.exists || operator == Operator.notExists
+				|| operator == Operator.inSubquery || operator == Operator.notInSubquery);
+	}
+
+	/**
+	 * @return TRUE if the value is written into the JPQL instead of being bound
+	 */
+	private static boolean isPlaceholder(Object value) {
+
+		return value instanceof NamedParameter || value instanceof OuterColumn;
+	}
+
+	public String createExpression(TinyQuery<?> query) {
+
+		StringBuilder buffer = new StringBuilder();
+		appendExpression(query, buffer);
+		return buffer.toString();
+	}
+
+	/**
+	 * Write the JPQL expression of a simple predicate into the buffer and bind its values as
+	 * named parameters of the query.
+	 *
+	 * @param query
+	 * 		the query to bind the values to
+	 * @param buffer
+	 * 		the buffer to write to
+	 */
+	void appendExpression(TinyQuery<?> query, StringBuilder buffer) {
+
+		if(column != null) {
+			buffer.append(column);
 		}
+		buffer.append(operator.symbol);
+		String valueHolder;
 		switch(operator) {
 			// zero parameter
 			case isNull:
@@ -570,49 +927,279 @@ public class TinyPredicate {
 			case greaterThan:
 			case greaterThanOrEqual:
 			case like:
-				String valueHolder = column.replace(".", "_") + "_" + query.index;
-				query.namedParameters.put(valueHolder, values.get(0));
+				appendValue(query, buffer, parameterPrefix + query.index, values.get(0));
 				query.index++;
-				buffer.append(":").append(valueHolder);
 				break;
 
 			// 2 parameters
 			case between:
-				String valueHolder0 = column.replace(".", "_") + "_" + query.index + "_0";
-				String valueHolder1 = column.replace(".", "_") + "_" + query.index + "_1";
-				query.namedParameters.put(valueHolder0, values.get(0));
-				query.namedParameters.put(valueHolder1, values.get(1));
-				query.index = query.index + 1;
-				buffer.append(":").append(valueHolder0).append(" AND :").append(valueHolder1);
+				valueHolder = parameterPrefix + query.index;
+				appendValue(query, buffer, valueHolder + "_0", values.get(0));
+				buffer.append(" AND ");
+				appendValue(query, buffer, valueHolder + "_1", values.get(1));
+				query.index++;
 				break;
 
 			// infinite parameters
 			case in:
-				List<String> list = new ArrayList<>();
-				for(Object value : values) {
-					valueHolder
-							= column.replace(".", "_") + "_" + query.index + "_" + values
-							.indexOf(value);
-					list.add(":" + valueHolder);
-					query.namedParameters.put(valueHolder, value);
+				if(values.size() == 1 && values.get(0) instanceof NamedParameter) {
+					// bound to a collection on execution
+					buffer.append(':').append(((NamedParameter) values.get(0)).getName());
+					query.index++;
+					break;
 				}
+				// the list is padded with its last value to reuse the JPQL of the size bucket
+				valueHolder = parameterPrefix + query.index + "_";
+				int size = values.size();
+				int paddedSize = paddedSize(size, query.inListLimit);
+				buffer.append('(');
+				for(int i = 0; i < paddedSize; i++) {
+					if(i > 0) {
+						buffer.append(',');
+					}
+					appendValue(query, buffer, valueHolder + i, values.get(Math.min(i, size - 1)));
+				}
+				buffer.append(')');
 				query.index++;
-				buffer.append("(").append(StringUtils.join(list, ",")).append(")");
+				break;
+
+			// subquery
+			case exists:
+			case notExists:
+			case inSubquery:
+			case notInSubquery:
+				query.appendSubquery((TinyQuery<?>) values.get(0), buffer);
 				break;
 
 			default:
 				throw new IllegalArgumentException("Unknown operator: " + operator);
 		}
+	}
 
-		return buffer.toString();
+	/**
+	 * Write the placeholder of a value. A NamedParameter is written with its own name and an
+	 * OuterColumn with the alias of the enclosing query, other values are bound to the query
+	 * with the generated name.
+	 */
+	private static void appendValue(TinyQuery<?> query, StringBuilder buffer, String name,
+	                                Object value) {
+
+		if(value instanceof OuterColumn) {
+			buffer.append(value);
+		} else if(value instanceof NamedParameter) {
+			buffer.append(':').append(((NamedParameter) value).getName());
+		} else {
+			buffer.append(':').append(name);
+			query.bindPredicateValue(name, value);
+		}
+	}
+
+	/**
+	 * Append the structure of the predicate and all its descendants to the shape of a query.
+	 * Values are left out except for the padded number of values of an IN predicate.
+	 *
+	 * @param shape
+	 * 		shape of the query
+	 * @param inListLimit
+	 * 		IN list limit of the query
+	 */
+	void appendShape(List<Object> shape, int inListLimit) {
+
+		shape.add(predicateType);
+		if(predicateType == PredicateType.SIMPLE) {
+			shape.add(column);
+			shape.add(operator);
+			shape.add(isValid);
+			if(operator == Operator.in) {
+				shape.add(paddedSize(values.size(), inListLimit));
+			}
+			if(hasPlaceholder) {
+				for(Object value : values) {
+					shape.add(isPlaceholder(value) ? value : null);
+				}
+			}
+			if(isSubquery()) {
+				shape.add(((TinyQuery<?>) values.get(0)).createShape(false));
+			}
+		} else {
+			shape.add(predicateList.size());
+			for(TinyPredicate p : predicateList) {
+				p.appendShape(shape, inListLimit);
+			}
+		}
+	}
+
+	/**
+	 * Collect the parameter values of a simple predicate in the same order as
+	 * <code>createExpression()</code> binds them.
+	 *
+	 * @param result
+	 * 		list to add the values to
+	 * @param inListLimit
+	 * 		IN list limit of the query
+	 */
+	void collectValues(List<Object> result, int inListLimit) {
+
+		switch(operator) {
+			case isNull:
+			case isNotNull:
+				break;
+			case exists:
+			case notExists:
+			case inSubquery:
+			case notInSubquery:
+				((TinyQuery<?>) values.get(0)).collectSubqueryValues(result);
+				break;
+			case in:
+				if(!hasPlaceholder) {
+					result.addAll(values);
+					Object last = values.get(values.size() - 1);
+					for(int i = paddedSize(values.size(), inListLimit); i > values.size(); i--) {
+						result.add(last);
+					}
+				} else if(values.size() > 1) {
+					int size = values.size();
+					for(int i = 0; i < paddedSize(size, inListLimit); i++) {
+						Object value = values.get(Math.min(i, size - 1));
+						if(!isPlaceholder(value)) {
+							result.add(value);
+						}
+					}
+				}
+				break;
+			case between:
+				if(hasPlaceholder) {
+					for(Object value : values) {
+						if(!isPlaceholder(value)) {
+							result.add(value);
+						}
+					}
+				} else {
+					result.addAll(values);
+				}
+				break;
+			default:
+				if(!hasPlaceholder) {
+					result.add(values.get(0));
+				}
+		}
+	}
+
+	/**
+	 * The number of parameters an IN list of the given size is rendered with: the next power of
+	 * two, so that lists of similar sizes share the same JPQL, but no more than the limit.
+	 *
+	 * @param size
+	 * 		number of values, at least 1
+	 * @param limit
+	 * 		IN list limit of the query, 0 for no limit
+	 *
+	 * @return the padded size
+	 */
+	static int paddedSize(int size, int limit) {
+
+		int padded = Integer.highestOneBit(size);
+		if(padded < size) {
+			padded <<= 1;
+		}
+		if(limit > 0 && padded > limit) {
+			padded = Math.max(size, limit);
+		}
+		return padded;
+	}
+
+	/**
+	 * Creates a copy of a simple predicate with other values.
+	 *
+	 * @param values
+	 * 		the new values
+	 *
+	 * @return the new predicate
+	 */
+	TinyPredicate withValues(List values) {
+
+		return new TinyPredicate(this, operator, values);
+	}
+
+	/**
+	 * Creates a copy of a conjunction with one of its operands replaced.
+	 *
+	 * @param operand
+	 * 		the operand to replace
+	 * @param replacement
+	 * 		the new operand
+	 *
+	 * @return the new predicate
+	 */
+	TinyPredicate withOperand(TinyPredicate operand, TinyPredicate replacement) {
+
+		TinyPredicate result = createPredicate(predicateType);
+		for(TinyPredicate p : predicateList) {
+			result.predicateList.add(p == operand ? replacement : p);
+		}
+		return result;
+	}
+
+	/**
+	 * Collect the names of the NamedParameters used by the predicate and all its descendants.
+	 *
+	 * @param result
+	 * 		set to add the names to
+	 */
+	void collectNamedParameters(Set<String> result) {
+
+		if(predicateType == PredicateType.SIMPLE) {
+			if(hasPlaceholder) {
+				for(Object value : values) {
+					if(value instanceof NamedParameter) {
+						result.add(((NamedParameter) value).getName());
+					}
+				}
+			}
+			if(isSubquery()) {
+				((TinyQuery<?>) values.get(0)).collectNamedParameters(result);
+			}
+		} else {
+			for(TinyPredicate p : predicateList) {
+				p.collectNamedParameters(result);
+			}
+		}
+	}
+
+	/**
+	 * Collect the entity classes of the subqueries, nested predicates included.
+	 */
+	void collectEntityClasses(Set<Class<?>> result) {
+
+		if(predicateType == PredicateType.SIMPLE) {
+			if(isSubquery()) {
+				((TinyQuery<?>) values.get(0)).collectEntityClasses(result);
+			}
+		} else {
+			for(TinyPredicate p : predicateList) {
+				p.collectEntityClasses(result);
+			}
+		}
 	}
 
 	public enum Operator {
-		isNull, isNotNull,
-		equal, notEqual,
-		lessThan, lessThanOrEqual,
-		greaterThan, greaterThanOrEqual,
-		between, in, like,
+		isNull(" IS NULL "), isNotNull(" IS NOT NULL "),
+		equal("="), notEqual("<>"),
+		lessThan("<"), lessThanOrEqual("<="),
+		greaterThan(">"), greaterThanOrEqual(">="),
+		between(" BETWEEN "), in(" IN "), like(" LIKE "),
+		exists("EXISTS "), notExists("NOT EXISTS "),
+		inSubquery(" IN "), notInSubquery(" NOT IN ");
+
+		/**
+		 * JPQL operator written between the column and the parameters
+		 */
+		final String symbol;
+
+		Operator(String symbol) {
+
+			this.symbol = symbol;
+		}
 	}
 
 	/**
@@ -4,14 +4,43 @@ import com.google.common.base.Optional;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.PropertyAccessorFactory;
+import org.triiskelion.tinyspring.viewmodel.KeysetPage;
 import org.triiskelion.tinyspring.viewmodel.Page;
+import org.triiskelion.tinyspring.viewmodel.RowSet;
+import org.triiskelion.tinyspring.viewmodel.Slice;
 
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.CacheStoreMode;
+import javax.persistence.EntityGraph;
+import javax.persistence.Entity;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceUnitUtil;
 import javax.persistence.Query;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import javax.persistence.QueryTimeoutException;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.SingularAttribute;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 
 /**
@@ -46,6 +75,83 @@ public class TinyQuery<T> {
 	 */
 	public static final String TABLE_ALIAS = "_this";
 
+	/**
+	 * Tokens of the JPQL of a subquery to rename when it is embedded: string literals,
+	 * parameters, the query's own and the outer alias and the aliases of nested subqueries.
+	 */
+	private static final Pattern SUBQUERY_TOKEN = Pattern.compile(
+			"'[^']*'|:(\\w+)|(?<![\\w.])(_this|_outer)\\b|(?<![\\w.])(_s\\d+)");
+
+	static final String FETCH_SIZE = "org.hibernate.fetchSize";
+
+	static final String READ_ONLY = "org.hibernate.readOnly";
+
+	static final String TIMEOUT = "javax.persistence.query.timeout";
+
+	static final String CACHE_RETRIEVE_MODE = "javax.persistence.cache.retrieveMode";
+
+	static final String CACHE_STORE_MODE = "javax.persistence.cache.storeMode";
+
+	static final String FETCH_GRAPH = "javax.persistence.fetchgraph";
+
+	static final String LOAD_GRAPH = "javax.persistence.loadgraph";
+
+	/**
+	 * Default maximum number of values rendered in one IN list.
+	 */
+	public static final int DEFAULT_IN_LIST_LIMIT = 1000;
+
+	/**
+	 * Number of rows fetched at a time by <code>getLongColumn()</code> and
+	 * <code>getDoubleColumn()</code>
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+	/**
+	 * Number of rows fetched at a time by <code>export()</code>
+	 */
+	public static final int EXPORT_CHUNK_SIZE = 1000;
+
+	/**
+	 * Cache of the built JPQL shared by all queries.
+	 */
+	private static volatile JpqlCache jpqlCache = new JpqlCache(JpqlCache.DEFAULT_MAXIMUM_SIZE);
+
+	/**
+	 * Advisor of the fetch size shared by all queries in adaptive mode.
+	 */
+	private static volatile FetchSizeAdvisor fetchSizeAdvisor = new FetchSizeAdvisor();
+
+	/**
+	 * Cache of the totals of paged queries shared by all queries.
+	 */
+	private static volatile CountCache countCache = new CountCache();
+
+	/**
+	 * Estimator of the rows of a table shared by all queries in approximate count mode, null
+	 * if the database statistics are not used.
+	 */
+	private static volatile RowCountEstimator rowCountEstimator;
+
+	/**
+	 * Buffer of the prefetched pages shared by all queries.
+	 */
+	private static volatile PagePrefetcher pagePrefetcher = new PagePrefetcher();
+
+	/**
+	 * Entity classes modified in resource-local transactions which were active at the time,
+	 * evicted from the caches once their transaction is no longer active.
+	 */
+	private static final Queue<PendingEviction> pendingEvictions = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Ids of the entity manager factories in the keys of the shared caches, so that the
+	 * caches do not keep closed factories reachable.
+	 */
+	private static final Map<EntityManagerFactory, Long> factoryIds = new WeakHashMap<>();
+
+	private static long nextFactoryId = 0;
+
 	protected Class<T> entityClass;
 
 	protected EntityManager entityManager;
@@ -65,13 +171,19 @@ public class TinyQuery<T> {
 
 	private TinyEntity fromEntity;
 
-	private TinyEntity joinEntity;
-
-	private String joinColumn;
+	/**
+	 * The joins in the order they are added.
+	 */
+	protected List<Join> joins = new ArrayList<>();
 
 	HashMap<Class, String> aliasMap = new HashMap<>();
 
 	String[] selectedColumns;
+
+	/**
+	 * the view model selected into by <code>select(Class)</code>, null if none
+	 */
+	private DtoProjection projection;
 	// select and join clause
 
 	/**
@@ -80,23 +192,50 @@ public class TinyQuery<T> {
 	protected StringBuilder deleteClause = new StringBuilder();
 
 	/**
-	 * The WHERE clause
+	 * The restrictions of the WHERE clause in the order they are added.
+	 * They are formatted each time the query is built.
 	 */
-	protected StringBuilder whereClause = new StringBuilder();
+	protected List<Restriction> restrictions = new ArrayList<>();
 
 	/**
 	 * The ORDER BY clause
 	 */
 	protected StringBuilder orderByClause = new StringBuilder();
 
+	/**
+	 * The columns of the ORDER BY clause, used as the key of keyset pagination.
+	 */
+	protected List<SortKey> sortKeys = new ArrayList<>();
+
+	/**
+	 * Restriction to the rows after the cursor of keyset pagination, null if not seeking.
+	 */
+	protected TinyPredicate seekPredicate;
+
 	/**
 	 * The GROUP BY clause
 	 */
 	protected StringBuilder groupByClause = new StringBuilder();
 
+	/**
+	 * The restriction of the HAVING clause, null if none
+	 */
+	protected TinyPredicate havingPredicate;
+
 
 	protected boolean distinct = false;
 
+	/**
+	 * Name of the hint to apply the entity graph with, either
+	 * <code>javax.persistence.fetchgraph</code> or <code>javax.persistence.loadgraph</code>.
+	 */
+	protected String graphHint;
+
+	/**
+	 * The EntityGraph or the name of the named entity graph to apply.
+	 */
+	protected Object graph;
+
 	/**
 	 * Map for the query's named parameters.
 	 */
@@ -109,6 +248,22 @@ public class TinyQuery<T> {
 
 	protected int index = 0;
 
+	/**
+	 * Names of the parameters generated while formatting predicates. Only used while the
+	 * query is being built.
+	 */
+	private List<String> predicateParameterNames;
+
+	/**
+	 * Names of the parameters generated for the predicates when the query was last built.
+	 */
+	private String[] boundParameterNames;
+
+	/**
+	 * Buffer the JPQL is written into, reused each time the query is built.
+	 */
+	private final StringBuilder jpqlBuffer = new StringBuilder(256);
+
 	/**
 	 * Whether parameter with null value should be ignored.
 	 */
@@ -148,6 +303,98 @@ public class TinyQuery<T> {
 	 */
 	protected boolean showJpql = true;
 
+	/**
+	 * If TRUE the built JPQL is looked up in and stored to the shared JPQL cache.
+	 */
+	protected boolean cacheJpql = true;
+
+	/**
+	 * Maximum number of values rendered in one IN list, 0 for no limit. Larger lists are
+	 * executed in chunks.
+	 */
+	protected int inListLimit = DEFAULT_IN_LIST_LIMIT;
+
+	/**
+	 * Executor to run independent statements of the query concurrently, null to run them
+	 * sequentially.
+	 */
+	protected ExecutorService executor;
+
+	/**
+	 * Executor to run the count query of <code>getPagedResult()</code> concurrently with the
+	 * data query, null to run it sequentially.
+	 */
+	protected ExecutorService countExecutor;
+
+	/**
+	 * Milliseconds to wait for the concurrent count query, 0 for no limit.
+	 */
+	protected long countTimeout;
+
+	/**
+	 * If TRUE <code>getPagedResult()</code> reuses the total cached by a previous execution.
+	 */
+	protected boolean cacheCount;
+
+	/**
+	 * Totals from this number on may be approximate, 0 to count exactly.
+	 */
+	protected long approximateThreshold;
+
+	/**
+	 * If TRUE a paginated query fetching collections selects the ids of the page first.
+	 */
+	protected boolean idFirstPaging = true;
+
+	/**
+	 * Lazy associations initialized in batches after the entities are loaded
+	 */
+	protected String[] initializedAssociations = new String[0];
+
+	/**
+	 * Executor to prefetch the next page after a page is served, null not to prefetch.
+	 */
+	protected ExecutorService prefetchExecutor;
+
+	/**
+	 * Number of rows read beyond the page to tell whether there is a next one, 1 while
+	 * <code>getSlice()</code> executes. The next page is prefetched with the same lookahead.
+	 */
+	private int lookahead = 0;
+
+	/**
+	 * TRUE while <code>hasResult()</code> builds its query, which selects a constant from the
+	 * joins of the count query instead of the result.
+	 */
+	private boolean probe = false;
+
+	/**
+	 * Hints applied to every JPA query created, e.g. the timeout.
+	 */
+	protected Map<String, Object> hints = new LinkedHashMap<>();
+
+	protected FlushModeType flushMode;
+
+	/**
+	 * If TRUE the fetch size is chosen from the rows returned by previous queries of the same
+	 * shape.
+	 */
+	protected boolean adaptiveFetchSize = false;
+
+
+	/**
+	 * Creates a query without entity manager. It can only be used to build a
+	 * PreparedTinyQuery with <code>prepare()</code>.
+	 *
+	 * @param entityClass
+	 * 		entity to query
+	 *
+	 * @see #prepare()
+	 */
+	public TinyQuery(Class<T> entityClass) {
+
+		this(null, entityClass, false);
+	}
 
 	/**
 	 * @param entityManager
@@ -175,6 +422,64 @@ public class TinyQuery<T> {
 		this.showJpql = showJpql;
 	}
 
+	/**
+	 * Copy a query, so that <code>select(Class)</code> into a view model leaves the query
+	 * it is invoked on unchanged. The predicates are shared, the other state is copied.
+	 *
+	 * @param source
+	 * 		the query to copy
+	 */
+	@SuppressWarnings("unchecked")
+	private TinyQuery(TinyQuery<?> source) {
+
+		this.entityManager = source.entityManager;
+		// the entity class of the query, the type parameter is the one of the results
+		this.entityClass = (Class<T>) source.entityClass;
+		this.showJpql = source.showJpql;
+		this.verb = source.verb;
+		this.updateValues = new HashMap<>(source.updateValues);
+		this.jpqlExp.append(source.jpqlExp);
+		this.selectClass = source.selectClass;
+		this.fromEntity = source.fromEntity;
+		this.joins = new ArrayList<>(source.joins);
+		this.aliasMap = new HashMap<>(source.aliasMap);
+		this.selectedColumns = source.selectedColumns;
+		this.projection = source.projection;
+		this.deleteClause.append(source.deleteClause);
+		this.restrictions = new ArrayList<>(source.restrictions);
+		this.orderByClause.append(source.orderByClause);
+		this.sortKeys = new ArrayList<>(source.sortKeys);
+		this.seekPredicate = source.seekPredicate;
+		this.groupByClause.append(source.groupByClause);
+		this.havingPredicate = source.havingPredicate;
+		this.distinct = source.distinct;
+		this.graphHint = source.graphHint;
+		this.graph = source.graph;
+		this.namedParameters = new HashMap<>(source.namedParameters);
+		this.positionalParameters = new HashMap<>(source.positionalParameters);
+		this.index = source.index;
+		this.boundParameterNames = source.boundParameterNames;
+		this.ignoreNullParameter = source.ignoreNullParameter;
+		this.startRow = source.startRow;
+		this.maxRow = source.maxRow;
+		this.pageNumber = source.pageNumber;
+		this.numberPerPage = source.numberPerPage;
+		this.paged = source.paged;
+		this.cacheJpql = source.cacheJpql;
+		this.inListLimit = source.inListLimit;
+		this.executor = source.executor;
+		this.countExecutor = source.countExecutor;
+		this.countTimeout = source.countTimeout;
+		this.cacheCount = source.cacheCount;
+		this.approximateThreshold = source.approximateThreshold;
+		this.idFirstPaging = source.idFirstPaging;
+		this.initializedAssociations = source.initializedAssociations;
+		this.prefetchExecutor = source.prefetchExecutor;
+		this.hints = new LinkedHashMap<>(source.hints);
+		this.flushMode = source.flushMode;
+		this.adaptiveFetchSize = source.adaptiveFetchSize;
+	}
+
 	/**
 	 * Use ignoreNull() instead. This method is planned to be removed.
 	 *
@@ -214,611 +519,2835 @@ public class TinyQuery<T> {
 		return this;
 	}
 
-	public void close() {
+	/**
+	 * Set whether the built JPQL should be cached by the shape of the query. Enabled by default.
+	 *
+	 * @param cached
+	 * 		whether the JPQL should be cached
+	 *
+	 * @return the same TinyQuery instance
+	 *
+	 * @see org.triiskelion.tinyspring.dao.JpqlCache
+	 */
+	public TinyQuery<T> cacheJpql(boolean cached) {
 
-		try {
-			entityManager.close();
-		} catch(IllegalStateException e) {
-			log.warn("Can not close a container-managed entity manager.");
-		}
+		this.cacheJpql = cached;
+		return this;
 	}
 
-	////////////////////////////////////////////////////////////////////////////////////////
-	// BEGIN structural JPQL query
-	//
-
-	public TinyQuery<T> update() {
-
-		verb = Verb.UPDATE;
-
-		deleteClause.append(
-				String.format("UPDATE %s %s", entityClass.getCanonicalName(), TABLE_ALIAS));
-
+	/**
+	 * Set the maximum number of values rendered in one IN list. IN lists are padded to the next
+	 * power of two, up to the limit, so that lists of similar sizes share the same JPQL.
+	 * A query with a longer IN list is executed in chunks and the results are merged, if the
+	 * IN predicate is a conjunct of the whole WHERE clause and the query is not paginated,
+	 * ordered, grouped or distinct.
+	 *
+	 * @param limit
+	 * 		maximum number of values, 0 for no limit
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> inListLimit(int limit) {
 
+		this.inListLimit = Math.max(limit, 0);
 		return this;
 	}
 
-	public TinyQuery<T> set(String column, Object newValue) {
-
-		require(Verb.UPDATE, "set() can only be invoked after update()");
-
-		updateValues.put(column, newValue);
+	/**
+	 * Allow independent statements of the query, like the chunks of a long IN list or the
+	 * facets of <code>facets()</code>, to run concurrently on the executor. Each of them uses
+	 * its own entity manager created from the same factory, so the entities returned are
+	 * detached. Statements run sequentially when the entity manager is joined to a
+	 * transaction.
+	 *
+	 * @param executor
+	 * 		the executor, null to run sequentially
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> parallel(ExecutorService executor) {
 
+		this.executor = executor;
 		return this;
 	}
 
-	private void require(int verb, String text) {
+	/**
+	 * Run the count query of <code>getPagedResult()</code> on the executor with its own entity
+	 * manager created from the same factory while the data query runs on this one, so the
+	 * latency of a page is the longer of the two instead of their sum.
+	 * <p/>
+	 * The queries run sequentially when the entity manager is joined to a transaction, as the
+	 * other entity manager would neither see its changes nor share its snapshot. The
+	 * executor should be bounded, e.g. a fixed thread pool, since every page query occupies
+	 * a thread for its count.
+	 *
+	 * @param executor
+	 * 		the executor, null to run sequentially
+	 * @param timeout
+	 * 		milliseconds to wait for the count, 0 for no limit. The count query is given the
+	 * 		same timeout unless <code>timeout()</code> has been set.
+	 *
+	 * @return the same TinyQuery instance
+	 *
+	 * @throws javax.persistence.QueryTimeoutException
+	 * 		from <code>getPagedResult()</code> if the count does not complete in time
+	 */
+	public TinyQuery<T> concurrentCount(ExecutorService executor, long timeout) {
 
-		if((this.verb & verb) == 0) {
-			throw new IllegalStateException(text);
+		if(timeout < 0) {
+			throw new IllegalArgumentException("timeout must not be negative");
 		}
-
+		this.countExecutor = executor;
+		this.countTimeout = timeout;
+		return this;
 	}
 
 	/**
-	 * Delete from the entity class managed by the query. Exclusive to select() and update()
-	 * Corresponding JPQL is "DELETE FROM entityClass _this"
+	 * Let <code>getPagedResult()</code> reuse the total counted by a previous execution of
+	 * the same query with the same values within the time to live of the count cache, e.g.
+	 * when paging through a listing. The total may miss the modifications not made through
+	 * <code>execute()</code> or <code>AbstractDao</code> during the time to live. The cache is
+	 * bypassed inside a transaction which has made such modifications.
 	 *
 	 * @return the same TinyQuery instance
+	 *
+	 * @see org.triiskelion.tinyspring.dao.CountCache
 	 */
-	public TinyQuery<T> delete() {
-
-		this.verb = Verb.DELETE;
-
-		deleteClause.append(
-				String.format("DELETE FROM %s %s", entityClass.getCanonicalName(), TABLE_ALIAS));
+	public TinyQuery<T> cacheCount() {
 
+		this.cacheCount = true;
 		return this;
 	}
 
 	/**
-	 * Select from the entity class managed by the query. Exclusive to delete() and update()
-	 * Corresponding JPQL is "SELECT _this FROM entityClass _this"
+	 * Let <code>getPagedResult()</code> and <code>estimateCount()</code> return an
+	 * approximate total when it reaches the threshold, instead of counting every row of a
+	 * large result.
+	 * <p/>
+	 * A query without restriction nor join is estimated from the database statistics by the
+	 * shared <code>RowCountEstimator</code> if one is set and its estimate reaches the
+	 * threshold. Any other query is counted up to the threshold only, so a larger total is
+	 * reported as the threshold, e.g. "10000+". With <code>cacheCount()</code> the exact totals
+	 * are cached, the approximate ones are estimated again.
+	 *
+	 * @param threshold
+	 * 		the number of rows from which the total may be approximate, 0 to count exactly
 	 *
 	 * @return the same TinyQuery instance
+	 *
+	 * @see #estimateCount()
+	 * @see org.triiskelion.tinyspring.viewmodel.Page#isTotalExact()
 	 */
-	public TinyQuery<T> select() {
+	public TinyQuery<T> approximateCount(long threshold) {
 
-		this.verb = Verb.SELECT;
-		selectClass = entityClass;
+		if(threshold < 0) {
+			throw new IllegalArgumentException("threshold must not be negative");
+		}
+		this.approximateThreshold = threshold;
 		return this;
 	}
 
-	public <N> TinyQuery<N> select(Class<N> clazz) {
-
-		return new TinyQuery<>(entityManager, clazz, showJpql).select();
-	}
-
 	/**
-	 * Select specific columns from the entity class managed by the query. Exclusive to delete()
-	 * and update().<br>
-	 * the result must be retrieved using <code>getUntypedResultList() </code>
+	 * Whether a paginated query fetching collections, by left fetch joins or an entity
+	 * graph, is executed in two phases. The ids of the page are selected first with the restrictions
+	 * and the order of the query but without the fetches, then the entities of these ids are
+	 * loaded with the fetches and put back into the order of the ids. Otherwise the provider
+	 * either paginates the rows of the collections or reads the whole result to paginate it
+	 * in memory. On by default.
+	 *
+	 * @param enabled
+	 * 		FALSE to paginate the query as is
 	 *
 	 * @return the same TinyQuery instance
 	 */
-	//todo select from different table is broken!
-	public TinyQuery<T> select(String... columns) {
+	public TinyQuery<T> idFirstPaging(boolean enabled) {
 
-		select();
-		this.selectedColumns = columns;
+		this.idFirstPaging = enabled;
 		return this;
 	}
 
-
 	/**
-	 * Add additional entity to FROM clause besides the entity class managed by the query.
-	 * It must be invoked after select().
+	 * Initialize lazy associations of the loaded entities in batches, so that navigating them
+	 * afterwards, e.g. in the mappers of a Page, does not load them one statement per entity.
+	 * Unlike a fetch join it does not affect the pagination. Applied to the results of
+	 * <code>getResultList()</code>, <code>getPagedResult()</code> and <code>getSlice()
+	 * </code>.
 	 *
-	 * @param entityClass
-	 * 		entity class
-	 * @param alias
-	 * 		JPQL table alias
+	 * @param associations
+	 * 		names of the associations of the entity, e.g. <code>author</code> or <code>tags
+	 * 		</code>
 	 *
 	 * @return the same TinyQuery instance
+	 *
+	 * @see org.triiskelion.tinyspring.dao.BatchInitializer
 	 */
-	public TinyQuery<T> from(Class entityClass, String alias) {
-
-		require(Verb.SELECT, "from() must be invoked after select()");
+	public TinyQuery<T> initialize(String... associations) {
 
-		fromEntity = new TinyEntity(entityClass, alias);
-		aliasMap.put(entityClass, alias);
+		require(Verb.SELECT, "initialize() must be invoked after select()");
+		this.initializedAssociations = associations;
 		return this;
 	}
 
-
 	/**
-	 * Add additional entity to FROM clause besides the entity  which the invoking DAO object
-	 * represents. must invoke after <code>select()</code>.
+	 * Prefetch the next page on the executor after a page of the query is served, so that a
+	 * subsequent request of the next page with the same values is answered from the shared
+	 * PagePrefetcher. The next page is loaded by its own entity manager created from the same
+	 * factory, so its entities are detached.
+	 * <p/>
+	 * Pages are neither prefetched nor taken from the buffer when the entity manager is
+	 * joined to a transaction, and for queries paginated by ids first, with associations to
+	 * initialize or a chunked IN list.
 	 *
-	 * @param column
-	 * 		column to join
-	 * @param alias
-	 * 		JPQL joined table's alias
+	 * @param executor
+	 * 		the executor, null not to prefetch. It should be bounded, pages are not prefetched
+	 * 		when it rejects them.
 	 *
 	 * @return the same TinyQuery instance
+	 *
+	 * @see org.triiskelion.tinyspring.dao.PagePrefetcher
 	 */
-	public TinyQuery<T> join(Class entityClass, String column, String alias) {
-
-		require(Verb.SELECT, "join() must be invoked after select()");
+	public TinyQuery<T> prefetch(ExecutorService executor) {
 
-		joinEntity = new TinyEntity(entityClass, alias);
-		joinColumn = column;
-		aliasMap.put(entityClass, alias);
+		require(Verb.SELECT, "prefetch() must be invoked after select()");
+		this.prefetchExecutor = executor;
 		return this;
 	}
 
 	/**
-	 * Distinguish the query result. This will add DISTINCT keyword to the query. Can be invoked
-	 * anywhere before retrieving the result.
+	 * Set the number of rows the JDBC driver fetches per round trip. Applied as the Hibernate
+	 * hint <code>org.hibernate.fetchSize</code> to the queries returning rows.
+	 *
+	 * @param fetchSize
+	 * 		number of rows
 	 *
 	 * @return the same TinyQuery instance
 	 */
-	public TinyQuery<T> distinct() {
-
-		require(Verb.SELECT, "distinct() must be invoked after select()");
+	public TinyQuery<T> fetchSize(int fetchSize) {
 
-		distinct = true;
+		if(fetchSize <= 0) {
+			throw new IllegalArgumentException("fetch size must be positive");
+		}
+		hints.put(FETCH_SIZE, fetchSize);
 		return this;
 	}
 
 	/**
-	 * Add predicates to the restriction(the WHERE clause).
-	 * Safe for multiple invocation, in this case the predicates are conjoined with AND.
-	 *
-	 * @param predicates
-	 * 		the restriction conditions
+	 * Choose the fetch size from the number of rows returned by the previous executions of
+	 * queries with the same shape. The fetch size set by <code>fetchSize()</code> is used
+	 * until the shape has been observed.
 	 *
 	 * @return the same TinyQuery instance
+	 *
+	 * @see org.triiskelion.tinyspring.dao.FetchSizeAdvisor
 	 */
-	public TinyQuery<T> where(TinyPredicate... predicates) {
+	public TinyQuery<T> adaptiveFetchSize() {
 
-		and(predicates);
+		this.adaptiveFetchSize = true;
 		return this;
 	}
 
 	/**
-	 * Conjoin the predicates with AND then with the previous predicates.
+	 * Set the query timeout.
 	 *
-	 * @param predicates
-	 * 		the restriction conditions, multiple predicates will be conjoined with AND.
+	 * @param milliseconds
+	 * 		the timeout in milliseconds
 	 *
 	 * @return the same TinyQuery instance
 	 */
-	public TinyQuery<T> and(TinyPredicate... predicates) {
-
-		if(predicates == null || predicates.length == 0) {
-			return this;
-		}
-
-		checkPredicates(predicates);
+	public TinyQuery<T> timeout(int milliseconds) {
 
-		TinyPredicate merged = TinyPredicate.and(predicates);
-		if(!merged.empty) {
-			whereClause.append(whereClause.length() == 0 ? " WHERE " : " AND ")
-			           .append(formatPredicate(merged));
+		if(milliseconds <= 0) {
+			throw new IllegalArgumentException("timeout must be positive");
 		}
+		hints.put(TIMEOUT, milliseconds);
 		return this;
 	}
 
-
 	/**
-	 * Conjoin the predicates and the previous predicates with OR.
+	 * Set the flush mode of the query. <code>FlushModeType.COMMIT</code> avoids flushing
+	 * the persistence context before the query.
 	 *
-	 * @param predicates
-	 * 		the restriction conditions, multiple predicates will be conjoined with AND.
+	 * @param flushMode
+	 * 		the flush mode
 	 *
 	 * @return the same TinyQuery instance
 	 */
-	public TinyQuery<T> or(TinyPredicate... predicates) {
-
-		if(predicates == null || predicates.length == 0) {
-			return this;
-		}
-
-		checkPredicates(predicates);
+	public TinyQuery<T> flushMode(FlushModeType flushMode) {
 
-		TinyPredicate merged = TinyPredicate.and(predicates);
-		if(!merged.empty) {
-			whereClause.append(whereClause.length() == 0 ? " WHERE " : " OR ")
-			           .append(formatPredicate(merged));
-		}
+		this.flushMode = flushMode;
 		return this;
 	}
 
 	/**
-	 * Add an ORDER BY clause for the columns from joined tables.
-	 * For multiple invocation the clauses will be added successively.
+	 * Load the result entities as read-only, so the persistence context keeps no snapshot
+	 * of them for dirty checking and their changes are not flushed. Applied as the Hibernate
+	 * hint <code>org.hibernate.readOnly</code>.
 	 *
-	 * @param alias
-	 * 		alias of the joined table
-	 * @param column
-	 * 		column to apply
-	 * @param orderType
-	 * 		asc or desc
+	 * @param readOnly
+	 * 		TRUE to load read-only entities
 	 *
 	 * @return the same TinyQuery instance
 	 */
-	public TinyQuery<T> orderBy(String alias, String column, OrderType orderType) {
-
-		require(Verb.SELECT, "orderBy() must be invoked after select()");
+	public TinyQuery<T> readOnly(boolean readOnly) {
 
-		if(orderByClause.length() == 0) {
-			orderByClause.append(" ORDER BY ");
-		} else {
-			orderByClause.append(",");
-		}
-		if(alias == null) {
-			orderByClause.append(TABLE_ALIAS);
-		} else {
-			orderByClause.append(alias);
-		}
-		orderByClause.append(".").append(column).append(" ").append(orderType);
+		hints.put(READ_ONLY, readOnly);
 		return this;
 	}
 
 	/**
-	 * Add an ORDER BY clause. For multiple invocation the clauses will be added successively.
+	 * Set how the query uses the second-level cache.
 	 *
-	 * @param column
-	 * 		column to apply
-	 * @param orderType
-	 * 		asc or desc
+	 * @param retrieveMode
+	 * 		whether entities are read from the cache
+	 * @param storeMode
+	 * 		whether entities read from the database are put into the cache
 	 *
 	 * @return the same TinyQuery instance
 	 */
-	public TinyQuery<T> orderBy(String column, OrderType orderType) {
+	public TinyQuery<T> cacheMode(CacheRetrieveMode retrieveMode, CacheStoreMode storeMode) {
 
-		return orderBy(null, column, orderType);
+		hints.put(CACHE_RETRIEVE_MODE, retrieveMode);
+		hints.put(CACHE_STORE_MODE, storeMode);
+		return this;
 	}
 
 	/**
-	 * Add GROUP BY clause for the columns from joined tables.
-	 * For multiple invocation the clauses will be added successively.
+	 * Set a hint on the JPA queries created, e.g. a provider specific one.
 	 *
-	 * @param alias
-	 * 		alias of the joined table
-	 * @param column
-	 * 		column to apply
+	 * @param name
+	 * 		name of the hint
+	 * @param value
+	 * 		value of the hint
 	 *
 	 * @return the same TinyQuery instance
 	 */
-	public TinyQuery<T> groupBy(String alias, String column) {
+	public TinyQuery<T> hint(String name, Object value) {
 
-		require(Verb.SELECT, "groupBy() must be invoked after select()");
-
-		if(groupByClause.length() == 0) {
-			groupByClause.append(" GROUP BY ");
-		} else {
-			groupByClause.append(",");
-		}
-		if(alias == null) {
-			groupByClause.append(TABLE_ALIAS);
-		} else {
-			groupByClause.append(alias);
-		}
-		groupByClause.append(".").append(column).append(" ");
+		hints.put(name, value);
 		return this;
 	}
 
 	/**
-	 * Add an GROUP BY clause. Multiple invocation will be added successively.
-	 * </code>
-	 *
-	 * @param column
-	 * 		column to apply
-	 *
-	 * @return the same TinyQuery instance
+	 * @return the fetch size applied to the result list: the advised one in adaptive mode if
+	 * the shape has been observed, otherwise the one set by <code>fetchSize()</code>, null if
+	 * none.
 	 */
-	public TinyQuery<T> groupBy(String column) {
+	public Integer getFetchSize() {
 
-		return groupBy(null, column);
+		Integer fetchSize = (Integer) hints.get(FETCH_SIZE);
+		if(adaptiveFetchSize) {
+			Integer advised = fetchSizeAdvisor.advise(createShape(false));
+			if(advised != null) {
+				fetchSize = maxRow > 0 ? Math.min(advised, maxRow) : advised;
+			}
+		}
+		return fetchSize;
 	}
-	//
-	// END structural JPQL query
-	////////////////////////////////////////////////////////////////////////////////////////
 
+	/**
+	 * @return the fetch size advisor shared by all queries
+	 */
+	public static FetchSizeAdvisor getFetchSizeAdvisor() {
 
-	////////////////////////////////////////////////////////////////////////////////////////
-	// BEGIN raw JPQL query
-	//
+		return fetchSizeAdvisor;
+	}
 
 	/**
-	 * Set the JPQL query. Invoking this method will discard all precedent queries.
-	 *
-	 * @param jpql
-	 * 		the JPQL expression
+	 * Replace the fetch size advisor shared by all queries.
 	 *
-	 * @return the same TinyQuery instance
+	 * @param advisor
+	 * 		the new advisor
 	 */
-	public TinyQuery<T> query(String jpql) {
+	public static void setFetchSizeAdvisor(FetchSizeAdvisor advisor) {
 
-		if(jpql.toLowerCase().contains("update")) {
-			verb = Verb.UPDATE;
-		} else if(jpql.toLowerCase().contains("delete")) {
-			verb = Verb.DELETE;
-		} else if(jpql.toLowerCase().contains("select")) {
-			verb = Verb.SELECT;
-		} else {
-			throw new IllegalArgumentException("Statement must contain select update or delete");
+		if(advisor == null) {
+			throw new IllegalArgumentException("advisor must not be null");
 		}
-		jpqlExp.append(jpql);
-
-		return this;
+		fetchSizeAdvisor = advisor;
 	}
 
 	/**
-	 * Add a positional parameter
-	 *
-	 * @param position
-	 * 		the position marked in the JPQL expression.
-	 * @param value
-	 * 		the value of the parameter
-	 *
-	 * @return the same TinyQuery instance
+	 * @return the cache of the totals of paged queries shared by all queries
 	 */
-	public TinyQuery<T> param(int position, Object value) {
+	public static CountCache getCountCache() {
 
-		positionalParameters.put(position, value);
-		return this;
+		return countCache;
 	}
 
 	/**
-	 * add a named parameter
-	 *
-	 * @param name
-	 * 		the name marked in the JPQL expression.
-	 * @param value
-	 * 		the value of the parameter
+	 * Replace the cache of the totals shared by all queries, e.g. to change the time to live.
 	 *
-	 * @return the same TinyQuery instance
+	 * @param cache
+	 * 		the new cache
 	 */
-	public TinyQuery<T> param(String name, Object value) {
+	public static void setCountCache(CountCache cache) {
 
-		namedParameters.put(name, value);
-		return this;
+		if(cache == null) {
+			throw new IllegalArgumentException("cache must not be null");
+		}
+		countCache = cache;
 	}
-	//
-	// END raw JPQL query
-	////////////////////////////////////////////////////////////////////////////////////////
 
+	/**
+	 * @return the row count estimator shared by all queries, null if none
+	 */
+	public static RowCountEstimator getRowCountEstimator() {
 
-	////////////////////////////////////////////////////////////////////////////////////////
-	// BEGIN Result retrieving
-	//
+		return rowCountEstimator;
+	}
 
 	/**
-	 * Execute an update or delete statement
+	 * Set the row count estimator shared by all queries in approximate count mode.
 	 *
-	 * @return the number of entities updated or deleted
+	 * @param estimator
+	 * 		the estimator for the database in use, null not to use the database statistics
 	 */
-	public int execute() {
+	public static void setRowCountEstimator(RowCountEstimator estimator) {
 
-		require(Verb.UPDATE | Verb.DELETE, "execute() must be invoked after update() or delete()");
-		Query query = createQuery();
-		return query.executeUpdate();
+		rowCountEstimator = estimator;
 	}
 
 	/**
-	 * Count the query's result.
-	 *
-	 * @return number of the result
+	 * @return the buffer of the prefetched pages shared by all queries
 	 */
-	public long count() {
+	public static PagePrefetcher getPagePrefetcher() {
 
-		require(Verb.SELECT, "count() must be invoked after select()");
-		Query query = createQuery(true);
-		return (long) query.getSingleResult();
+		return pagePrefetcher;
 	}
 
 	/**
-	 * Check if query has no result
+	 * Replace the buffer of the prefetched pages shared by all queries, e.g. to change the
+	 * time to live.
 	 *
-	 * @return TRUE if query has no result, FALSE otherwise.
+	 * @param prefetcher
+	 * 		the new buffer
 	 */
-	public boolean hasNoResult() {
+	public static void setPagePrefetcher(PagePrefetcher prefetcher) {
 
-		require(Verb.SELECT, "hasNoResult() must be invoked after select()");
-		return !hasResult();
+		if(prefetcher == null) {
+			throw new IllegalArgumentException("prefetcher must not be null");
+		}
+		pagePrefetcher = prefetcher;
 	}
 
 	/**
-	 * Check if query has result
+	 * Discard the cached totals and the prefetched pages of the queries reading from the
+	 * entity class immediately. The modifications made through TinyQuery and AbstractDao
+	 * evict the caches when their transaction ends, invoke this method or <code>
+	 * evictCaches(entityManager, entityClass)</code> after modifying the entities by other
+	 * means, e.g. native SQL.
 	 *
-	 * @return TRUE if query has result, FALSE otherwise.
+	 * @param entityClass
+	 * 		the modified entity class
 	 */
-	public boolean hasResult() {
+	public static void evictCaches(Class<?> entityClass) {
 
-		require(Verb.SELECT, "hasResult() must be invoked after select()");
-		Query query = createQuery(true);
-		return (long) query.getSingleResult() != 0;
+		countCache.evict(entityClass);
+		pagePrefetcher.evict(entityClass);
 	}
 
 	/**
-	 * This method executes the JPA query and return the result of <code>getSingleResult()</code>.
-	 * The returned value is untyped.
-	 *
-	 * @return the untyped result
+	 * Discard the cached totals and the prefetched pages of the queries reading from the
+	 * entity class, immediately and again each time the caches are used until the transaction
+	 * of the entity manager has ended. The other transactions do not see the modification
+	 * before the commit, so a total they count meanwhile would be stale afterwards; it is
+	 * evicted at the next use of the caches. The modifying entity manager bypasses the caches
+	 * while its transaction is active.
+	 * <p/>
+	 * Resource-local, JTA and shared entity managers are supported: the transaction is observed
+	 * on the entity manager unwrapped from the given one, through
+	 * <code>getTransaction()</code> or <code>isJoinedToTransaction()</code>. A resource-local
+	 * entity manager reuses its EntityTransaction, so a commit followed by a new transaction
+	 * between two uses of the caches is not noticed; the evictions then go on until the entity
+	 * manager is found outside a transaction or closed, which delays caching but never serves
+	 * a stale total.
 	 *
-	 * @see javax.persistence.Query#getSingleResult()
+	 * @param entityManager
+	 * 		the entity manager which modified the entities
+	 * @param entityClass
+	 * 		the modified entity class
 	 */
-	public Object getSingleResult() {
+	public static void evictCaches(EntityManager entityManager, Class<?> entityClass) {
 
-		require(Verb.SELECT, "getSingleResult() must be invoked after select()");
-		Query query = createQuery();
-		return query.getSingleResult();
+		evictCaches(entityClass);
+		EntityManager target = unwrap(entityManager);
+		if(isInTransaction(target)) {
+			pendingEvictions.add(new PendingEviction(target, entityClass));
+		}
 	}
 
 	/**
-	 * Execute a SELECT query and return the query's first result.
-	 * The result is wrapped by com.google.common.base.Optional object.
-	 *
-	 * @return first element of the result list.
+	 * Evict the caches of the entity classes modified in transactions which may not have
+	 * ended, and forget the evictions whose transaction has ended. Invoked by the caches before
+	 * they are read or written.
 	 */
-	public Optional<T> getFirstResult() {
+	static void processPendingEvictions() {
 
-		require(Verb.SELECT, "getFirstResult() must be invoked after select()");
-		List<T> result = this.limit(0, 1).getResultList();
-		return result.size() > 0 ? Optional.of(result.get(0)) : Optional.<T>absent();
+		if(pendingEvictions.isEmpty()) {
+			return;
+		}
+		Iterator<PendingEviction> iterator = pendingEvictions.iterator();
+		while(iterator.hasNext()) {
+			PendingEviction eviction = iterator.next();
+			if(!isInTransaction(eviction.entityManager)) {
+				iterator.remove();
+			}
+			evictCaches(eviction.entityClass);
+		}
 	}
 
 	/**
-	 * Limit the number of the results based on page number.
-	 * Null parameters will be ignored quietly.
-	 *
-	 * @param page
-	 * 		page numbered from 1, nullable
-	 * @param numberPerPage
-	 * 		maximum number to retrieve, nullable
-	 *
-	 * @return the same TinyQuery instance
-	 *
-	 * @see javax.persistence.Query#setFirstResult(int)
-	 * @see javax.persistence.Query#setMaxResults(int)
+	 * @return TRUE if the entities have been modified in the active transaction of the entity
+	 * manager, whose queries must bypass the caches.
 	 */
-	public TinyQuery<T> page(Integer page, Integer numberPerPage) {
-
-		require(Verb.SELECT, "page() must be invoked after select()");
-		if(page != null && numberPerPage != null) {
-			this.pageNumber = page;
-			this.numberPerPage = numberPerPage;
-			this.paged = true;
+	static boolean hasPendingEvictions(EntityManager entityManager) {
 
-			this.startRow = (page - 1) * numberPerPage;
-			this.maxRow = numberPerPage;
+		if(pendingEvictions.isEmpty()) {
+			return false;
 		}
-		return this;
+		EntityManager target = unwrap(entityManager);
+		for(PendingEviction eviction : pendingEvictions) {
+			if(eviction.entityManager == target) {
+				return isInTransaction(target);
+			}
+		}
+		return false;
 	}
 
 	/**
-	 * Limit the number of the results based on rows.
-	 * Null parameters will be ignored quietly.
-	 *
-	 * @param startRow
-	 * 		position of the first row, numbered from 0, nullable
-	 * @param maxRow
-	 * 		maximum number to retrieve, nullable
-	 *
-	 * @return the same TinyQuery instance
-	 *
-	 * @see javax.persistence.Query#setFirstResult(int)
-	 * @see javax.persistence.Query#setMaxResults(int)
+	 * @return the entity manager of the provider behind a shared or proxied entity manager,
+	 * the entity manager itself if it can not be unwrapped
 	 */
-	public TinyQuery<T> limit(Integer startRow, Integer maxRow) {
+	private static EntityManager unwrap(EntityManager entityManager) {
 
-		require(Verb.SELECT, "limit() must be invoked after select()");
-		if(startRow != null && maxRow != null) {
-			this.startRow = startRow;
-			this.maxRow = maxRow;
-			this.paged = false;
+		try {
+			EntityManager target = entityManager.unwrap(EntityManager.class);
+			return target == null ? entityManager : target;
+		} catch(RuntimeException e) {
+			return entityManager;
 		}
-		return this;
 	}
 
 	/**
-	 * Execute a SELECT query and return the query results as an List.
-	 *
-	 * @return the typed result list
+	 * @return TRUE if the entity manager is open and in an active resource-local transaction
+	 * or joined to a JTA transaction
 	 */
-	public List<T> getResultList() {
+	private static boolean isInTransaction(EntityManager entityManager) {
 
-		require(Verb.SELECT, "getResultList() must be invoked after select()");
-		Query query = createQuery();
-		if(startRow >= 0 && maxRow >= 0) {
-			query.setFirstResult(startRow).setMaxResults(maxRow);
+		try {
+			if(!entityManager.isOpen()) {
+				return false;
+			}
+			try {
+				return entityManager.getTransaction().isActive();
+			} catch(IllegalStateException e) {
+				// JTA entity manager
+				return entityManager.isJoinedToTransaction();
+			}
+		} catch(RuntimeException e) {
+			// the entity manager is closed
+			return false;
 		}
-		return (List<T>) query.getResultList();
 	}
 
 	/**
-	 * Execute a SELECT query and return the query results as an List.<br>
-	 * The result will be cast into the type given by parameter.
-	 *
-	 * @return the typed result list
+	 * @return the id of the entity manager factory in the keys of the shared caches
 	 */
-	public <R> List<R> getResultList(Class<R> clazz) {
-
-		require(Verb.SELECT, "getResultList() must be invoked after select()");
-		Query query = createQuery();
-		if(startRow >= 0 && maxRow >= 0) {
-			query.setFirstResult(startRow).setMaxResults(maxRow);
+	static Long getFactoryId(EntityManagerFactory entityManagerFactory) {
+
+		synchronized(factoryIds) {
+			Long id = factoryIds.get(entityManagerFactory);
+			if(id == null) {
+				// never reused, the entries of a collected factory stay until they expire
+				id = nextFactoryId++;
+				factoryIds.put(entityManagerFactory, id);
+			}
+			return id;
 		}
-		return (List<R>) query.getResultList();
 	}
 
 	/**
-	 * Execute the SELECT statement and return the results wrapped in a Page object.
-	 * Only available after invoking <code>page()</code>.
-	 *
-	 * @return results wrapped in a Page object.
-	 *
-	 * @see org.triiskelion.tinyspring.viewmodel.Page
+	 * @return the JPQL cache shared by all queries
 	 */
-	public Page<T> getPagedResult() {
+	public static JpqlCache getJpqlCache() {
 
-		require(Verb.SELECT, "getPagedResult() must be invoked after select()");
-		if(paged) {
-			long total = count();
-			List<T> result = getResultList();
-			return new Page<>(result, pageNumber, numberPerPage, total);
-		} else {
-			throw new IllegalStateException("Query is not paged. call page() first.");
-		}
+		return jpqlCache;
 	}
 
 	/**
-	 * Execute the SELECT statement and return the results wrapped in a Page object.
-	 * Only available after invoking <code>page()</code>.<br>
-	 * The result will be cast into the type given by parameter.
+	 * Replace the JPQL cache shared by all queries, e.g. to change its size.
 	 *
-	 * @param clazz
-	 * 		class to cast
-	 *
-	 * @return results wrapped in a Page object.
+	 * @param cache
+	 * 		the new cache
+	 */
+	public static void setJpqlCache(JpqlCache cache) {
+
+		if(cache == null) {
+			throw new IllegalArgumentException("cache must not be null");
+		}
+		jpqlCache = cache;
+	}
+
+	public void close() {
+
+		try {
+			entityManager.close();
+		} catch(IllegalStateException e) {
+			log.warn("Can not close a container-managed entity manager.");
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////
+	// BEGIN structural JPQL query
+	//
+
+	public TinyQuery<T> update() {
+
+		verb = Verb.UPDATE;
+
+		deleteClause.append(
+				String.format("UPDATE %s %s", entityClass.getCanonicalName(), TABLE_ALIAS));
+
+
+		return this;
+	}
+
+	public TinyQuery<T> set(String column, Object newValue) {
+
+		require(Verb.UPDATE, "set() can only be invoked after update()");
+
+		updateValues.put(column, newValue);
+
+		return this;
+	}
+
+	private void require(int verb, String text) {
+
+		if((this.verb & verb) == 0) {
+			throw new IllegalStateException(text);
+		}
+
+	}
+
+	/**
+	 * Delete from the entity class managed by the query. Exclusive to select() and update()
+	 * Corresponding JPQL is "DELETE FROM entityClass _this"
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> delete() {
+
+		this.verb = Verb.DELETE;
+
+		deleteClause.append(
+				String.format("DELETE FROM %s %s", entityClass.getCanonicalName(), TABLE_ALIAS));
+
+		return this;
+	}
+
+	/**
+	 * Select from the entity class managed by the query. Exclusive to delete() and update()
+	 * Corresponding JPQL is "SELECT _this FROM entityClass _this"
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> select() {
+
+		this.verb = Verb.SELECT;
+		selectClass = entityClass;
+		projection = null;
+		return this;
+	}
+
+	/**
+	 * Select from another entity class, or into a view model.<br>
+	 * If clazz is not an entity, the columns of the entity class managed by the query are
+	 * selected into instances of clazz with a constructor expression. Corresponding JPQL is
+	 * "SELECT NEW clazz(_this.a,_this.b) FROM entityClass _this". The columns are derived from
+	 * the fields of clazz, see {@link Projected}. No entity is loaded into the persistence
+	 * context.
+	 *
+	 * @param clazz
+	 * 		an entity class, or a view model
+	 *
+	 * @return a new TinyQuery of the entity, or a copy of this TinyQuery returning instances of
+	 * the view model. This TinyQuery is left unchanged.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if the view model has no constructor matching its fields
+	 */
+	public <N> TinyQuery<N> select(Class<N> clazz) {
+
+		if(isEntity(clazz)) {
+			return new TinyQuery<>(entityManager, clazz, showJpql).select();
+		}
+		DtoProjection projection = DtoProjection.of(clazz);
+		TinyQuery<N> query = new TinyQuery<>(this);
+		query.select();
+		query.projection = projection;
+		query.selectedColumns = projection.columns;
+		return query;
+	}
+
+	private boolean isEntity(Class<?> clazz) {
+
+		if(clazz.isAnnotationPresent(Entity.class)) {
+			return true;
+		}
+		if(entityManager == null) {
+			return false;
+		}
+		try {
+			entityManager.getMetamodel().entity(clazz);
+			return true;
+		} catch(IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Select specific columns from the entity class managed by the query. Exclusive to delete()
+	 * and update().<br>
+	 * the result must be retrieved using <code>getUntypedResultList() </code> or
+	 * <code>getRowSet()</code>
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	//todo select from different table is broken!
+	public TinyQuery<T> select(String... columns) {
+
+		select();
+		this.selectedColumns = columns;
+		return this;
+	}
+
+
+	/**
+	 * Add additional entity to FROM clause besides the entity class managed by the query.
+	 * It must be invoked after select().
+	 *
+	 * @param entityClass
+	 * 		entity class
+	 * @param alias
+	 * 		JPQL table alias
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> from(Class entityClass, String alias) {
+
+		require(Verb.SELECT, "from() must be invoked after select()");
+
+		fromEntity = new TinyEntity(entityClass, alias);
+		aliasMap.put(entityClass, alias);
+		return this;
+	}
+
+
+	/**
+	 * Add additional entity to FROM clause besides the entity  which the invoking DAO object
+	 * represents. must invoke after <code>select()</code>. Safe for multiple invocation.
+	 *
+	 * @param column
+	 * 		column to join
+	 * @param alias
+	 * 		JPQL joined table's alias
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> join(Class entityClass, String column, String alias) {
+
+		require(Verb.SELECT, "join() must be invoked after select()");
+
+		joins.add(new Join(" JOIN ", column, alias));
+		aliasMap.put(entityClass, alias);
+		return this;
+	}
+
+	/**
+	 * Fetch an association together with the result by an inner JOIN FETCH, so that it is not
+	 * loaded lazily one statement per row afterwards. Rows without the association are
+	 * excluded. Safe for multiple invocation.
+	 * <p/>
+	 * The result has an entity for each element of a fetched collection unless
+	 * <code>distinct()</code> is invoked. The count query keeps the join but not the fetch.
+	 *
+	 * @param column
+	 * 		the association to fetch, e.g. <code>books</code> or <code>u.books</code> of a
+	 * 		joined entity.
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> joinFetch(String column) {
+
+		require(Verb.SELECT, "joinFetch() must be invoked after select()");
+
+		joins.add(new Join(" JOIN FETCH ", column, null));
+		return this;
+	}
+
+	/**
+	 * Fetch an association together with the result by a LEFT JOIN FETCH, so that it is not
+	 * loaded lazily one statement per row afterwards. Safe for multiple invocation.
+	 * <p/>
+	 * The result has an entity for each element of a fetched collection unless
+	 * <code>distinct()</code> is invoked. The join is left out of the count query.
+	 *
+	 * @param column
+	 * 		the association to fetch, e.g. <code>books</code> or <code>u.books</code> of a
+	 * 		joined entity.
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> leftJoinFetch(String column) {
+
+		require(Verb.SELECT, "leftJoinFetch() must be invoked after select()");
+
+		joins.add(new Join(" LEFT JOIN FETCH ", column, null));
+		return this;
+	}
+
+	/**
+	 * Apply an entity graph as fetch graph: the attributes of the graph are loaded eagerly and
+	 * the others lazily. It is applied to the result lists but not to the count query.
+	 *
+	 * @param graph
+	 * 		the entity graph
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> fetchGraph(EntityGraph<?> graph) {
+
+		return applyGraph(FETCH_GRAPH, graph);
+	}
+
+	/**
+	 * Apply a named entity graph as fetch graph.
+	 *
+	 * @param graphName
+	 * 		name of the entity graph
+	 *
+	 * @return the same TinyQuery instance
+	 *
+	 * @see #fetchGraph(javax.persistence.EntityGraph)
+	 */
+	public TinyQuery<T> fetchGraph(String graphName) {
+
+		return applyGraph(FETCH_GRAPH, graphName);
+	}
+
+	/**
+	 * Apply an entity graph as load graph: the attributes of the graph are loaded eagerly and
+	 * the others according to their mapping. It is applied to the result lists but not to the
+	 * count query.
+	 *
+	 * @param graph
+	 * 		the entity graph
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> loadGraph(EntityGraph<?> graph) {
+
+		return applyGraph(LOAD_GRAPH, graph);
+	}
+
+	/**
+	 * Apply a named entity graph as load graph.
+	 *
+	 * @param graphName
+	 * 		name of the entity graph
+	 *
+	 * @return the same TinyQuery instance
+	 *
+	 * @see #loadGraph(javax.persistence.EntityGraph)
+	 */
+	public TinyQuery<T> loadGraph(String graphName) {
+
+		return applyGraph(LOAD_GRAPH, graphName);
+	}
+
+	private TinyQuery<T> applyGraph(String hint, Object graph) {
+
+		require(Verb.SELECT, "an entity graph must be applied after select()");
+		if(graph == null) {
+			throw new IllegalArgumentException("entity graph must not be null");
+		}
+		this.graphHint = hint;
+		this.graph = graph;
+		return this;
+	}
+
+	/**
+	 * Distinguish the query result. This will add DISTINCT keyword to the query. Can be invoked
+	 * anywhere before retrieving the result.
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> distinct() {
+
+		require(Verb.SELECT, "distinct() must be invoked after select()");
+
+		distinct = true;
+		return this;
+	}
+
+	/**
+	 * Add predicates to the restriction(the WHERE clause).
+	 * Safe for multiple invocation, in this case the predicates are conjoined with AND.
+	 *
+	 * @param predicates
+	 * 		the restriction conditions
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> where(TinyPredicate... predicates) {
+
+		and(predicates);
+		return this;
+	}
+
+	/**
+	 * Conjoin the predicates with AND then with the previous predicates.
+	 *
+	 * @param predicates
+	 * 		the restriction conditions, multiple predicates will be conjoined with AND.
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> and(TinyPredicate... predicates) {
+
+		if(predicates == null || predicates.length == 0) {
+			return this;
+		}
+
+		checkPredicates(predicates);
+
+		TinyPredicate merged = TinyPredicate.and(predicates).normalize(ignoreNullParameter);
+		if(merged != null) {
+			restrictions.add(new Restriction(" AND ", merged));
+		}
+		return this;
+	}
+
+
+	/**
+	 * Conjoin the predicates and the previous predicates with OR.
+	 *
+	 * @param predicates
+	 * 		the restriction conditions, multiple predicates will be conjoined with AND.
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> or(TinyPredicate... predicates) {
+
+		if(predicates == null || predicates.length == 0) {
+			return this;
+		}
+
+		checkPredicates(predicates);
+
+		TinyPredicate merged = TinyPredicate.and(predicates).normalize(ignoreNullParameter);
+		if(merged != null) {
+			restrictions.add(new Restriction(" OR ", merged));
+		}
+		return this;
+	}
+
+	/**
+	 * Add an ORDER BY clause for the columns from joined tables.
+	 * For multiple invocation the clauses will be added successively.
+	 *
+	 * @param alias
+	 * 		alias of the joined table
+	 * @param column
+	 * 		column to apply
+	 * @param orderType
+	 * 		asc or desc
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> orderBy(String alias, String column, OrderType orderType) {
+
+		require(Verb.SELECT, "orderBy() must be invoked after select()");
+
+		if(orderByClause.length() == 0) {
+			orderByClause.append(" ORDER BY ");
+		} else {
+			orderByClause.append(",");
+		}
+		orderByClause.append(Aggregate.render(alias == null ? TABLE_ALIAS : alias, column))
+		             .append(" ").append(orderType);
+		sortKeys.add(new SortKey(alias, column, orderType));
+		return this;
+	}
+
+	/**
+	 * Add an ORDER BY clause. For multiple invocation the clauses will be added successively.
+	 *
+	 * @param column
+	 * 		column to apply
+	 * @param orderType
+	 * 		asc or desc
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> orderBy(String column, OrderType orderType) {
+
+		return orderBy(null, column, orderType);
+	}
+
+	/**
+	 * Restrict the query to the rows after the cursor of a keyset page for keyset pagination.
+	 * The cursor holds the values of the ORDER BY columns of the last row of the previous
+	 * page, so the database can seek to the next row through an index instead of scanning
+	 * and discarding the rows of all the previous pages. It must be invoked after all
+	 * <code>orderBy()</code>.
+	 *
+	 * @param cursor
+	 * 		the cursor of the previous page, null for the first page.
+	 *
+	 * @return the same TinyQuery instance
+	 *
+	 * @see #getKeysetPage(int)
+	 */
+	public TinyQuery<T> seekAfter(String cursor) {
+
+		if(cursor == null) {
+			return this;
+		}
+		return seekAfterValues(KeysetCursor.decode(cursor));
+	}
+
+	/**
+	 * Restrict the query to the rows after the row with the given values of the ORDER BY
+	 * columns. For <code>ORDER BY a ASC, b DESC</code> it adds
+	 * <code>a &gt;= :a AND (a &gt; :a OR (a = :a AND b &lt; :b))</code>.
+	 * The ORDER BY columns must not be null and the last of them should be unique, e.g. the
+	 * id, so that no row is skipped.
+	 *
+	 * @param values
+	 * 		values of the ORDER BY columns of the last row of the previous page
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> seekAfterValues(Object... values) {
+
+		require(Verb.SELECT, "seekAfter() must be invoked after select()");
+		if(sortKeys.isEmpty()) {
+			throw new IllegalStateException("seekAfter() must be invoked after orderBy()");
+		}
+		if(values == null || values.length != sortKeys.size()) {
+			throw new IllegalArgumentException("seekAfter() requires " + sortKeys.size()
+					+ " values, one for each ORDER BY column");
+		}
+
+		TinyPredicate[] alternatives = new TinyPredicate[values.length];
+		for(int i = 0; i < values.length; i++) {
+			if(values[i] == null) {
+				throw new IllegalArgumentException("ORDER BY column " + sortKeys.get(i).column
+						+ " of the cursor must not be null");
+			}
+			TinyPredicate[] conjuncts = new TinyPredicate[i + 1];
+			for(int j = 0; j < i; j++) {
+				SortKey key = sortKeys.get(j);
+				conjuncts[j] = TinyPredicate.equal(key.alias, key.column, values[j]);
+			}
+			SortKey key = sortKeys.get(i);
+			conjuncts[i] = key.orderType == OrderType.DESC
+			               ? TinyPredicate.lessThan(key.alias, key.column, values[i])
+			               : TinyPredicate.greaterThan(key.alias, key.column, values[i]);
+			alternatives[i] = TinyPredicate.and(conjuncts);
+		}
+		TinyPredicate seek = TinyPredicate.or(alternatives);
+		if(values.length > 1) {
+			// a plain range on the first column lets the database seek through its index
+			SortKey first = sortKeys.get(0);
+			TinyPredicate range = first.orderType == OrderType.DESC
+			                      ? TinyPredicate.lessThanOrEqual(first.alias, first.column, values[0])
+			                      : TinyPredicate.greaterThanOrEqual(first.alias, first.column,
+					values[0]);
+			seek = TinyPredicate.and(range, seek);
+		}
+		seekPredicate = seek.normalize(false);
+		return this;
+	}
+
+	/**
+	 * Add GROUP BY clause for the columns from joined tables.
+	 * For multiple invocation the clauses will be added successively.
+	 *
+	 * @param alias
+	 * 		alias of the joined table
+	 * @param column
+	 * 		column to apply
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> groupBy(String alias, String column) {
+
+		require(Verb.SELECT, "groupBy() must be invoked after select()");
+
+		if(groupByClause.length() == 0) {
+			groupByClause.append(" GROUP BY ");
+		} else {
+			groupByClause.append(",");
+		}
+		if(alias == null) {
+			groupByClause.append(TABLE_ALIAS);
+		} else {
+			groupByClause.append(alias);
+		}
+		groupByClause.append(".").append(column).append(" ");
+		return this;
+	}
+
+	/**
+	 * Add an GROUP BY clause. Multiple invocation will be added successively.
+	 * </code>
+	 *
+	 * @param column
+	 * 		column to apply
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> groupBy(String column) {
+
+		return groupBy(null, column);
+	}
+
+	/**
+	 * Add predicates to the HAVING clause, usually on aggregates written in place of the
+	 * column, e.g. <code>having(greaterThan("count(*)", 1L))</code>. The values must be of the
+	 * type of the aggregate, e.g. Long for the count or the sum of an integral column.
+	 * Safe for multiple invocation, in this case the predicates are conjoined with AND.
+	 *
+	 * @param predicates
+	 * 		the restriction conditions of the groups
+	 *
+	 * @return the same TinyQuery instance
+	 *
+	 * @see org.triiskelion.tinyspring.dao.Aggregate
+	 */
+	public TinyQuery<T> having(TinyPredicate... predicates) {
+
+		require(Verb.SELECT, "having() must be invoked after select()");
+		if(predicates == null || predicates.length == 0) {
+			return this;
+		}
+
+		checkPredicates(predicates);
+
+		TinyPredicate merged = TinyPredicate.and(predicates).normalize(ignoreNullParameter);
+		if(merged != null) {
+			havingPredicate = havingPredicate == null
+			                  ? merged
+			                  : TinyPredicate.and(havingPredicate, merged);
+		}
+		return this;
+	}
+	//
+	// END structural JPQL query
+	////////////////////////////////////////////////////////////////////////////////////////
+
+
+	////////////////////////////////////////////////////////////////////////////////////////
+	// BEGIN raw JPQL query
+	//
+
+	/**
+	 * Set the JPQL query. Invoking this method will discard all precedent queries.
+	 *
+	 * @param jpql
+	 * 		the JPQL expression
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> query(String jpql) {
+
+		if(jpql.toLowerCase().contains("update")) {
+			verb = Verb.UPDATE;
+		} else if(jpql.toLowerCase().contains("delete")) {
+			verb = Verb.DELETE;
+		} else if(jpql.toLowerCase().contains("select")) {
+			verb = Verb.SELECT;
+		} else {
+			throw new IllegalArgumentException("Statement must contain select update or delete");
+		}
+		jpqlExp.append(jpql);
+
+		return this;
+	}
+
+	/**
+	 * Add a positional parameter
+	 *
+	 * @param position
+	 * 		the position marked in the JPQL expression.
+	 * @param value
+	 * 		the value of the parameter
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> param(int position, Object value) {
+
+		positionalParameters.put(position, value);
+		return this;
+	}
+
+	/**
+	 * add a named parameter
+	 *
+	 * @param name
+	 * 		the name marked in the JPQL expression.
+	 * @param value
+	 * 		the value of the parameter
+	 *
+	 * @return the same TinyQuery instance
+	 */
+	public TinyQuery<T> param(String name, Object value) {
+
+		namedParameters.put(name, value);
+		return this;
+	}
+	//
+	// END raw JPQL query
+	////////////////////////////////////////////////////////////////////////////////////////
+
+
+	////////////////////////////////////////////////////////////////////////////////////////
+	// BEGIN Result retrieving
+	//
+
+	/**
+	 * Execute an update or delete statement
+	 *
+	 * @return the number of entities updated or deleted
+	 */
+	public int execute() {
+
+		require(Verb.UPDATE | Verb.DELETE, "execute() must be invoked after update() or delete()");
+		TinyPredicate inList = findChunkedInList();
+		int result;
+		if(inList != null) {
+			result = (int) executeChunked(inList, Operation.UPDATE);
+		} else {
+			result = createQuery().executeUpdate();
+		}
+		evictCaches(entityManager, entityClass);
+		return result;
+	}
+
+	/**
+	 * Count the query's result.
+	 * <p/>
+	 * A query with GROUP BY, HAVING, aggregates in the select list or DISTINCT over multiple
+	 * columns can not be counted by a JPQL count query, since JPQL has no subquery in the FROM
+	 * clause. Its rows are then read and counted: a constant instead of the select list where
+	 * it does not change the number of rows, without ORDER BY and FETCH. The cost grows with
+	 * the number of rows, e.g. of groups, but not with the entities of a row.
+	 *
+	 * @return number of the result
+	 */
+	public long count() {
+
+		require(Verb.SELECT, "count() must be invoked after select()");
+		TinyPredicate inList = findChunkedInList();
+		if(inList != null) {
+			return (long) executeChunked(inList, Operation.COUNT);
+		}
+		CompiledJpql compiled = compile(true);
+		if(compiled.jpql == null) {
+			return createQuery(compileResultRows()).getResultList().size();
+		}
+		return (long) createQuery(compiled).getSingleResult();
+	}
+
+	/**
+	 * Sum a column of the query's result in the database.
+	 *
+	 * @param column
+	 * 		the column
+	 *
+	 * @return the sum, of the type chosen by JPQL for the column: Long for integral types,
+	 * Double for floating point types, BigDecimal or BigInteger. Null if there is no row.
+	 */
+	public Number sum(String column) {
+
+		return (Number) aggregate(Aggregate.SUM.of(column));
+	}
+
+	/**
+	 * Average a column of the query's result in the database.
+	 *
+	 * @param column
+	 * 		the column
+	 *
+	 * @return the average, null if there is no row.
+	 */
+	public Double avg(String column) {
+
+		return (Double) aggregate(Aggregate.AVG.of(column));
+	}
+
+	/**
+	 * @param column
+	 * 		the column
+	 *
+	 * @return the minimum value of a column of the query's result, null if there is no row.
+	 */
+	@SuppressWarnings("unchecked")
+	public <V> V min(String column) {
+
+		return (V) aggregate(Aggregate.MIN.of(column));
+	}
+
+	/**
+	 * @param column
+	 * 		the column
+	 *
+	 * @return the maximum value of a column of the query's result, null if there is no row.
+	 */
+	@SuppressWarnings("unchecked")
+	public <V> V max(String column) {
+
+		return (V) aggregate(Aggregate.MAX.of(column));
+	}
+
+	/**
+	 * @param column
+	 * 		the column
+	 *
+	 * @return number of distinct non null values of a column of the query's result
+	 */
+	public long countDistinct(String column) {
+
+		return ((Number) aggregate(Aggregate.COUNT_DISTINCT.of(column))).longValue();
+	}
+
+	/**
+	 * Compute an aggregate over the rows of the query, ignoring its ORDER BY, DISTINCT,
+	 * pagination and selected columns.
+	 *
+	 * @throws IllegalStateException
+	 * 		if the query is grouped, or restricted by an IN list executed in chunks
+	 */
+	private Object aggregate(String aggregate) {
+
+		require(Verb.SELECT, "aggregates must be computed after select()");
+		if(groupByClause.length() > 0) {
+			throw new IllegalStateException("grouped aggregates must be computed by aggregateBy()");
+		}
+		if(findChunkedInList() != null) {
+			throw new IllegalStateException(
+					"aggregates can not be computed over an IN list executed in chunks");
+		}
+		String[] selected = selectedColumns;
+		DtoProjection selectedProjection = projection;
+		boolean wasDistinct = distinct;
+		String orderBy = orderByClause.toString();
+		try {
+			selectedColumns = new String[]{ aggregate };
+			projection = null;
+			distinct = false;
+			orderByClause.setLength(0);
+			return createQuery(compile(false)).getSingleResult();
+		} finally {
+			selectedColumns = selected;
+			projection = selectedProjection;
+			distinct = wasDistinct;
+			orderByClause.append(orderBy);
+		}
+	}
+
+	/**
+	 * Group the query's result by a column and compute an aggregate of each group in the
+	 * database. The HAVING clause, ORDER BY and pagination of the query apply to the groups,
+	 * so the top groups are found by ordering by the aggregate and limiting, e.g.
+	 * <code>orderBy("count(*)", OrderType.DESC).limit(0, 10).aggregateBy("name",
+	 * Aggregate.COUNT, "*")</code>.
+	 *
+	 * @param keyColumn
+	 * 		the column to group by
+	 * @param aggregate
+	 * 		the aggregate function
+	 * @param column
+	 * 		the aggregated column, <code>*</code> to count the rows
+	 *
+	 * @return the aggregate of each key, in the order of the query
+	 *
+	 * @throws IllegalStateException
+	 * 		if the query is already grouped, or restricted by an IN list executed in chunks
+	 */
+	@SuppressWarnings("unchecked")
+	public <K, V> LinkedHashMap<K, V> aggregateBy(String keyColumn, Aggregate aggregate,
+	                                             String column) {
+
+		require(Verb.SELECT, "aggregateBy() must be invoked after select()");
+		if(groupByClause.length() > 0) {
+			throw new IllegalStateException("aggregateBy() groups the query by itself");
+		}
+		if(findChunkedInList() != null) {
+			throw new IllegalStateException(
+					"aggregates can not be computed over an IN list executed in chunks");
+		}
+		String[] selected = selectedColumns;
+		DtoProjection selectedProjection = projection;
+		boolean wasDistinct = distinct;
+		List<Object[]> rows;
+		try {
+			selectedColumns = new String[]{ keyColumn, aggregate.of(column) };
+			projection = null;
+			distinct = false;
+			groupByClause.append(" GROUP BY ").append(resolveColumn(keyColumn)).append(" ");
+			rows = (List<Object[]>) fetchResultList();
+		} finally {
+			selectedColumns = selected;
+			projection = selectedProjection;
+			distinct = wasDistinct;
+			groupByClause.setLength(0);
+		}
+		LinkedHashMap<K, V> result = new LinkedHashMap<>();
+		for(Object[] row : rows) {
+			result.put((K) row[0], (V) row[1]);
+		}
+		return result;
+	}
+
+	/**
+	 * Count the query's result per value of each facet column, e.g. per status and per
+	 * category next to the results of a search page. Each facet is counted by one grouped
+	 * query with the restrictions of the query. Its ORDER BY, DISTINCT, HAVING and
+	 * pagination are ignored.
+	 * <p/>
+	 * The facet queries run concurrently on the executor of <code>parallel()</code> if the
+	 * query is allowed to. If <code>cacheCount()</code> is on, the counts of a facet are
+	 * kept in the count cache, keyed by the facet query and the values of its predicates, and
+	 * evicted as the totals are.
+	 *
+	 * @param columns
+	 * 		the facet columns
+	 *
+	 * @return for each facet column the number of rows of each value, most frequent first,
+	 * ties ordered by value
+	 *
+	 * @throws IllegalStateException
+	 * 		if the query is grouped, or restricted by an IN list executed in chunks
+	 */
+	@SuppressWarnings("unchecked")
+	public LinkedHashMap<String, LinkedHashMap<Object, Long>> facets(String... columns) {
+
+		require(Verb.SELECT, "facets() must be invoked after select()");
+		if(groupByClause.length() > 0) {
+			throw new IllegalStateException("facets() groups the query by itself");
+		}
+		if(findChunkedInList() != null) {
+			throw new IllegalStateException(
+					"facets can not be counted over an IN list executed in chunks");
+		}
+
+		List<Statement> statements = createFacetStatements(columns);
+		EntityManagerFactory entityManagerFactory = entityManager.getEntityManagerFactory();
+		boolean cached = cacheCount && !hasPendingEvictions(entityManager);
+		List<List<Object>> keys = new ArrayList<>(columns.length);
+		Object[] counts = new Object[columns.length];
+		List<Statement> missed = new ArrayList<>();
+		for(int i = 0; i < columns.length; i++) {
+			Statement statement = statements.get(i);
+			keys.add(Arrays.<Object>asList(getFactoryId(entityManagerFactory), statement.jpql,
+					statement.namedParameters, new HashMap<>(statement.positionalParameters)));
+			counts[i] = cached ? countCache.getValue(keys.get(i)) : null;
+			if(counts[i] == null) {
+				missed.add(statement);
+			}
+		}
+
+		if(!missed.isEmpty()) {
+			long generation = countCache.generation();
+			List<Object> results = executeStatements(missed, Operation.LIST);
+			Set<Class<?>> entityClasses = new HashSet<>();
+			collectEntityClasses(entityClasses);
+			for(int i = 0, j = 0; i < columns.length; i++) {
+				if(counts[i] != null) {
+					continue;
+				}
+				LinkedHashMap<Object, Long> facet = new LinkedHashMap<>();
+				for(Object[] row : (List<Object[]>) results.get(j++)) {
+					facet.put(row[0], (Long) row[1]);
+				}
+				counts[i] = facet;
+				if(cached) {
+					countCache.putValue(keys.get(i), facet, entityClasses, generation);
+				}
+			}
+		}
+
+		LinkedHashMap<String, LinkedHashMap<Object, Long>> result = new LinkedHashMap<>();
+		for(int i = 0; i < columns.length; i++) {
+			// the cached counts are shared
+			result.put(columns[i], new LinkedHashMap<>((Map<Object, Long>) counts[i]));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the grouped count query of each facet column
+	 */
+	private List<Statement> createFacetStatements(String[] columns) {
+
+		String[] selected = selectedColumns;
+		DtoProjection selectedProjection = projection;
+		boolean wasDistinct = distinct;
+		TinyPredicate having = havingPredicate;
+		String orderBy = orderByClause.toString();
+		List<Statement> statements = new ArrayList<>(columns.length);
+		try {
+			projection = null;
+			distinct = false;
+			havingPredicate = null;
+			for(String column : columns) {
+				String path = resolveColumn(column);
+				selectedColumns = new String[]{ column, Aggregate.COUNT.of("*") };
+				groupByClause.setLength(0);
+				groupByClause.append(" GROUP BY ").append(path).append(" ");
+				orderByClause.setLength(0);
+				orderByClause.append(" ORDER BY ").append(resolveColumn(Aggregate.COUNT.of("*")))
+				             .append(" DESC,").append(path).append(" ASC");
+				Statement statement = createStatement(false);
+				statement.hints.keySet().removeAll(getFetchHints().keySet());
+				statements.add(statement);
+			}
+		} finally {
+			selectedColumns = selected;
+			projection = selectedProjection;
+			distinct = wasDistinct;
+			havingPredicate = having;
+			groupByClause.setLength(0);
+			orderByClause.setLength(0);
+			orderByClause.append(orderBy);
+		}
+		return statements;
+	}
+
+	/**
+	 * Count the query's result, approximately if the approximate count mode is on and the
+	 * count reaches its threshold. Otherwise the count is exact.
+	 *
+	 * @return the count and whether it is exact
+	 *
+	 * @see #approximateCount(long)
+	 */
+	public CountEstimate estimateCount() {
+
+		require(Verb.SELECT, "estimateCount() must be invoked after select()");
+		if(approximateThreshold <= 0 || findChunkedInList() != null) {
+			return new CountEstimate(count(), CountEstimate.Kind.EXACT);
+		}
+		CompiledJpql compiled = compile(true);
+		if(compiled.jpql != null && rowCountEstimator != null
+				&& CountQueryRewriter.isUnfiltered(compiled.jpql)) {
+			Long estimate = rowCountEstimator.estimate(entityManager, entityClass);
+			if(estimate != null && estimate >= approximateThreshold) {
+				return new CountEstimate(estimate, CountEstimate.Kind.ESTIMATED);
+			}
+		}
+		long count = cappedCount(approximateThreshold);
+		return count > approximateThreshold
+		       ? new CountEstimate(approximateThreshold, CountEstimate.Kind.AT_LEAST)
+		       : new CountEstimate(count, CountEstimate.Kind.EXACT);
+	}
+
+	/**
+	 * Count the query's result up to a cap. The rows are read without ORDER BY and the
+	 * database stops after the cap, so the cost is bounded whatever the size of the result.
+	 *
+	 * @param cap
+	 * 		the maximum number of rows to count
+	 *
+	 * @return the number of rows, <code>cap + 1</code> if there are more than <code>cap
+	 * </code>
+	 */
+	protected long cappedCount(long cap) {
+
+		int maxResults = (int) Math.min(cap + 1, Integer.MAX_VALUE);
+		CompiledJpql compiled = compile(true);
+		Query query;
+		if(compiled.jpql == null) {
+			query = createQuery(compileResultRows());
+		} else {
+			query = createQuery(new CompiledJpql(CountQueryRewriter.toRowQuery(compiled.jpql),
+					compiled.parameterNames));
+		}
+		return query.setMaxResults(maxResults).getResultList().size();
+	}
+
+	/**
+	 * Check if query has no result
+	 *
+	 * @return TRUE if query has no result, FALSE otherwise.
+	 */
+	public boolean hasNoResult() {
+
+		require(Verb.SELECT, "hasNoResult() must be invoked after select()");
+		return !hasResult();
+	}
+
+	/**
+	 * Check if query has result. Instead of counting the result the query selects a constant
+	 * with the joins of the count query, without ORDER BY and with a maximum of one row, so
+	 * the database can stop at the first matching row and no entity is loaded.
+	 *
+	 * @return TRUE if query has result, FALSE otherwise.
+	 */
+	public boolean hasResult() {
+
+		require(Verb.SELECT, "hasResult() must be invoked after select()");
+		String orderBy = orderByClause.toString();
+		orderByClause.setLength(0);
+		// aggregates without GROUP BY have a row even without a matching row
+		probe = !isAggregateSelect();
+		try {
+			TinyPredicate inList = findChunkedInList();
+			if(inList != null) {
+				return (boolean) executeChunked(inList, Operation.EXISTS);
+			}
+			return !createQuery().setMaxResults(1).getResultList().isEmpty();
+		} finally {
+			probe = false;
+			orderByClause.append(orderBy);
+		}
+	}
+
+	/**
+	 * Build the query of <code>hasResult()</code> for a prepared query.
+	 *
+	 * @return the built JPQL and its predicate parameter names
+	 */
+	CompiledJpql compileProbe() {
+
+		String orderBy = orderByClause.toString();
+		orderByClause.setLength(0);
+		probe = !isAggregateSelect();
+		try {
+			return compile(false);
+		} finally {
+			probe = false;
+			orderByClause.append(orderBy);
+		}
+	}
+
+	/**
+	 * @return TRUE if the query selects aggregates without GROUP BY, whose result is a single
+	 * row in any case.
+	 */
+	private boolean isAggregateSelect() {
+
+		if(selectedColumns == null || groupByClause.length() > 0) {
+			return false;
+		}
+		for(String column : selectedColumns) {
+			if(Aggregate.split(column) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * This method executes the JPA query and return the result of <code>getSingleResult()</code>.
+	 * The returned value is untyped.
+	 *
+	 * @return the untyped result
+	 *
+	 * @see javax.persistence.Query#getSingleResult()
+	 */
+	public Object getSingleResult() {
+
+		require(Verb.SELECT, "getSingleResult() must be invoked after select()");
+		Query query = createQuery();
+		applyHints(query, getFetchHints());
+		return query.getSingleResult();
+	}
+
+	/**
+	 * Execute a SELECT query and return the query's first result.
+	 * The result is wrapped by com.google.common.base.Optional object.
+	 *
+	 * @return first element of the result list.
+	 */
+	public Optional<T> getFirstResult() {
+
+		require(Verb.SELECT, "getFirstResult() must be invoked after select()");
+		List<T> result = this.limit(0, 1).getResultList();
+		return result.size() > 0 ? Optional.of(result.get(0)) : Optional.<T>absent();
+	}
+
+	/**
+	 * Limit the number of the results based on page number.
+	 * Null parameters will be ignored quietly.
+	 *
+	 * @param page
+	 * 		page numbered from 1, nullable
+	 * @param numberPerPage
+	 * 		maximum number to retrieve, nullable
+	 *
+	 * @return the same TinyQuery instance
+	 *
+	 * @see javax.persistence.Query#setFirstResult(int)
+	 * @see javax.persistence.Query#setMaxResults(int)
+	 */
+	public TinyQuery<T> page(Integer page, Integer numberPerPage) {
+
+		require(Verb.SELECT, "page() must be invoked after select()");
+		if(page != null && numberPerPage != null) {
+			this.pageNumber = page;
+			this.numberPerPage = numberPerPage;
+			this.paged = true;
+
+			this.startRow = (page - 1) * numberPerPage;
+			this.maxRow = numberPerPage;
+		}
+		return this;
+	}
+
+	/**
+	 * Limit the number of the results based on rows.
+	 * Null parameters will be ignored quietly.
+	 *
+	 * @param startRow
+	 * 		position of the first row, numbered from 0, nullable
+	 * @param maxRow
+	 * 		maximum number to retrieve, nullable
+	 *
+	 * @return the same TinyQuery instance
+	 *
+	 * @see javax.persistence.Query#setFirstResult(int)
+	 * @see javax.persistence.Query#setMaxResults(int)
+	 */
+	public TinyQuery<T> limit(Integer startRow, Integer maxRow) {
+
+		require(Verb.SELECT, "limit() must be invoked after select()");
+		if(startRow != null && maxRow != null) {
+			this.startRow = startRow;
+			this.maxRow = maxRow;
+			this.paged = false;
+		}
+		return this;
+	}
+
+	/**
+	 * Execute a SELECT query and return the query results as an List.
+	 *
+	 * @return the typed result list
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> getResultList() {
+
+		require(Verb.SELECT, "getResultList() must be invoked after select()");
+		return (List<T>) fetchResultList();
+	}
+
+	/**
+	 * Execute a SELECT query and return the query results as an List.<br>
+	 * The result will be cast into the type given by parameter.
+	 *
+	 * @return the typed result list
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> List<R> getResultList(Class<R> clazz) {
+
+		require(Verb.SELECT, "getResultList() must be invoked after select()");
+		return (List<R>) fetchResultList();
+	}
+
+	/**
+	 * Execute the SELECT statement and return the results wrapped in a Page object.
+	 * Only available after invoking <code>page()</code>.
+	 * <p/>
+	 * The total is taken from the count cache with <code>cacheCount()</code>, otherwise it is
+	 * counted, approximately with <code>approximateCount()</code>, where only exact totals
+	 * are cached. An approximate count is bounded by its threshold and runs on the calling
+	 * thread even with <code>concurrentCount()</code>.
+	 *
+	 * @return results wrapped in a Page object.
+	 *
+	 * @see org.triiskelion.tinyspring.viewmodel.Page
+	 */
+	@SuppressWarnings("unchecked")
+	public Page<T> getPagedResult() {
+
+		require(Verb.SELECT, "getPagedResult() must be invoked after select()");
+		if(!paged) {
+			throw new IllegalStateException("Query is not paged. call page() first.");
+		}
+		List<Object> key = null;
+		long generation = 0;
+		if(cacheCount && !hasPendingEvictions(entityManager)) {
+			key = createCountKey();
+			Long cached = countCache.get(key);
+			if(cached != null) {
+				return new Page<>(getResultList(), pageNumber, numberPerPage, cached, true);
+			}
+			generation = countCache.generation();
+		}
+
+		long total;
+		boolean exact = true;
+		List<T> result;
+		if(approximateThreshold > 0) {
+			if(countExecutor != null) {
+				log.debug("Approximate count runs on the calling thread, concurrentCount() "
+						+ "is not applied.");
+			}
+			CountEstimate estimate = estimateCount();
+			total = estimate.getValue();
+			exact = estimate.isExact();
+			result = getResultList();
+		} else {
+			Future<Object> future = submitCount();
+			if(future == null) {
+				total = count();
+				result = getResultList();
+			} else {
+				try {
+					result = (List<T>) fetchResultList();
+				} catch(RuntimeException e) {
+					future.cancel(true);
+					throw e;
+				}
+				total = awaitCount(future);
+			}
+		}
+
+		if(key != null && exact) {
+			Set<Class<?>> entityClasses = new HashSet<>();
+			collectEntityClasses(entityClasses);
+			countCache.put(key, total, entityClasses, generation);
+		}
+		return new Page<>(result, pageNumber, numberPerPage, total, false, exact);
+	}
+
+	/**
+	 * Execute the SELECT statement and return the results wrapped in a Page object.
+	 * Only available after invoking <code>page()</code>.<br>
+	 * The result will be cast into the type given by parameter.
+	 *
+	 * @param clazz
+	 * 		class to cast
+	 *
+	 * @return results wrapped in a Page object.
+	 *
+	 * @see org.triiskelion.tinyspring.viewmodel.Page
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> Page<R> getPagedResult(Class<R> clazz) {
+
+		return (Page<R>) getPagedResult();
+	}
+
+	/**
+	 * The key of the total in the count cache: the count query and its values, without the
+	 * paging.
+	 */
+	protected List<Object> createCountKey() {
+
+		CompiledJpql compiled = compile(true);
+		String jpql = compiled.jpql != null ? compiled.jpql : compile(false).jpql;
+		return Arrays.<Object>asList(getFactoryId(entityManager.getEntityManagerFactory()), jpql,
+				new HashMap<>(namedParameters), new HashMap<>(positionalParameters));
+	}
+
+	/**
+	 * Collect the entity classes the query reads from, so that its cached total is evicted
+	 * when one of them is modified.
+	 *
+	 * @param result
+	 * 		the set to add the classes to
+	 */
+	void collectEntityClasses(Set<Class<?>> result) {
+
+		result.add(entityClass);
+		if(fromEntity != null) {
+			result.add(fromEntity.getEntityClass());
+		}
+		for(Object joined : aliasMap.keySet()) {
+			result.add((Class<?>) joined);
+		}
+		for(Join join : joins) {
+			// the entity of a path is unknown, LEFT JOIN FETCH does not affect the count
+			if(join.alias == null && join.type.equals(" JOIN FETCH ")) {
+				result.add(CountCache.ANY_ENTITY);
+			}
+		}
+		for(Restriction restriction : restrictions) {
+			restriction.predicate.collectEntityClasses(result);
+		}
+	}
+
+	/**
+	 * Collect the names of the NamedParameters of the WHERE, HAVING and seek predicates,
+	 * those of the subqueries included.
+	 *
+	 * @param result
+	 * 		the set to add the names to
+	 */
+	void collectNamedParameters(Set<String> result) {
+
+		for(Restriction restriction : restrictions) {
+			restriction.predicate.collectNamedParameters(result);
+		}
+		if(havingPredicate != null) {
+			havingPredicate.collectNamedParameters(result);
+		}
+		if(seekPredicate != null) {
+			seekPredicate.collectNamedParameters(result);
+		}
+	}
+
+	/**
+	 * Submit the count query to the count executor if the count can run concurrently.
+	 *
+	 * @return the future count, null if the count must run sequentially
+	 */
+	protected Future<Object> submitCount() {
+
+		if(countExecutor == null || findChunkedInList() != null || !isOutsideTransaction()) {
+			return null;
+		}
+		Statement statement = createStatement(true);
+		if(countTimeout > 0 && !statement.hints.containsKey(TIMEOUT)) {
+			statement.hints.put(TIMEOUT, (int) Math.min(countTimeout, Integer.MAX_VALUE));
+		}
+		return countExecutor.submit(new StatementTask(entityManager.getEntityManagerFactory(),
+				statement, Operation.COUNT));
+	}
+
+	/**
+	 * Wait for the count query submitted by <code>submitCount()</code>.
+	 *
+	 * @return the count
+	 */
+	protected long awaitCount(Future<Object> total) {
+
+		try {
+			return (long) (countTimeout > 0 ? total.get(countTimeout, TimeUnit.MILLISECONDS)
+			                                : total.get());
+		} catch(TimeoutException e) {
+			throw new QueryTimeoutException("count query did not complete in " + countTimeout
+					+ " ms", e);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while executing the query", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			total.cancel(true);
+		}
+	}
+
+	/**
+	 * Execute the SELECT statement and return the results wrapped in a Slice object.
+	 * One more row than the page size is fetched to tell whether there is a next page, so
+	 * unlike <code>getPagedResult()</code> no count query is executed.
+	 * Only available after invoking <code>page()</code> or <code>limit()</code>.
+	 *
+	 * @return results wrapped in a Slice object.
+	 *
+	 * @see org.triiskelion.tinyspring.viewmodel.Slice
+	 */
+	@SuppressWarnings("unchecked")
+	public Slice<T> getSlice() {
+
+		require(Verb.SELECT, "getSlice() must be invoked after select()");
+		if(startRow < 0 || maxRow < 0) {
+			throw new IllegalStateException("Query is not paged. call page() first.");
+		}
+		List<T> result;
+		int size = maxRow;
+		maxRow = size + 1;
+		lookahead = 1;
+		try {
+			result = (List<T>) fetchResultList();
+		} finally {
+			maxRow = size;
+			lookahead = 0;
+		}
+		long page = paged ? pageNumber : (size > 0 ? startRow / size + 1 : 1);
+		if(result.size() <= size) {
+			return new Slice<>(result, page, size, false);
+		}
+		return new Slice<>(new ArrayList<>(result.subList(0, size)), page, size, true);
+	}
+
+	/**
+	 * Execute the SELECT statement and return the results wrapped in a Slice object.
+	 * Only available after invoking <code>page()</code> or <code>limit()</code>.<br>
+	 * The result will be cast into the type given by parameter.
+	 *
+	 * @param clazz
+	 * 		class to cast
+	 *
+	 * @return results wrapped in a Slice object.
+	 *
+	 * @see #getSlice()
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> Slice<R> getSlice(Class<R> clazz) {
+
+		return (Slice<R>) getSlice();
+	}
+
+	/**
+	 * Process the result of the SELECT query chunk by chunk, so that the memory used does
+	 * not depend on the size of the result. After each chunk of entities is handled the
+	 * entity manager is cleared, which detaches every entity it manages, not only those of
+	 * the chunk. Outside a transaction unflushed changes are discarded by the clear; in a
+	 * transaction they are flushed first, so entities managed before the call should not be
+	 * used afterwards but found again.
+	 * <p/>
+	 * An entity is walked by keyset: each chunk is selected after the last row of the
+	 * previous one, in the order of the query with the id as the last ORDER BY column, so the
+	 * cost of a chunk does not depend on its position. Selected columns are walked by keyset
+	 * too if they include the id and the ORDER BY columns. A row whose ORDER BY column is NULL
+	 * can not be sought, and databases differ on where NULLs are sorted, so the result is
+	 * walked by offset if an ORDER BY column is nullable. It should then be ordered by a
+	 * unique column. <code>page()</code> and <code>limit()</code> are ignored.
+	 *
+	 * @param chunkSize
+	 * 		maximum number of rows of a chunk
+	 * @param handler
+	 * 		the handler of the chunks
+	 *
+	 * @return number of rows handled
+	 *
+	 * @see #stream(int)
+	 */
+	public long forEachChunk(int chunkSize, ChunkHandler<T> handler) {
+
+		require(Verb.SELECT, "forEachChunk() must be invoked after select()");
+		ChunkCursor cursor = new ChunkCursor(chunkSize);
+		long rows = 0;
+		List<T> chunk;
+		while(!(chunk = cursor.next()).isEmpty()) {
+			rows += chunk.size();
+			boolean proceed = handler.handle(chunk);
+			cursor.release(chunk);
+			if(!proceed) {
+				break;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @return TRUE if the query selects from the entity class managed by the query without
+	 * grouping, so its rows can be walked by keyset.
+	 */
+	private boolean isRootSelect() {
+
+		return jpqlExp.length() == 0 && projection == null && selectClass == entityClass
+				&& fromEntity == null && groupByClause.length() == 0
+				&& (selectedColumns == null || !distinct);
+	}
+
+	/**
+	 * @return TRUE if an ORDER BY column may be NULL. Only the id and the attributes of the
+	 * entity which are not optional or are primitive are known not to be.
+	 */
+	private boolean hasNullableSortKey(String idColumn) {
+
+		for(SortKey key : sortKeys) {
+			if(key.alias != null && !key.alias.equals(TABLE_ALIAS)) {
+				return true;
+			}
+			if(key.column.equals(idColumn)) {
+				continue;
+			}
+			try {
+				Attribute<?, ?> attribute = entityManager.getMetamodel().entity(entityClass)
+				                                         .getAttribute(key.column);
+				if(!(attribute instanceof SingularAttribute)
+						|| ((SingularAttribute) attribute).isOptional()
+						&& !attribute.getJavaType().isPrimitive()) {
+					return true;
+				}
+			} catch(IllegalArgumentException e) {
+				// a path or an aggregate
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return TRUE if the selected columns include the id and the ORDER BY columns
+	 */
+	private boolean selectsKeyset(String idColumn) {
+
+		Set<String> columns = new HashSet<>();
+		for(String column : selectedColumns) {
+			columns.add(resolveColumn(column));
+		}
+		if(!columns.contains(TABLE_ALIAS + "." + idColumn)) {
+			return false;
+		}
+		for(SortKey key : sortKeys) {
+			if(!columns.contains((key.alias == null ? TABLE_ALIAS : key.alias) + "." + key.column)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Execute a SELECT query of a numeric column and return its values in a primitive array.
+	 * The rows are fetched chunk by chunk as <code>forEachChunk()</code> does, so no boxed
+	 * value outlives its chunk. <code>page()</code> and <code>limit()</code> are ignored.
+	 *
+	 * @param column
+	 * 		the column
+	 *
+	 * @return the values, NULLs are recorded in the null bitmap
+	 *
+	 * @throws IllegalStateException
+	 * 		if a value is not a number, or not integral: floating point and fractional values
+	 * 		are not truncated, <code>getDoubleColumn()</code> reads them.
+	 */
+	public LongColumn getLongColumn(String column) {
+
+		return getLongColumns(column)[0];
+	}
+
+	/**
+	 * Execute a SELECT query of numeric columns and return their values in primitive arrays.
+	 *
+	 * @param columns
+	 * 		the columns
+	 *
+	 * @return the values of each column in the order of the columns
+	 *
+	 * @see #getLongColumn(String)
+	 */
+	public LongColumn[] getLongColumns(String... columns) {
+
+		LongColumn[] result = new LongColumn[columns.length];
+		for(int i = 0; i < columns.length; i++) {
+			result[i] = new LongColumn(columns[i]);
+		}
+		extractColumns(columns, result);
+		return result;
+	}
+
+	/**
+	 * Execute a SELECT query of a numeric column and return its values in a primitive array.
+	 *
+	 * @param column
+	 * 		the column
+	 *
+	 * @return the values, NULLs are recorded in the null bitmap
+	 *
+	 * @see #getLongColumn(String)
+	 */
+	public DoubleColumn getDoubleColumn(String column) {
+
+		return getDoubleColumns(column)[0];
+	}
+
+	/**
+	 * Execute a SELECT query of numeric columns and return their values in primitive arrays.
+	 *
+	 * @param columns
+	 * 		the columns
+	 *
+	 * @return the values of each column in the order of the columns
+	 *
+	 * @see #getLongColumn(String)
+	 */
+	public DoubleColumn[] getDoubleColumns(String... columns) {
+
+		DoubleColumn[] result = new DoubleColumn[columns.length];
+		for(int i = 0; i < columns.length; i++) {
+			result[i] = new DoubleColumn(columns[i]);
+		}
+		extractColumns(columns, result);
+		return result;
+	}
+
+	/**
+	 * Select the columns, with the id and the ORDER BY columns appended if the rows can be
+	 * walked by keyset, and append their values chunk by chunk to the targets. Aggregates
+	 * without GROUP BY can not be selected with other columns, they are walked by offset.
+	 */
+	private void extractColumns(final String[] columns, final NumericColumn[] targets) {
+
+		require(Verb.SELECT, "columns must be retrieved after select()");
+		if(columns.length == 0) {
+			throw new IllegalArgumentException("no column to retrieve");
+		}
+		String[] selected = selectedColumns;
+		DtoProjection selectedProjection = projection;
+		try {
+			projection = null;
+			selectedColumns = columns;
+			String id = isRootSelect() && !isAggregateSelect() ? getIdColumn() : null;
+			if(id != null) {
+				Set<String> resolved = new HashSet<>();
+				for(String column : columns) {
+					resolved.add(resolveColumn(column));
+				}
+				List<String> keyset = new ArrayList<>(Arrays.asList(columns));
+				for(SortKey key : sortKeys) {
+					if(key.alias != null && !key.alias.equals(TABLE_ALIAS)) {
+						break;
+					}
+					if(resolved.add(TABLE_ALIAS + "." + key.column)) {
+						keyset.add(key.column);
+					}
+				}
+				if(resolved.add(TABLE_ALIAS + "." + id)) {
+					keyset.add(id);
+				}
+				selectedColumns = keyset.toArray(new String[keyset.size()]);
+			}
+			forEachChunk(DEFAULT_CHUNK_SIZE, new ChunkHandler<T>() {
+
+				@Override
+				public boolean handle(List<T> chunk) {
+
+					for(NumericColumn target : targets) {
+						target.ensureCapacity(target.size() + chunk.size());
+					}
+					for(Object row : chunk) {
+						if(row instanceof Object[]) {
+							Object[] values = (Object[]) row;
+							for(int i = 0; i < targets.length; i++) {
+								targets[i].add(values[i]);
+							}
+						} else {
+							targets[0].add(row);
+						}
+					}
+					return true;
+				}
+			});
+		} finally {
+			selectedColumns = selected;
+			projection = selectedProjection;
+		}
+	}
+
+	/**
+	 * Export the result of the SELECT query to a channel as NDJSON or CSV. The rows are fetched
+	 * chunk by chunk as <code>forEachChunk()</code> does and encoded straight into a reusable
+	 * direct buffer, so the memory used does not depend on the size of the result.
+	 * <code>page()</code> and <code>limit()</code> are ignored.
+	 *
+	 * @param format
+	 * 		the format
+	 * @param channel
+	 * 		the channel to write to. It is not closed.
+	 * @param gzip
+	 * 		TRUE to compress the output with gzip
+	 *
+	 * @return number of rows and bytes exported, and the throughput
+	 *
+	 * @throws IOException
+	 * 		if writing to the channel fails
+	 * @throws IllegalStateException
+	 * 		if entities are exported as CSV
+	 */
+	public ExportResult export(ExportFormat format, WritableByteChannel channel, boolean gzip)
+			throws IOException {
+
+		require(Verb.SELECT, "export() must be invoked after select()");
+		long start = System.nanoTime();
+		// closing the gzip stream releases its deflater but leaves the channel open
+		try(GZIPOutputStream gzipStream = gzip ? new GZIPOutputStream(
+				nonClosingStream(channel), RowEncoder.BUFFER_SIZE) : null) {
+			WritableByteChannel target = gzipStream == null ? channel
+			                                                : Channels.newChannel(gzipStream);
+			String[] fields = projection == null ? null : projection.fieldNames;
+			final RowEncoder encoder = new RowEncoder(format,
+					fields == null ? selectedColumns : fields, fields,
+					entityManager.getEntityManagerFactory().getPersistenceUnitUtil(), target);
+			encoder.writeHeader();
+
+			final IOException[] failure = new IOException[1];
+			long rows = forEachChunk(EXPORT_CHUNK_SIZE, new ChunkHandler<T>() {
+
+				@Override
+				public boolean handle(List<T> chunk) {
+
+					try {
+						for(T row : chunk) {
+							encoder.write(row);
+						}
+						return true;
+					} catch(IOException e) {
+						failure[0] = e;
+						return false;
+					}
+				}
+			});
+			if(failure[0] != null) {
+				throw failure[0];
+			}
+			encoder.flush();
+			if(gzipStream != null) {
+				gzipStream.finish();
+			}
+
+			ExportResult result = new ExportResult(rows, encoder.getBytes(),
+					System.nanoTime() - start);
+			log.info("Exported " + result);
+			return result;
+		}
+	}
+
+	/**
+	 * @return a stream writing to the channel whose <code>close()</code> only flushes, so
+	 * that the channel stays open for the caller.
+	 */
+	private static OutputStream nonClosingStream(WritableByteChannel channel) {
+
+		return new FilterOutputStream(Channels.newOutputStream(channel)) {
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+
+				flush();
+			}
+		};
+	}
+
+	/**
+	 * Export the result of the SELECT query to a file, replacing its content.
+	 *
+	 * @see #export(ExportFormat, WritableByteChannel, boolean)
+	 */
+	public ExportResult export(ExportFormat format, Path file, boolean gzip) throws IOException {
+
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			return export(format, channel, gzip);
+		}
+	}
+
+	/**
+	 * Iterate over the result of the SELECT query, fetching it chunk by chunk as
+	 * <code>forEachChunk()</code> does. The entity manager is cleared when the next chunk
+	 * is fetched, flushed first in a transaction.
+	 *
+	 * @param chunkSize
+	 * 		number of rows fetched at once
+	 *
+	 * @return the iterator
+	 *
+	 * @see #forEachChunk(int, ChunkHandler)
+	 */
+	public Iterator<T> stream(final int chunkSize) {
+
+		require(Verb.SELECT, "stream() must be invoked after select()");
+		final ChunkCursor cursor = new ChunkCursor(chunkSize);
+		return new Iterator<T>() {
+
+			private List<T> chunk = Collections.emptyList();
+
+			private int position;
+
+			@Override
+			public boolean hasNext() {
+
+				if(position < chunk.size()) {
+					return true;
+				}
+				cursor.release(chunk);
+				chunk = cursor.next();
+				position = 0;
+				return !chunk.isEmpty();
+			}
+
+			@Override
+			public T next() {
+
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return chunk.get(position++);
+			}
+
+			@Override
+			public void remove() {
+
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Execute a SELECT query and return the query results as an untyped List.
+	 * This method is used to retrieve array result other than entity objects
+	 * like aggregated value or specified columns.
+	 *
+	 * @return a untyped list of the results
+	 *
+	 * @see Query#getResultList()
+	 */
+	public List getUntypedResultList() {
+
+		require(Verb.SELECT, "getUntypedResultList() must be invoked after select()");
+		return fetchResultList();
+	}
+
+	/**
+	 * Execute a SELECT query of specific columns and return the rows as a RowSet, which holds
+	 * the column names once instead of in every row.
+	 *
+	 * @param deduplicatedColumns
+	 * 		string columns with few distinct values whose values should be shared between rows
+	 *
+	 * @return the rows
+	 *
+	 * @see #select(String...)
+	 */
+	public RowSet getRowSet(String... deduplicatedColumns) {
+
+		require(Verb.SELECT, "getRowSet() must be invoked after select()");
+		if(selectedColumns == null || projection != null) {
+			throw new IllegalStateException("getRowSet() must be invoked after select(columns)");
+		}
+		return new RowSet(Arrays.asList(selectedColumns), fetchResultList(), deduplicatedColumns);
+	}
+	//
+	// END Result retrieving
+	////////////////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Compile the query into an immutable PreparedTinyQuery which can be executed many times
+	 * and shared across threads. Values which change on each execution should be declared
+	 * with <code>TinyPredicate.parameter(name)</code> and supplied on execution. Pagination
+	 * is also supplied on execution.
+	 *
+	 * @return the prepared query
+	 *
+	 * @see org.triiskelion.tinyspring.dao.PreparedTinyQuery
+	 * @see org.triiskelion.tinyspring.dao.TinyPredicate#parameter(String)
+	 */
+	public PreparedTinyQuery<T> prepare() {
+
+		return prepare(null);
+	}
+
+	/**
+	 * Compile the query into an immutable PreparedTinyQuery with a name. The name is used
+	 * when the query is registered as a JPA named query and must be unique within the
+	 * persistence unit.
+	 *
+	 * @param name
+	 * 		name of the query, nullable
+	 *
+	 * @return the prepared query
+	 *
+	 * @see #prepare()
+	 * @see org.triiskelion.tinyspring.dao.PreparedTinyQuery#register(javax.persistence.EntityManagerFactory)
+	 */
+	public PreparedTinyQuery<T> prepare(String name) {
+
+		if(verb == 0) {
+			throw new IllegalStateException(
+					"prepare() must be invoked after select(), update(), delete() or query()");
+		}
+		return new PreparedTinyQuery<>(this, name);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////
+	// BEGIN Internal methods
+	//
+
+	protected Query createQuery() {
+
+		return createQuery(false);
+	}
+
+	/**
+	 * Retrieve a page by keyset pagination: the first page, or the page after the cursor set
+	 * by <code>seekAfter()</code>. The query must be ordered by <code>orderBy()</code>:
+	 * <p/>
+	 * <pre>
+	 * KeysetPage&lt;User&gt; page = dao.beginQuery().select()
+	 *                                      .orderBy("created", OrderType.DESC)
+	 *                                      .orderBy("id", OrderType.DESC)
+	 *                                      .seekAfter(cursor)
+	 *                                      .getKeysetPage(20);
+	 * </pre>
+	 * The latency does not grow with the depth of the page as no previous row is read, given
+	 * an index on the ORDER BY columns.
+	 *
+	 * @param size
+	 * 		maximum number of rows of the page
+	 *
+	 * @return the page with the cursor of the next page
+	 */
+	@SuppressWarnings("unchecked")
+	public KeysetPage<T> getKeysetPage(int size) {
+
+		require(Verb.SELECT, "getKeysetPage() must be invoked after select()");
+		if(sortKeys.isEmpty()) {
+			throw new IllegalStateException("getKeysetPage() must be invoked after orderBy()");
+		}
+		if(size <= 0) {
+			throw new IllegalArgumentException("page size must be positive");
+		}
+		// one more row tells whether there is a next page. The rows are fetched like those
+		// of a page, by ids first for collection fetch joins, but not prefetched by offset.
+		List result;
+		int first = startRow, max = maxRow;
+		boolean wasPaged = paged;
+		ExecutorService prefetch = prefetchExecutor;
+		try {
+			prefetchExecutor = null;
+			paged = false;
+			startRow = 0;
+			maxRow = size + 1;
+			result = fetchResultList();
+		} finally {
+			startRow = first;
+			maxRow = max;
+			paged = wasPaged;
+			prefetchExecutor = prefetch;
+		}
+
+		if(result.size() <= size) {
+			return new KeysetPage<>((List<T>) result, size, null);
+		}
+		List<T> data = new ArrayList<>((List<T>) result.subList(0, size));
+		String cursor = KeysetCursor.encode(getSortKeyValues(data.get(size - 1)));
+		return new KeysetPage<>(data, size, cursor);
+	}
+
+	/**
+	 * Read the values of the ORDER BY columns from a row of the result.
+	 *
+	 * @param row
+	 * 		an entity, a view model, or the selected columns
+	 *
+	 * @return the values
+	 */
+	protected Object[] getSortKeyValues(Object row) {
+
+		String rootAlias = fromEntity == null ? TABLE_ALIAS : fromEntity.alias;
+		List<String> columns = new ArrayList<>();
+		if(selectedColumns != null) {
+			for(String column : selectedColumns) {
+				columns.add(resolveColumn(column));
+			}
+		}
+
+		Object[] values = new Object[sortKeys.size()];
+		for(int i = 0; i < values.length; i++) {
+			SortKey key = sortKeys.get(i);
+			String path = (key.alias == null ? TABLE_ALIAS : key.alias) + "." + key.column;
+			if(selectedColumns != null) {
+				int index = columns.indexOf(path);
+				if(index < 0) {
+					throw new IllegalStateException("ORDER BY column " + path + " must be selected "
+							+ "for keyset pagination");
+				}
+				if(projection != null) {
+					values[i] = PropertyAccessorFactory.forDirectFieldAccess(row)
+					                                   .getPropertyValue(projection.fieldNames[index]);
+				} else {
+					values[i] = row instanceof Object[] ? ((Object[]) row)[index] : row;
+				}
+			} else if(key.alias == null || key.alias.equals(rootAlias)) {
+				values[i] = PropertyAccessorFactory.forBeanPropertyAccess(row)
+				                                   .getPropertyValue(key.column);
+			} else {
+				throw new IllegalStateException("ORDER BY column " + path + " of a joined entity "
+						+ "must be selected for keyset pagination");
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return TRUE if the query is paginated by ids first: it selects the entity with left
+	 * fetch joins on its own collections or an entity graph. An inner fetch join also
+	 * restricts the result, so it is kept in a single phase.
+	 */
+	private boolean isIdFirstPagingRequired() {
+
+		if(!idFirstPaging || jpqlExp.length() > 0 || selectedColumns != null
+				|| selectClass != entityClass || fromEntity != null
+				|| groupByClause.length() > 0) {
+			return false;
+		}
+		boolean collectionFetched = graph != null;
+		for(Join join : joins) {
+			if(join.alias == null) {
+				String[] tokens = join.column.split("\\.");
+				if(join.type.equals(" JOIN FETCH ")
+						|| tokens.length > 1 && aliasMap.values().contains(tokens[0])) {
+					// the fetch of a joined entity can not be moved to the second phase
+					return false;
+				}
+				collectionFetched |= isCollection(join.column);
+			}
+		}
+		return collectionFetched;
+	}
+
+	/**
+	 * @return TRUE if the path is a collection of the entity or can not be resolved
+	 */
+	private boolean isCollection(String path) {
+
+		if(path.indexOf('.') >= 0) {
+			return true;
+		}
+		try {
+			return entityManager.getMetamodel().entity(entityClass).getAttribute(path)
+			                    .isCollection();
+		} catch(IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @return name of the single id attribute of the entity, null if it has a composite id.
+	 */
+	private String getIdColumn() {
+
+		return BatchInitializer.getIdAttribute(entityManager, entityClass);
+	}
+
+	/**
+	 * Select the ids of the page without the fetches, then load the entities of the ids with
+	 * the fetches in the order of the ids.
 	 *
-	 * @see org.triiskelion.tinyspring.viewmodel.Page
+	 * @param idColumn
+	 * 		name of the id attribute
+	 *
+	 * @return the entities of the page
 	 */
-	public <R> Page<R> getPagedResult(Class<R> clazz) {
+	private List fetchByIdFirst(String idColumn) {
+
+		String[] columns = selectedColumns;
+		List<Join> allJoins = joins;
+		boolean wasDistinct = distinct;
+		Object entityGraph = graph;
+		List<Join> fetchJoins = new ArrayList<>();
+		List ids;
+		try {
+			selectedColumns = new String[]{ idColumn };
+			joins = new ArrayList<>();
+			for(Join join : allJoins) {
+				(join.alias == null ? fetchJoins : joins).add(join);
+			}
+			// only the fetches can multiply the rows of the entity
+			distinct = wasDistinct && !joins.isEmpty();
+			graph = null;
+			ids = fetchResultList();
+		} finally {
+			selectedColumns = columns;
+			joins = allJoins;
+			distinct = wasDistinct;
+			graph = entityGraph;
+		}
+		if(ids.isEmpty()) {
+			return ids;
+		}
 
-		if(paged) {
-			long total = count();
-			List<R> result = getResultList(clazz);
-			return new Page<>(result, pageNumber, numberPerPage, total);
-		} else {
-			throw new IllegalStateException("Query is not paged. call page() first.");
+		List<Join> otherJoins = joins;
+		StringBuilder jpql = new StringBuilder();
+		String joinClause;
+		try {
+			joins = fetchJoins;
+			joinClause = buildJoinClause(false);
+		} finally {
+			joins = otherJoins;
+		}
+		jpql.append("SELECT DISTINCT ").append(TABLE_ALIAS)
+		    .append(" FROM ").append(entityClass.getCanonicalName()).append(' ').append(TABLE_ALIAS)
+		    .append(joinClause)
+		    .append(" WHERE ").append(TABLE_ALIAS).append('.').append(idColumn).append(" IN (");
+
+		PersistenceUnitUtil util = entityManager.getEntityManagerFactory()
+		                                        .getPersistenceUnitUtil();
+		Map<Object, Object> entities = new HashMap<>();
+		// a page larger than the IN list limit is loaded in chunks like executeChunked()
+		int chunkSize = inListLimit > 0 ? inListLimit : ids.size();
+		for(int from = 0; from < ids.size(); from += chunkSize) {
+			List chunk = ids.subList(from, Math.min(from + chunkSize, ids.size()));
+			for(Object entity : createFetchByIdQuery(jpql, chunk).getResultList()) {
+				entities.put(util.getIdentifier(entity), entity);
+			}
+		}
+		List<Object> result = new ArrayList<>(ids.size());
+		for(Object id : ids) {
+			Object entity = entities.get(id);
+			if(entity != null) {
+				result.add(entity);
+			}
 		}
+		return result;
 	}
 
 	/**
-	 * Execute a SELECT query and return the query results as an untyped List.
-	 * This method is used to retrieve array result other than entity objects
-	 * like aggregated value or specified columns.
+	 * Create the query loading the entities of the ids with the fetches.
 	 *
-	 * @return a untyped list of the results
+	 * @param select
+	 * 		the JPQL expression up to the opening parenthesis of the IN list
+	 * @param ids
+	 * 		the ids, no more than the IN list limit
 	 *
-	 * @see Query#getResultList()
+	 * @return the query
 	 */
-	public List getUntypedResultList() {
+	private Query createFetchByIdQuery(StringBuilder select, List ids) {
+
+		StringBuilder jpql = new StringBuilder(select);
+		// one parameter per id as a collection valued parameter fails with an entity graph,
+		// padded like the IN lists of the predicates to reuse the JPQL of the size bucket
+		int paddedSize = TinyPredicate.paddedSize(ids.size(), inListLimit);
+		for(int i = 0; i < paddedSize; i++) {
+			jpql.append(i == 0 ? ":_id" : ",:_id").append(i);
+		}
+		jpql.append(')');
+		if(showJpql) {
+			log.info("Query built: " + jpql);
+		}
+		Query query = entityManager.createQuery(jpql.toString());
+		for(int i = 0; i < paddedSize; i++) {
+			query.setParameter("_id" + i, ids.get(Math.min(i, ids.size() - 1)));
+		}
+		applyHints(query, hints);
+		applyHints(query, getFetchHints());
+		if(flushMode != null) {
+			query.setFlushMode(flushMode);
+		}
+		return query;
+	}
 
-		require(Verb.SELECT, "getUntypedResultList() must be invoked after select()");
+	/**
+	 * Execute the SELECT query applying the pagination.
+	 *
+	 * @return the untyped result list
+	 */
+	@SuppressWarnings("unchecked")
+	protected List fetchResultList() {
+
+		List result = isPrefetchable() ? fetchPrefetchedRows() : fetchRows();
+		if(initializedAssociations.length > 0 && jpqlExp.length() == 0
+				&& selectedColumns == null && selectClass == entityClass && fromEntity == null) {
+			int batchSize = inListLimit > 0 ? inListLimit : DEFAULT_IN_LIST_LIMIT;
+			BatchInitializer.initialize(entityManager, entityClass, (List<T>) result, batchSize,
+					initializedAssociations);
+		}
+		return result;
+	}
+
+	/**
+	 * @return TRUE if the page can be taken from the page prefetcher and the next page
+	 * prefetched
+	 */
+	private boolean isPrefetchable() {
+
+		return prefetchExecutor != null && startRow >= 0 && maxRow > 0
+				&& initializedAssociations.length == 0 && !isIdFirstPagingRequired()
+				&& findChunkedInList() == null && isOutsideTransaction();
+	}
+
+	/**
+	 * Take the page from the page prefetcher, or execute the query if it has not been
+	 * prefetched, then prefetch the next page if this one is full. The next page starts
+	 * after the rows of this page without the lookahead row of <code>getSlice()</code>, so
+	 * that it is keyed like the request of the next slice.
+	 *
+	 * @return the untyped result list
+	 */
+	private List fetchPrefetchedRows() {
+
+		EntityManagerFactory entityManagerFactory = entityManager.getEntityManagerFactory();
+		Statement statement = createStatement(false);
+		List result = pagePrefetcher.take(
+				statement.page(startRow, maxRow).pageKey(entityManagerFactory));
+		if(result == null) {
+			result = fetchRows();
+		}
+		if(result.size() >= maxRow) {
+			Statement next = statement.page(startRow + maxRow - lookahead, maxRow);
+			Set<Class<?>> entityClasses = new HashSet<>();
+			collectEntityClasses(entityClasses);
+			pagePrefetcher.prefetch(next.pageKey(entityManagerFactory), prefetchExecutor,
+					new StatementTask(entityManagerFactory, next, Operation.LIST),
+					entityClasses);
+		}
+		return result;
+	}
+
+	/**
+	 * Execute the SELECT query applying the pagination, by ids first if required.
+	 *
+	 * @return the untyped result list
+	 */
+	private List fetchRows() {
+
+		if(startRow >= 0 && maxRow >= 0 && isIdFirstPagingRequired()) {
+			String idColumn = getIdColumn();
+			if(idColumn != null) {
+				return fetchByIdFirst(idColumn);
+			}
+		}
 
+		TinyPredicate inList = findChunkedInList();
+		if(inList != null) {
+			return (List) executeChunked(inList, Operation.LIST);
+		}
 		Query query = createQuery();
+		applyHints(query, getFetchHints());
 		if(startRow >= 0 && maxRow >= 0) {
 			query.setFirstResult(startRow).setMaxResults(maxRow);
 		}
-		return query.getResultList();
+		List result = query.getResultList();
+		if(adaptiveFetchSize) {
+			fetchSizeAdvisor.record(createShape(false), result.size());
+		}
+		return result;
 	}
-	//
-	// END Result retrieving
-	////////////////////////////////////////////////////////////////////////////////////////
 
+	/**
+	 * @return the hints applied to the queries returning entities but not to the count query
+	 */
+	protected Map<String, Object> getFetchHints() {
 
-	////////////////////////////////////////////////////////////////////////////////////////
-	// BEGIN Internal methods
-	//
+		Integer fetchSize = getFetchSize();
+		if(graph == null && fetchSize == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, Object> result = new HashMap<>();
+		if(graph != null) {
+			result.put(graphHint, graph instanceof String
+			                      ? entityManager.getEntityGraph((String) graph) : graph);
+		}
+		if(fetchSize != null) {
+			result.put(FETCH_SIZE, fetchSize);
+		}
+		return result;
+	}
 
-	protected Query createQuery() {
+	static void applyHints(Query query, Map<String, Object> hints) {
 
-		return createQuery(false);
+		for(Map.Entry<String, Object> entry : hints.entrySet()) {
+			query.setHint(entry.getKey(), entry.getValue());
+		}
 	}
 
 	/**
@@ -828,7 +3357,126 @@ public class TinyQuery<T> {
 	 */
 	protected Query createQuery(boolean count) {
 
-		StringBuilder queryString = new StringBuilder();
+		CompiledJpql compiled = compile(count);
+		if(compiled.jpql == null) {
+			throw new IllegalStateException("The query can not be counted by a count query: "
+					+ compile(false).jpql);
+		}
+		return createQuery(compiled);
+	}
+
+	/**
+	 * Create JPA query of the compiled JPQL binding the parameters of the last compilation.
+	 *
+	 * @param compiled
+	 * 		the compiled JPQL
+	 *
+	 * @return JPA Query object
+	 */
+	protected Query createQuery(CompiledJpql compiled) {
+
+		if(showJpql) {
+			log.info("Query built: " + compiled.jpql);
+		}
+
+		Query query = entityManager.createQuery(compiled.jpql);
+		applyHints(query, hints);
+		if(flushMode != null) {
+			query.setFlushMode(flushMode);
+		}
+
+		// apply parameters
+		for(int key : positionalParameters.keySet()) {
+			query.setParameter(key, positionalParameters.get(key));
+		}
+
+		for(String key : namedParameters.keySet()) {
+			query.setParameter(key, namedParameters.get(key));
+		}
+
+		for(String key : updateValues.keySet()) {
+			query.setParameter(key, updateValues.get(key));
+		}
+
+		return query;
+	}
+
+	/**
+	 * Build the JPQL expression and put the values of the predicates into named parameters.
+	 * If the query's shape is found in the JPQL cache only the values are collected.
+	 *
+	 * @param count
+	 * 		TRUE to build the count query
+	 *
+	 * @return the built JPQL and its predicate parameter names
+	 */
+	protected CompiledJpql compile(boolean count) {
+
+		// parameters of the previous build may not exist anymore, e.g. a shorter IN list
+		if(boundParameterNames != null) {
+			for(String name : boundParameterNames) {
+				namedParameters.remove(name);
+			}
+		}
+
+		List<Object> shape = null;
+		if(cacheJpql) {
+			shape = createShape(count);
+			CompiledJpql compiled = jpqlCache.get(shape);
+			if(compiled != null) {
+				bindPredicateValues(compiled);
+				boundParameterNames = compiled.parameterNames;
+				return compiled;
+			}
+		}
+
+		predicateParameterNames = new ArrayList<>();
+		CompiledJpql compiled;
+		try {
+			String jpql = buildJpql(count);
+			compiled = new CompiledJpql(jpql, predicateParameterNames.toArray(
+					new String[predicateParameterNames.size()]));
+		} finally {
+			predicateParameterNames = null;
+		}
+
+		if(shape != null) {
+			jpqlCache.put(shape, compiled);
+		}
+		boundParameterNames = compiled.parameterNames;
+		return compiled;
+	}
+
+	/**
+	 * Compile the query returning one row per row of the result, as cheap as possible, to
+	 * count a result which can not be counted by a count query.
+	 *
+	 * @return the compiled JPQL
+	 *
+	 * @see org.triiskelion.tinyspring.dao.CountQueryRewriter#toResultRowQuery(String)
+	 */
+	protected CompiledJpql compileResultRows() {
+
+		CompiledJpql compiled = compile(false);
+		return new CompiledJpql(CountQueryRewriter.toResultRowQuery(compiled.jpql),
+				compiled.parameterNames);
+	}
+
+	/**
+	 * Build the JPQL expression. The count query is rewritten from the SELECT query.
+	 *
+	 * @param count
+	 * 		TRUE to build the count query
+	 *
+	 * @return the JPQL expression, null if the count query is requested but the result can
+	 * not be counted by a single JPQL expression.
+	 *
+	 * @see org.triiskelion.tinyspring.dao.CountQueryRewriter
+	 */
+	protected String buildJpql(boolean count) {
+
+		StringBuilder queryString = jpqlBuffer;
+		queryString.setLength(0);
 
 		if(verb == Verb.UPDATE) {
 
@@ -845,45 +3493,319 @@ public class TinyQuery<T> {
 
 		} else {
 
-			queryString.append(buildSelectClause(count));
-			queryString.append(buildJoinClause());
+			queryString.append(buildSelectClause());
+			queryString.append(buildJoinClause(count || probe));
 		}
 
-		queryString.append(whereClause);
-		queryString.append(orderByClause);
+		appendWhereClause(queryString);
 		queryString.append(groupByClause);
+		if(havingPredicate != null) {
+			int mark = queryString.length();
+			queryString.append(" HAVING ");
+			int length = queryString.length();
+			formatPredicate(havingPredicate, queryString);
+			if(queryString.length() == length) {
+				queryString.setLength(mark);
+			}
+		}
+		queryString.append(orderByClause);
 
-		if(showJpql) {
-			log.info("Query built: " + queryString);
+		if(count && verb == Verb.SELECT) {
+			return CountQueryRewriter.rewrite(queryString.toString());
 		}
+		return queryString.toString();
+	}
 
-		Query query = entityManager.createQuery(queryString.toString());
+	/**
+	 * Write the WHERE clause into the buffer in a single pass over the restrictions.
+	 *
+	 * @param buffer
+	 * 		the buffer to write to
+	 */
+	protected void appendWhereClause(StringBuilder buffer) {
+
+		index = 0;
+		int start = buffer.length();
+		for(Restriction restriction : restrictions) {
+			int mark = buffer.length();
+			buffer.append(mark == start ? " WHERE " : restriction.conjunction);
+			int length = buffer.length();
+			formatPredicate(restriction.predicate, buffer);
+			if(buffer.length() == length) {
+				buffer.setLength(mark);
+			}
+		}
+		if(seekPredicate != null) {
+			if(buffer.length() == start) {
+				buffer.append(" WHERE ");
+			} else {
+				// the restrictions may be conjoined with OR
+				buffer.insert(start + 7, '(').append(") AND ");
+			}
+			formatPredicate(seekPredicate, buffer);
+		}
+	}
 
-		// apply parameters
-		for(int key : positionalParameters.keySet()) {
-			query.setParameter(key, positionalParameters.get(key));
+	/**
+	 * Create the key of the query in the JPQL cache. Everything that affects the built JPQL
+	 * must be part of the key while the values of the predicates must not.
+	 *
+	 * @param count
+	 * 		TRUE for the count query
+	 *
+	 * @return the shape of the query
+	 */
+	protected List<Object> createShape(boolean count) {
+
+		List<Object> shape = new ArrayList<>();
+		shape.add(entityClass);
+		shape.add(verb);
+		shape.add(count);
+		shape.add(probe);
+		shape.add(distinct);
+		shape.add(ignoreNullParameter);
+		shape.add(inListLimit);
+		shape.add(selectClass);
+		shape.add(selectedColumns == null ? null : Arrays.asList(selectedColumns));
+		shape.add(projection == null ? null : projection.dtoClass);
+		shape.add(fromEntity == null ? null : fromEntity.entityClass);
+		shape.add(fromEntity == null ? null : fromEntity.alias);
+		for(Join join : joins) {
+			shape.add(join.type);
+			shape.add(join.column);
+			shape.add(join.alias);
 		}
+		shape.add(jpqlExp.toString());
+		shape.add(orderByClause.toString());
+		shape.add(groupByClause.toString());
+		if(verb == Verb.UPDATE) {
+			shape.add(new ArrayList<>(updateValues.keySet()));
+		}
+		for(Restriction restriction : restrictions) {
+			shape.add(restriction.conjunction);
+			restriction.predicate.appendShape(shape, inListLimit);
+		}
+		if(seekPredicate != null) {
+			seekPredicate.appendShape(shape, inListLimit);
+		}
+		if(havingPredicate != null) {
+			shape.add(" HAVING ");
+			havingPredicate.appendShape(shape, inListLimit);
+		}
+		return shape;
+	}
 
-		for(String key : namedParameters.keySet()) {
-			query.setParameter(key, namedParameters.get(key));
+	/**
+	 * Put the values of the predicates into named parameters using the parameter names of a
+	 * cached query with the same shape.
+	 */
+	private void bindPredicateValues(CompiledJpql compiled) {
+
+		List<Object> values = new ArrayList<>(compiled.parameterNames.length);
+		for(Restriction restriction : restrictions) {
+			collectPredicateValues(restriction.predicate, values);
+		}
+		if(seekPredicate != null) {
+			collectPredicateValues(seekPredicate, values);
 		}
+		if(havingPredicate != null) {
+			collectPredicateValues(havingPredicate, values);
+		}
+		for(int i = 0; i < compiled.parameterNames.length; i++) {
+			namedParameters.put(compiled.parameterNames[i], values.get(i));
+		}
+	}
 
-		for(String key : updateValues.keySet()) {
-			query.setParameter(key, updateValues.get(key));
+	/**
+	 * Collect the values of a predicate and all its descendants in the same order as
+	 * <code>formatPredicate()</code> generates their parameters.
+	 */
+	private void collectPredicateValues(TinyPredicate predicate, List<Object> values) {
+
+		if(!predicate.isValid) {
+			return;
+		}
+		if(predicate.predicateType == PredicateType.SIMPLE) {
+			predicate.collectValues(values, inListLimit);
+		} else {
+			for(TinyPredicate p : predicate.predicateList) {
+				collectPredicateValues(p, values);
+			}
+		}
+	}
+
+	/**
+	 * Put the value of a predicate into the named parameters. Used by
+	 * <code>TinyPredicate.createExpression()</code>.
+	 *
+	 * @param name
+	 * 		the generated parameter name
+	 * @param value
+	 * 		the value of the parameter
+	 */
+	void bindPredicateValue(String name, Object value) {
+
+		namedParameters.put(name, value);
+		if(predicateParameterNames != null) {
+			predicateParameterNames.add(name);
+		}
+	}
+
+	/**
+	 * Write a subquery in parentheses. The subquery's alias is replaced by a unique one and
+	 * the aliases given to its <code>from()</code> and <code>join()</code> entities are
+	 * prefixed with it, so they can not collide with the aliases of this query. Its
+	 * OuterColumns are written with this query's alias and its parameters are renamed and
+	 * bound to this query, except for the NamedParameters which are shared with this query.
+	 *
+	 * @param subquery
+	 * 		the subquery to embed
+	 * @param buffer
+	 * 		the buffer to write to
+	 */
+	void appendSubquery(TinyQuery<?> subquery, StringBuilder buffer) {
+
+		String alias = "_s" + index;
+		index++;
+		if(!cacheJpql) {
+			// rendered without side effects, e.g. by toString()
+			subquery = subquery.copyWithoutCache();
+		}
+		Map<String, Object> parameters = subquery.getSubqueryParameters();
+
+		Set<String> ownAliases = subquery.getOwnAliases();
+		Pattern tokens = SUBQUERY_TOKEN;
+		if(!ownAliases.isEmpty()) {
+			StringBuilder regex = new StringBuilder(SUBQUERY_TOKEN.pattern())
+					.append("|(?<![\\w.])(");
+			for(String ownAlias : ownAliases) {
+				regex.append(Pattern.quote(ownAlias)).append('|');
+			}
+			regex.setLength(regex.length() - 1);
+			tokens = Pattern.compile(regex.append(")\\b").toString());
+		}
+
+		buffer.append('(');
+		String jpql = subquery.compile(false).jpql;
+		Matcher matcher = tokens.matcher(jpql);
+		int copied = 0;
+		while(matcher.find()) {
+			String replacement;
+			if(matcher.group(1) != null) {
+				replacement = parameters.containsKey(matcher.group(1))
+				              ? ":" + alias + "_" + matcher.group(1) : matcher.group();
+			} else if(TABLE_ALIAS.equals(matcher.group(2))) {
+				replacement = alias;
+			} else if(OuterColumn.OUTER_ALIAS.equals(matcher.group(2))) {
+				replacement = fromEntity == null ? TABLE_ALIAS : fromEntity.alias;
+			} else if(matcher.group(3) != null) {
+				// alias of a nested subquery
+				replacement = alias + matcher.group(3);
+			} else if(matcher.groupCount() > 3 && matcher.group(4) != null) {
+				replacement = alias + "_" + matcher.group(4);
+			} else {
+				replacement = matcher.group();
+			}
+			buffer.append(jpql, copied, matcher.start()).append(replacement);
+			copied = matcher.end();
+		}
+		buffer.append(jpql, copied, jpql.length());
+		buffer.append(')');
+
+		for(Map.Entry<String, Object> entry : parameters.entrySet()) {
+			bindPredicateValue(alias + "_" + entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * @return the aliases given to the entities of this query by <code>from()</code> and
+	 * <code>join()</code>
+	 */
+	private Set<String> getOwnAliases() {
+
+		Set<String> result = new LinkedHashSet<>();
+		if(fromEntity != null) {
+			result.add(fromEntity.alias);
+		}
+		for(Join join : joins) {
+			if(join.alias != null) {
+				result.add(join.alias);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Collect the values of the parameters of this query as a subquery in the same order as
+	 * <code>appendSubquery()</code> binds them.
+	 *
+	 * @param values
+	 * 		list to add the values to
+	 */
+	void collectSubqueryValues(List<Object> values) {
+
+		values.addAll(getSubqueryParameters().values());
+	}
+
+	/**
+	 * Compile this query as a subquery.
+	 *
+	 * @return the parameters of the query in a stable order: the predicates' parameters in the
+	 * order they are written followed by the other parameters by name.
+	 */
+	private Map<String, Object> getSubqueryParameters() {
+
+		if(!positionalParameters.isEmpty()) {
+			throw new IllegalArgumentException("subquery can not have positional parameters");
+		}
+		if(orderByClause.length() > 0) {
+			throw new IllegalArgumentException("subquery can not have an ORDER BY clause");
 		}
-
-		return query;
+		CompiledJpql compiled = compile(false);
+		Map<String, Object> parameters = new LinkedHashMap<>();
+		for(String name : compiled.parameterNames) {
+			parameters.put(name, namedParameters.get(name));
+		}
+		for(String name : new TreeSet<>(namedParameters.keySet())) {
+			if(!parameters.containsKey(name)) {
+				parameters.put(name, namedParameters.get(name));
+			}
+		}
+		return parameters;
 	}
 
-	protected String buildJoinClause() {
+	/**
+	 * @param count
+	 * 		TRUE for the count query, which leaves out the LEFT JOIN FETCH joins and turns the
+	 * 		other fetch joins into plain joins. Column selects are joined the same way, as
+	 * 		there is nothing to fetch into and the rows of a collection would inflate their
+	 * 		aggregates.
+	 *
+	 * @return the JOIN clauses
+	 */
+	protected String buildJoinClause(boolean count) {
 
 		if(jpqlExp.length() <= 0) {
 			StringBuilder joinClause = new StringBuilder();
-			if(joinEntity != null) {
-				joinClause.append(" JOIN ");
-				joinClause.append(String.format("%s.%s %s",
-						fromEntity == null ? TABLE_ALIAS : fromEntity.alias,
-						joinColumn, joinEntity.alias));
+			String rootAlias = fromEntity == null ? TABLE_ALIAS : fromEntity.alias;
+			boolean plain = count || selectedColumns != null;
+			for(Join join : joins) {
+				if(plain && join.type.equals(" LEFT JOIN FETCH ")) {
+					continue;
+				}
+				if(plain && join.type.equals(" JOIN FETCH ")) {
+					joinClause.append(" JOIN ");
+				} else {
+					joinClause.append(join.type);
+				}
+				String[] tokens = join.column.split("\\.");
+				if(tokens.length == 1 || !aliasMap.values().contains(tokens[0])) {
+					joinClause.append(rootAlias).append('.');
+				}
+				joinClause.append(join.column);
+				if(join.alias != null) {
+					joinClause.append(' ').append(join.alias);
+				}
 			}
 			return joinClause.toString();
 		} else {
@@ -891,34 +3813,49 @@ public class TinyQuery<T> {
 		}
 	}
 
-	protected String buildSelectClause(boolean count) {
+	/**
+	 * @param column
+	 * 		a column of the entity, or of a joined entity prefixed by its alias
+	 *
+	 * @return the column prefixed by its alias
+	 */
+	protected String resolveColumn(String column) {
+
+		String[] aggregate = Aggregate.split(column);
+		if(aggregate != null) {
+			return aggregate[0] + (aggregate[1].equals("*") ? TABLE_ALIAS
+			                                                : resolveColumn(aggregate[1])) + ")";
+		}
+		String[] tokens = column.split("\\.");
+		// user.id  m.user.id
+		if(tokens.length > 1 && aliasMap.values().contains(tokens[0])) {
+			return column;
+		}
+		return TABLE_ALIAS + "." + column;
+	}
+
+	protected String buildSelectClause() {
 
 		if(jpqlExp.length() <= 0) {
 
 			StringBuilder selectClause = new StringBuilder();
 			selectClause.append("SELECT ");
-			if(distinct) {
+			if(distinct && !probe) {
 				selectClause.append(" DISTINCT ");
 			}
 
 			String selectAlias;
-			if(selectedColumns != null) {
+			if(probe) {
+				selectAlias = "1";
+			} else if(selectedColumns != null) {
 				ArrayList<String> list = new ArrayList<>();
 				for(String col : selectedColumns) {
-					String[] tokens = col.split("\\.");
-					if(tokens.length == 1) {
-						list.add(TABLE_ALIAS + "." + col);
-
-					} else {// user.id  m.user.id
-						if(aliasMap.values().contains(tokens[0])) { //m.user.id
-							list.add(col);
-						} else {
-							list.add(TABLE_ALIAS + "." + col);
-						}
-					}
-
+					list.add(resolveColumn(col));
 				}
 				selectAlias = StringUtils.join(list, ",");
+				if(projection != null) {
+					selectAlias = "NEW " + projection.dtoClass.getName() + "(" + selectAlias + ")";
+				}
 
 			} else {
 				selectAlias = aliasMap.get(selectClass);
@@ -927,11 +3864,7 @@ public class TinyQuery<T> {
 				}
 			}
 
-			if(count) {
-				selectClause.append(String.format("count(%s)", selectAlias));
-			} else {
-				selectClause.append(String.format("%s", selectAlias));
-			}
+			selectClause.append(selectAlias);
 
 			selectClause.append(" FROM ");
 			if(fromEntity == null)
@@ -944,39 +3877,28 @@ public class TinyQuery<T> {
 
 			return selectClause.toString();
 		} else {
-			if(count) {
-				//Pattern p = Pattern.compile("select.*from", Pattern.CASE_INSENSITIVE | Pattern
-				//						.UNICODE_CASE);
-				//				Matcher m = p.matcher(jpqlExp.toString());
-
-				int begin = jpqlExp.toString().toLowerCase().indexOf("select");
-				int end = jpqlExp.toString().toLowerCase().indexOf("from");
-				if(begin >= 0 && end > 0) {
-					String content = jpqlExp.toString().substring(begin + 7, end - 1);
-					return jpqlExp.toString()
-					              .replaceFirst(" " + content + " ", " count(" + content + ") ");
-				} else {
-					throw new IllegalArgumentException("count() failed. SELECT FROM not matched");
-				}
-
-			} else {
-				return jpqlExp.toString();
-			}
+			return jpqlExp.toString();
 		}
 	}
 
 	/**
-	 * @return the JPQL expression
+	 * @return the JPQL expression. It is rendered by a copy of the query bypassing the JPQL
+	 * cache, so neither the parameters of the query nor the statistics of the cache change.
 	 */
 	public String toString() {
 
-		return new StringBuilder()
-				.append(buildSelectClause(false))
-				.append(buildJoinClause())
-				.append(whereClause)
-				.append(orderByClause)
-				.append(groupByClause)
-				.toString();
+		return copyWithoutCache().buildJpql(false);
+	}
+
+	/**
+	 * @return a copy of the query which does not use the JPQL cache, to render the JPQL without
+	 * changing this query
+	 */
+	private TinyQuery<T> copyWithoutCache() {
+
+		TinyQuery<T> copy = new TinyQuery<>(this);
+		copy.cacheJpql = false;
+		return copy;
 	}
 
 	/**
@@ -990,34 +3912,65 @@ public class TinyQuery<T> {
 	 */
 	protected String formatPredicate(TinyPredicate predicate) {
 
+		StringBuilder buffer = new StringBuilder();
+		formatPredicate(predicate, buffer);
+		return buffer.toString();
+	}
+
+	/**
+	 * Write recursively a predicate and all its descendants into the buffer and inject values
+	 * of the predicate into query. Invalid predicates are skipped without writing anything and
+	 * so are conjunctions left with no operand.
+	 *
+	 * @param predicate
+	 * 		the TinyPredicate object to parse
+	 * @param buffer
+	 * 		the buffer to write to
+	 */
+	protected void formatPredicate(TinyPredicate predicate, StringBuilder buffer) {
+
 		if(!predicate.isValid) {
 			if(ignoreNullParameter) {
-				return "";
+				return;
 			} else {
 				throw new IllegalArgumentException(predicate.toString() + " is invalid");
 			}
 		}
-		ArrayList<String> list;
+		int start = buffer.length();
 		switch(predicate.predicateType) {
 			case SIMPLE:
-				return predicate.createExpression(this);
+				predicate.appendExpression(this, buffer);
+				return;
 			case AND:
-				list = new ArrayList<>();
+			case OR:
+				String separator = predicate.predicateType == PredicateType.AND ? " AND " : " OR ";
+				buffer.append('(');
 				for(TinyPredicate p : predicate.predicateList) {
-					String exp = formatPredicate(p);
-					if(StringUtils.isNotBlank(exp)) {
-						list.add(exp);
+					int mark = buffer.length();
+					if(mark > start + 1) {
+						buffer.append(separator);
+					}
+					int length = buffer.length();
+					formatPredicate(p, buffer);
+					if(buffer.length() == length) {
+						buffer.setLength(mark);
 					}
 				}
-				return "(" + StringUtils.join(list, " AND ") + ")";
-			case OR:
-				list = new ArrayList<>();
-				for(TinyPredicate p : predicate.predicateList) {
-					list.add(formatPredicate(p));
+				if(buffer.length() == start + 1) {
+					buffer.setLength(start);
+				} else {
+					buffer.append(')');
 				}
-				return "(" + StringUtils.join(list, " OR ") + ")";
+				return;
 			case NOT:
-				return "(NOT " + formatPredicate(predicate.predicateList.get(0)) + ")";
+				buffer.append("(NOT ");
+				formatPredicate(predicate.predicateList.get(0), buffer);
+				if(buffer.length() == start + 5) {
+					buffer.setLength(start);
+				} else {
+					buffer.append(')');
+				}
+				return;
 			default:
 				throw new IllegalArgumentException("Unknown predicate type");
 		}
@@ -1042,6 +3995,557 @@ public class TinyQuery<T> {
 		}
 	}
 
+	/**
+	 * Find an IN predicate with more values than the IN list limit which can be executed in
+	 * chunks. It must be a conjunct of the whole WHERE clause and the query must not be
+	 * paginated, ordered, grouped or distinct.
+	 *
+	 * @return the longest such IN predicate, null if none
+	 */
+	private TinyPredicate findChunkedInList() {
+
+		if(inListLimit <= 0) {
+			return null;
+		}
+		TinyPredicate found = null;
+		for(int i = 0; i < restrictions.size(); i++) {
+			Restriction restriction = restrictions.get(i);
+			if(i > 0 && !restriction.conjunction.equals(" AND ")) {
+				return null;
+			}
+			TinyPredicate predicate = restriction.predicate;
+			if(isLongInList(predicate, found)) {
+				found = predicate;
+			} else if(predicate.predicateType == PredicateType.AND) {
+				for(TinyPredicate p : predicate.predicateList) {
+					if(isLongInList(p, found)) {
+						found = p;
+					}
+				}
+			}
+		}
+		if(found != null && (startRow >= 0 || distinct || orderByClause.length() > 0
+				|| groupByClause.length() > 0
+				|| jpqlExp.toString().toLowerCase().contains("distinct"))) {
+			log.warn("IN list of {} values can not be executed in chunks because the query is " +
+					"paginated, ordered, grouped or distinct.", found.values.size());
+			return null;
+		}
+		return found;
+	}
+
+	private boolean isLongInList(TinyPredicate predicate, TinyPredicate longest) {
+
+		return predicate.predicateType == PredicateType.SIMPLE
+				&& predicate.operator == TinyPredicate.Operator.in
+				&& predicate.isValid && !predicate.hasPlaceholder
+				&& predicate.values.size() > inListLimit
+				&& (longest == null || predicate.values.size() > longest.values.size());
+	}
+
+	/**
+	 * Execute the query once for each chunk of the distinct values of a long IN list and merge
+	 * the results.
+	 *
+	 * @param inList
+	 * 		the IN predicate to split
+	 * @param operation
+	 * 		the operation to execute
+	 *
+	 * @return the concatenated result list, or the sum of the counts or updated rows.
+	 */
+	private Object executeChunked(TinyPredicate inList, Operation operation) {
+
+		List<Object> values = new ArrayList<>(new LinkedHashSet<>(inList.values));
+		List<Statement> statements = new ArrayList<>();
+		List<Restriction> original = restrictions;
+		try {
+			for(int from = 0; from < values.size(); from += inListLimit) {
+				TinyPredicate chunk = inList.withValues(
+						values.subList(from, Math.min(from + inListLimit, values.size())));
+				restrictions = new ArrayList<>(original.size());
+				for(Restriction restriction : original) {
+					TinyPredicate p = restriction.predicate;
+					if(p == inList) {
+						p = chunk;
+					} else if(p.predicateList.contains(inList)) {
+						p = p.withOperand(inList, chunk);
+					}
+					restrictions.add(new Restriction(restriction.conjunction, p));
+				}
+				statements.add(createStatement(operation == Operation.COUNT));
+			}
+		} finally {
+			restrictions = original;
+		}
+
+		List<Object> results = executeStatements(statements, operation);
+		switch(operation) {
+			case LIST:
+				List<Object> list = new ArrayList<>();
+				for(Object result : results) {
+					list.addAll((List<?>) result);
+				}
+				return list;
+			case COUNT:
+				long count = 0;
+				for(Object result : results) {
+					count += (Long) result;
+				}
+				return count;
+			case EXISTS:
+				return results.contains(Boolean.TRUE);
+			default:
+				int updated = 0;
+				for(Object result : results) {
+					updated += (Integer) result;
+				}
+				return updated;
+		}
+	}
+
+	/**
+	 * Build the query into a statement which can be executed by another entity manager.
+	 *
+	 * @param count
+	 * 		TRUE to build the count query
+	 *
+	 * @return the statement
+	 */
+	protected Statement createStatement(boolean count) {
+
+		CompiledJpql compiled = compile(count);
+		boolean countRows = count && compiled.jpql == null;
+		if(countRows) {
+			compiled = compileResultRows();
+		}
+		if(showJpql) {
+			log.info("Query built: " + compiled.jpql);
+		}
+		Map<String, Object> statementHints = new HashMap<>(hints);
+		if(!count && !probe) {
+			statementHints.putAll(getFetchHints());
+		}
+		return new Statement(compiled.jpql, new HashMap<>(namedParameters),
+				positionalParameters, updateValues, countRows, statementHints, flushMode);
+	}
+
+	/**
+	 * Execute the statements, concurrently if allowed.
+	 *
+	 * @return the results in the order of the statements
+	 */
+	private List<Object> executeStatements(List<Statement> statements, Operation operation) {
+
+		List<Object> results = new ArrayList<>(statements.size());
+		if(operation == Operation.UPDATE || statements.size() < 2 || !canRunConcurrently()) {
+			for(Statement statement : statements) {
+				Object result = statement.execute(entityManager, operation);
+				results.add(result);
+				if(operation == Operation.EXISTS && Boolean.TRUE.equals(result)) {
+					break;
+				}
+			}
+			return results;
+		}
+
+		EntityManagerFactory entityManagerFactory = entityManager.getEntityManagerFactory();
+		List<Future<Object>> futures = new ArrayList<>(statements.size());
+		for(Statement statement : statements) {
+			futures.add(executor.submit(new StatementTask(entityManagerFactory, statement,
+					operation)));
+		}
+		try {
+			for(Future<Object> future : futures) {
+				results.add(future.get());
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while executing the query", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			for(Future<Object> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Statements can only run concurrently with an executor and outside of a transaction as
+	 * the other entity managers would not see its changes.
+	 *
+	 * @return TRUE if statements can be executed by other entity managers concurrently
+	 */
+	protected boolean canRunConcurrently() {
+
+		return executor != null && isOutsideTransaction();
+	}
+
+	/**
+	 * @return TRUE if the entity manager is not joined to a transaction, so another entity
+	 * manager would see the same data
+	 */
+	protected boolean isOutsideTransaction() {
+
+		try {
+			if(entityManager.isJoinedToTransaction()) {
+				return false;
+			}
+		} catch(RuntimeException e) {
+			return false;
+		}
+		try {
+			return !entityManager.getTransaction().isActive();
+		} catch(IllegalStateException e) {
+			// JTA or container-managed entity manager
+			return true;
+		}
+	}
+
+	/**
+	 * Operations of a statement
+	 */
+	enum Operation {
+		LIST, COUNT, EXISTS, UPDATE
+	}
+
+	/**
+	 * A built query with a copy of its parameters, which can be executed by any entity
+	 * manager.
+	 */
+	protected static class Statement {
+
+		final String jpql;
+
+		final Map<String, Object> namedParameters;
+
+		final Map<Integer, Object> positionalParameters;
+
+		final Map<String, Object> updateValues;
+
+		/**
+		 * TRUE if the statement is the SELECT query whose rows are counted because the
+		 * result can not be counted by a count query.
+		 */
+		final boolean countRows;
+
+		/**
+		 * Hints applied to the query
+		 */
+		final Map<String, Object> hints;
+
+		final FlushModeType flushMode;
+
+		/**
+		 * Rows of the page the statement is limited to, -1 for all rows
+		 */
+		final int firstResult, maxResults;
+
+		Statement(String jpql, Map<String, Object> namedParameters,
+		          Map<Integer, Object> positionalParameters, Map<String, Object> updateValues,
+		          boolean countRows, Map<String, Object> hints, FlushModeType flushMode) {
+
+			this(jpql, namedParameters, positionalParameters, updateValues, countRows, hints,
+					flushMode, -1, -1);
+		}
+
+		Statement(String jpql, Map<String, Object> namedParameters,
+		          Map<Integer, Object> positionalParameters, Map<String, Object> updateValues,
+		          boolean countRows, Map<String, Object> hints, FlushModeType flushMode,
+		          int firstResult, int maxResults) {
+
+			this.jpql = jpql;
+			this.namedParameters = namedParameters;
+			this.positionalParameters = positionalParameters;
+			this.updateValues = updateValues;
+			this.countRows = countRows;
+			this.hints = hints;
+			this.flushMode = flushMode;
+			this.firstResult = firstResult;
+			this.maxResults = maxResults;
+		}
+
+		/**
+		 * @return a copy of the statement limited to the rows of a page
+		 */
+		Statement page(int firstResult, int maxResults) {
+
+			return new Statement(jpql, namedParameters, positionalParameters, updateValues,
+					countRows, hints, flushMode, firstResult, maxResults);
+		}
+
+		/**
+		 * @return the key of the page of the statement in the page prefetcher
+		 */
+		List<Object> pageKey(EntityManagerFactory entityManagerFactory) {
+
+			return Arrays.<Object>asList(getFactoryId(entityManagerFactory), jpql, namedParameters,
+					new HashMap<>(positionalParameters), firstResult, maxResults);
+		}
+
+		Query createQuery(EntityManager entityManager) {
+
+			Query query = entityManager.createQuery(jpql);
+			for(Map.Entry<Integer, Object> entry : positionalParameters.entrySet()) {
+				query.setParameter(entry.getKey(), entry.getValue());
+			}
+			for(Map.Entry<String, Object> entry : namedParameters.entrySet()) {
+				query.setParameter(entry.getKey(), entry.getValue());
+			}
+			for(Map.Entry<String, Object> entry : updateValues.entrySet()) {
+				query.setParameter(entry.getKey(), entry.getValue());
+			}
+			applyHints(query, hints);
+			if(flushMode != null) {
+				query.setFlushMode(flushMode);
+			}
+			if(firstResult >= 0 && maxResults >= 0) {
+				query.setFirstResult(firstResult).setMaxResults(maxResults);
+			}
+			return query;
+		}
+
+		Object execute(EntityManager entityManager, Operation operation) {
+
+			Query query = createQuery(entityManager);
+			switch(operation) {
+				case LIST:
+					return query.getResultList();
+				case COUNT:
+					return countRows ? (long) query.getResultList().size()
+					                 : query.getSingleResult();
+				case EXISTS:
+					return !query.setMaxResults(1).getResultList().isEmpty();
+				default:
+					return query.executeUpdate();
+			}
+		}
+	}
+
+	/**
+	 * An entity class modified in a transaction of the entity manager, evicted from the
+	 * caches each time they are used until the transaction is no longer active.
+	 */
+	private static class PendingEviction {
+
+		final EntityManager entityManager;
+
+		final Class<?> entityClass;
+
+		PendingEviction(EntityManager entityManager, Class<?> entityClass) {
+
+			this.entityManager = entityManager;
+			this.entityClass = entityClass;
+		}
+	}
+
+	/**
+	 * Executes a statement with a new entity manager from the factory.
+	 */
+	private static class StatementTask implements Callable<Object> {
+
+		private final EntityManagerFactory entityManagerFactory;
+
+		private final Statement statement;
+
+		private final Operation operation;
+
+		StatementTask(EntityManagerFactory entityManagerFactory, Statement statement,
+		              Operation operation) {
+
+			this.entityManagerFactory = entityManagerFactory;
+			this.statement = statement;
+			this.operation = operation;
+		}
+
+		@Override
+		public Object call() {
+
+			EntityManager entityManager = entityManagerFactory.createEntityManager();
+			try {
+				return statement.execute(entityManager, operation);
+			} finally {
+				entityManager.close();
+			}
+		}
+	}
+
+	/**
+	 * Walks the result chunk by chunk, by keyset for entities and by offset otherwise. The
+	 * state of the query is changed for each fetch only and restored afterwards.
+	 */
+	private class ChunkCursor {
+
+		final int chunkSize;
+
+		/**
+		 * id added as the last ORDER BY column, null if not needed
+		 */
+		final String idColumn;
+
+		boolean keyset;
+
+		Object[] lastValues;
+
+		int offset;
+
+		boolean exhausted;
+
+		ChunkCursor(int chunkSize) {
+
+			if(chunkSize <= 0) {
+				throw new IllegalArgumentException("chunk size must be positive");
+			}
+			this.chunkSize = chunkSize;
+			String id = isRootSelect() && !isAggregateSelect() ? getIdColumn() : null;
+			if(id != null && (selectedColumns != null && !selectsKeyset(id)
+					|| hasNullableSortKey(id))) {
+				id = null;
+			}
+			this.keyset = id != null;
+			this.idColumn = id != null && (sortKeys.isEmpty()
+					|| !sortKeys.get(sortKeys.size() - 1).column.equals(id)) ? id : null;
+		}
+
+		@SuppressWarnings("unchecked")
+		List<T> next() {
+
+			if(exhausted) {
+				return Collections.emptyList();
+			}
+			String orderBy = orderByClause.toString();
+			int keys = sortKeys.size();
+			TinyPredicate seek = seekPredicate;
+			int first = startRow, max = maxRow;
+			boolean wasPaged = paged;
+			ExecutorService prefetch = prefetchExecutor;
+			List<T> chunk;
+			try {
+				prefetchExecutor = null;
+				paged = false;
+				maxRow = chunkSize;
+				if(idColumn != null) {
+					orderBy(idColumn, OrderType.ASC);
+				}
+				if(keyset) {
+					if(lastValues != null) {
+						seekAfterValues(lastValues);
+					}
+					startRow = 0;
+				} else {
+					startRow = offset;
+				}
+				chunk = (List<T>) fetchResultList();
+				if(keyset && !chunk.isEmpty()) {
+					lastValues = getSortKeyValues(chunk.get(chunk.size() - 1));
+					for(Object value : lastValues) {
+						if(value == null) {
+							// not nullable by the mapping, but NULL in the database
+							keyset = false;
+						}
+					}
+				}
+			} finally {
+				orderByClause.setLength(0);
+				orderByClause.append(orderBy);
+				sortKeys.subList(keys, sortKeys.size()).clear();
+				seekPredicate = seek;
+				startRow = first;
+				maxRow = max;
+				paged = wasPaged;
+				prefetchExecutor = prefetch;
+			}
+			offset += chunk.size();
+			exhausted = chunk.size() < chunkSize;
+			return chunk;
+		}
+
+		/**
+		 * Clear the persistence context after a handled chunk. Detaching the entities of the
+		 * chunk one by one would leave the entities loaded with them, e.g. by fetch joins or
+		 * eager associations, since detach only cascades as far as the mapping says. In a
+		 * transaction the pending changes are flushed first, so they are not lost.
+		 */
+		void release(List<T> chunk) {
+
+			if(chunk.isEmpty() || selectedColumns != null) {
+				return;
+			}
+			if(!isOutsideTransaction()) {
+				entityManager.flush();
+			}
+			entityManager.clear();
+		}
+	}
+
+	/**
+	 * A column of the ORDER BY clause
+	 */
+	protected static class SortKey {
+
+		/**
+		 * alias of the entity, null for the entity of the query
+		 */
+		final String alias;
+
+		final String column;
+
+		final OrderType orderType;
+
+		SortKey(String alias, String column, OrderType orderType) {
+
+			this.alias = alias;
+			this.column = column;
+			this.orderType = orderType;
+		}
+	}
+
+	/**
+	 * A join of the FROM clause
+	 */
+	protected static class Join {
+
+		/**
+		 * JOIN, JOIN FETCH or LEFT JOIN FETCH
+		 */
+		final String type;
+
+		final String column;
+
+		/**
+		 * alias of the joined entity, null for fetch joins
+		 */
+		final String alias;
+
+		Join(String type, String column, String alias) {
+
+			this.type = type;
+			this.column = column;
+			this.alias = alias;
+		}
+	}
+
+	/**
+	 * A group of predicates in the WHERE clause and how it is conjoined with the previous one.
+	 */
+	protected static class Restriction {
+
+		final String conjunction;
+
+		final TinyPredicate predicate;
+
+		Restriction(String conjunction, TinyPredicate predicate) {
+
+			this.conjunction = conjunction;
+			this.predicate = predicate;
+		}
+	}
+
 	//
 	// END Internal methods
 	////////////////////////////////////////////////////////////////////////////////////////
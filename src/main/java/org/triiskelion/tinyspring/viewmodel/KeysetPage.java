@@ -0,0 +1,113 @@
+package org.triiskelion.tinyspring.viewmodel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * KeysetPage is a wrapper used to hold a page of data retrieved by keyset pagination with the
+ * cursor to retrieve the next page. Unlike Page it has no page number nor total, so no
+ * earlier row has to be scanned or counted. This object is immutable.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#getKeysetPage(int)
+ */
+public class KeysetPage<T> {
+
+	/**
+	 * maximum number of the data for one page.
+	 */
+	private final long max;
+
+	/**
+	 * associated data
+	 */
+	private final List<T> data;
+
+	/**
+	 * cursor of the next page, null if this is the last page.
+	 */
+	private final String nextCursor;
+
+	/**
+	 * @param data
+	 * 		data of the current page
+	 * @param max
+	 * 		max items per page
+	 * @param nextCursor
+	 * 		cursor of the next page, null if this is the last page.
+	 */
+	public KeysetPage(List<T> data, long max, String nextCursor) {
+
+		this.max = max;
+		this.data = data;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * Opaque cursor to pass to <code>TinyQuery.seekAfter(cursor)</code> to retrieve the next
+	 * page.
+	 *
+	 * @return the cursor, null if this is the last page.
+	 */
+	public String getNextCursor() {
+
+		return nextCursor;
+	}
+
+	/**
+	 * @return TRUE if there is a next page
+	 */
+	public boolean hasNext() {
+
+		return nextCursor != null;
+	}
+
+	/**
+	 * Actual object count in this page.
+	 *
+	 * @return
+	 */
+	public long getDataSize() {
+
+		return data != null ? data.size() : 0;
+	}
+
+	/**
+	 * Maximum objects per page.
+	 *
+	 * @return
+	 */
+	public long getMax() {
+
+		return max;
+	}
+
+	/**
+	 * Retrieve the list of the object current page holds.
+	 *
+	 * @return
+	 */
+	public List<T> getData() {
+
+		return new ArrayList<>(data);
+	}
+
+	/**
+	 * This method is used to map the objects in this page to another model.
+	 * It's usually used to transform  database entities to view models.
+	 *
+	 * @param mapper
+	 * @param <A>
+	 * 		the model to map to.
+	 *
+	 * @return the mapped instance
+	 */
+	public <A> KeysetPage<A> map(Mapper<T, A> mapper) {
+
+		List<A> newData = new ArrayList<>();
+		for(T t : getData()) {
+			newData.add(mapper.map(t));
+		}
+		return new KeysetPage<>(newData, getMax(), getNextCursor());
+	}
+}
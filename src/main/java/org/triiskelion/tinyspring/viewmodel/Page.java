@@ -41,6 +41,16 @@ public class Page<T> {
 	 */
 	private final List<T> data;
 
+	/**
+	 * whether the total was taken from the count cache
+	 */
+	private final boolean totalCached;
+
+	/**
+	 * whether the total is exact, FALSE if it was estimated or capped
+	 */
+	private final boolean totalExact;
+
 	/**
 	 * @param data
 	 * 		data of the current page
@@ -53,6 +63,45 @@ public class Page<T> {
 	 */
 	public Page(List<T> data, long page, long max, long total) {
 
+		this(data, page, max, total, false);
+	}
+
+	/**
+	 * @param data
+	 * 		data of the current page
+	 * @param page
+	 * 		current page number
+	 * @param max
+	 * 		max items per page
+	 * @param total
+	 * 		total items number
+	 * @param totalCached
+	 * 		whether the total was taken from the count cache
+	 */
+	public Page(List<T> data, long page, long max, long total, boolean totalCached) {
+
+		this(data, page, max, total, totalCached, true);
+	}
+
+	/**
+	 * @param data
+	 * 		data of the current page
+	 * @param page
+	 * 		current page number
+	 * @param max
+	 * 		max items per page
+	 * @param total
+	 * 		total items number
+	 * @param totalCached
+	 * 		whether the total was taken from the count cache
+	 * @param totalExact
+	 * 		whether the total is exact, FALSE if it was estimated or capped
+	 */
+	public Page(List<T> data, long page, long max, long total, boolean totalCached,
+	            boolean totalExact) {
+
+		this.totalCached = totalCached;
+		this.totalExact = totalExact;
 		this.page = page;
 		this.max = max;
 		this.total = total;
@@ -115,6 +164,46 @@ public class Page<T> {
 	}
 
 
+	/**
+	 * Whether the total was taken from the count cache instead of being counted for this
+	 * page, in which case it may be slightly out of date.
+	 *
+	 * @return
+	 */
+	public boolean isTotalCached() {
+
+		return totalCached;
+	}
+
+	/**
+	 * Whether the total is exact. In approximate count mode a large total is either estimated
+	 * from the database statistics or the cap the rows were counted up to, which should be
+	 * displayed as a lower bound, e.g. "10000+".
+	 *
+	 * @return
+	 */
+	public boolean isTotalExact() {
+
+		return totalExact;
+	}
+
+	/**
+	 * @return TRUE if there is a next page. With an approximate total a full page is assumed
+	 * to have a next one.
+	 */
+	public boolean hasNext() {
+
+		return page < totalPage || !totalExact && dataSize >= max;
+	}
+
+	/**
+	 * @return TRUE if there is a previous page
+	 */
+	public boolean hasPrevious() {
+
+		return page > 1;
+	}
+
 	/**
 	 * Retrieve the list of the object current page holds.
 	 *
@@ -141,7 +230,8 @@ public class Page<T> {
 		for(T t : getData()) {
 			newData.add(mapper.map(t));
 		}
-		return new Page<>(newData, getPage(), getMax(), getTotal());
+		return new Page<>(newData, getPage(), getMax(), getTotal(), isTotalCached(),
+				isTotalExact());
 	}
 
 	/**
@@ -160,7 +250,8 @@ public class Page<T> {
 		for(T t : getData()) {
 			newData.add(mapper.map(t));
 		}
-		return new Page<>(newData, getPage(), getMax(), getTotal());
+		return new Page<>(newData, getPage(), getMax(), getTotal(), isTotalCached(),
+				isTotalExact());
 	}
 
 }
@@ -0,0 +1,295 @@
+package org.triiskelion.tinyspring.viewmodel;
+
+import java.util.*;
+
+/**
+ * RowSet is a wrapper used to hold the rows of a query selecting specific columns. The column
+ * names are held once by the row set instead of by every row, and each row is a map view over
+ * the array of its values, so rows can be bound by the view layer like maps without copying
+ * them. The rows can not be modified through the row set, but the arrays are held as given,
+ * so the row set is immutable only if the caller does not modify them afterwards.
+ * <p/>
+ * The values of the string columns chosen on construction are deduplicated, so a column with
+ * few distinct values holds one instance of each value instead of one per row. The given
+ * arrays are left as they are, a row is copied when one of its values is replaced.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#getRowSet(String...)
+ */
+public class RowSet extends AbstractList<RowSet.Row> {
+
+	/**
+	 * Maximum number of distinct values deduplicated per column. Values beyond it are kept as
+	 * they are, so a column of unique values does not grow an unbounded pool.
+	 */
+	public static final int MAX_DEDUPLICATED_VALUES = 4096;
+
+	/**
+	 * names of the columns in the order they are selected
+	 */
+	private final List<String> columns;
+
+	private final Map<String, Integer> indexes;
+
+	private final List<Object[]> rows;
+
+	/**
+	 * @param columns
+	 * 		names of the columns
+	 * @param rows
+	 * 		the values of each row in the order of the columns, or the value itself if there is
+	 * 		only one column
+	 * @param deduplicatedColumns
+	 * 		names of the string columns to deduplicate
+	 */
+	public RowSet(List<String> columns, List<?> rows, String... deduplicatedColumns) {
+
+		this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+		this.indexes = new HashMap<>();
+		for(int i = 0; i < columns.size(); i++) {
+			if(indexes.put(columns.get(i), i) != null) {
+				throw new IllegalArgumentException("duplicated column " + columns.get(i));
+			}
+		}
+
+		List<Object[]> values = new ArrayList<>(rows.size());
+		boolean[] owned = new boolean[rows.size()];
+		for(Object row : rows) {
+			owned[values.size()] = !(row instanceof Object[]);
+			Object[] array = owned[values.size()] ? new Object[]{ row } : (Object[]) row;
+			if(array.length != columns.size()) {
+				throw new IllegalArgumentException(
+						"expected " + columns.size() + " values but was " + array.length);
+			}
+			values.add(array);
+		}
+		for(String column : deduplicatedColumns) {
+			deduplicate(values, owned, indexOf(column));
+		}
+		this.rows = values;
+	}
+
+	/**
+	 * @param owned
+	 * 		TRUE for the rows whose array was created by the row set, the others are copied
+	 * 		before a value is replaced
+	 */
+	private static void deduplicate(List<Object[]> rows, boolean[] owned, int index) {
+
+		Map<String, String> pool = new HashMap<>();
+		for(int i = 0; i < rows.size(); i++) {
+			Object[] row = rows.get(i);
+			if(!(row[index] instanceof String)) {
+				continue;
+			}
+			String value = (String) row[index];
+			String pooled = pool.get(value);
+			if(pooled == null) {
+				if(pool.size() < MAX_DEDUPLICATED_VALUES) {
+					pool.put(value, value);
+				}
+			} else if(pooled != value) {
+				if(!owned[i]) {
+					row = row.clone();
+					rows.set(i, row);
+					owned[i] = true;
+				}
+				row[index] = pooled;
+			}
+		}
+	}
+
+	/**
+	 * @return names of the columns in the order they are selected
+	 */
+	public List<String> getColumns() {
+
+		return columns;
+	}
+
+	/**
+	 * @param column
+	 * 		name of the column
+	 *
+	 * @return index of the column
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if there is no such column
+	 */
+	public int indexOf(String column) {
+
+		Integer index = indexes.get(column);
+		if(index == null) {
+			throw new IllegalArgumentException("no column " + column + " in " + columns);
+		}
+		return index;
+	}
+
+	@Override
+	public Row get(int index) {
+
+		return new Row(rows.get(index));
+	}
+
+	@Override
+	public int size() {
+
+		return rows.size();
+	}
+
+	/**
+	 * This method is used to map the rows to another model.
+	 *
+	 * @param mapper
+	 * @param <A>
+	 * 		the model to map to.
+	 *
+	 * @return the mapped instances
+	 */
+	public <A> List<A> map(Mapper<Row, A> mapper) {
+
+		List<A> result = new ArrayList<>(rows.size());
+		for(Row row : this) {
+			result.add(mapper.map(row));
+		}
+		return result;
+	}
+
+	/**
+	 * A row of the row set. It reads as an unmodifiable map from the column names to the
+	 * values, and offers typed accessors by column name or index.
+	 */
+	public class Row extends AbstractMap<String, Object> {
+
+		private final Object[] values;
+
+		Row(Object[] values) {
+
+			this.values = values;
+		}
+
+		/**
+		 * @param index
+		 * 		index of the column
+		 *
+		 * @return the value
+		 */
+		public Object get(int index) {
+
+			return values[index];
+		}
+
+		@Override
+		public Object get(Object column) {
+
+			Integer index = indexes.get(column);
+			return index == null ? null : values[index];
+		}
+
+		@Override
+		public boolean containsKey(Object column) {
+
+			return indexes.containsKey(column);
+		}
+
+		/**
+		 * @param column
+		 * 		name of the column
+		 *
+		 * @return the value
+		 *
+		 * @throws IllegalArgumentException
+		 * 		if there is no such column
+		 */
+		public Object getValue(String column) {
+
+			return values[indexOf(column)];
+		}
+
+		public String getString(String column) {
+
+			Object value = getValue(column);
+			return value == null ? null : value.toString();
+		}
+
+		public Integer getInteger(String column) {
+
+			Number value = (Number) getValue(column);
+			return value == null ? null : value.intValue();
+		}
+
+		public Long getLong(String column) {
+
+			Number value = (Number) getValue(column);
+			return value == null ? null : value.longValue();
+		}
+
+		public Double getDouble(String column) {
+
+			Number value = (Number) getValue(column);
+			return value == null ? null : value.doubleValue();
+		}
+
+		public Boolean getBoolean(String column) {
+
+			return (Boolean) getValue(column);
+		}
+
+		public Date getDate(String column) {
+
+			return (Date) getValue(column);
+		}
+
+		/**
+		 * @return a copy of the values in the order of the columns
+		 */
+		public Object[] toArray() {
+
+			return values.clone();
+		}
+
+		@Override
+		public Set<Entry<String, Object>> entrySet() {
+
+			return new AbstractSet<Entry<String, Object>>() {
+
+				@Override
+				public Iterator<Entry<String, Object>> iterator() {
+
+					return new Iterator<Entry<String, Object>>() {
+
+						private int index = 0;
+
+						@Override
+						public boolean hasNext() {
+
+							return index < values.length;
+						}
+
+						@Override
+						public Entry<String, Object> next() {
+
+							if(!hasNext()) {
+								throw new NoSuchElementException();
+							}
+							int i = index++;
+							return new SimpleImmutableEntry<>(columns.get(i), values[i]);
+						}
+
+						@Override
+						public void remove() {
+
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+
+					return values.length;
+				}
+			};
+		}
+	}
+}
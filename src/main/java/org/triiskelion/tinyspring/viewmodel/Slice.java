@@ -0,0 +1,129 @@
+package org.triiskelion.tinyspring.viewmodel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Slice is a wrapper used to hold a page of retrieved data which knows whether a next page
+ * exists but not the total, so that no count query is needed to build it. It shares the
+ * accessors of Page except the totals, so views can switch between them with little change.
+ * This object is immutable.
+ *
+ * @author Sebastian MA
+ * @see org.triiskelion.tinyspring.dao.TinyQuery#getSlice()
+ */
+public class Slice<T> {
+
+	/**
+	 * page number numbered from 1.
+	 */
+	private final long page;
+
+	/**
+	 * maximum number of the data for one page.
+	 */
+	private final long max;
+
+	/**
+	 * whether there is data after this page
+	 */
+	private final boolean hasNext;
+
+	/**
+	 * associated data
+	 */
+	private final List<T> data;
+
+	/**
+	 * @param data
+	 * 		data of the current page
+	 * @param page
+	 * 		current page number
+	 * @param max
+	 * 		max items per page
+	 * @param hasNext
+	 * 		whether there is data after this page
+	 */
+	public Slice(List<T> data, long page, long max, boolean hasNext) {
+
+		this.page = page;
+		this.max = max;
+		this.hasNext = hasNext;
+		this.data = data;
+	}
+
+	/**
+	 * @return TRUE if there is a next page
+	 */
+	public boolean hasNext() {
+
+		return hasNext;
+	}
+
+	/**
+	 * @return TRUE if there is a previous page
+	 */
+	public boolean hasPrevious() {
+
+		return page > 1;
+	}
+
+	/**
+	 * Actual object count in this page.
+	 *
+	 * @return
+	 */
+	public long getDataSize() {
+
+		return data != null ? data.size() : 0;
+	}
+
+	/**
+	 * Current page number.
+	 *
+	 * @return
+	 */
+	public long getPage() {
+
+		return page;
+	}
+
+	/**
+	 * Maximum objects per page.
+	 *
+	 * @return
+	 */
+	public long getMax() {
+
+		return max;
+	}
+
+	/**
+	 * Retrieve the list of the object current page holds.
+	 *
+	 * @return
+	 */
+	public List<T> getData() {
+
+		return new ArrayList<>(data);
+	}
+
+	/**
+	 * This method is used to map the objects in this page to another model.
+	 * It's usually used to transform  database entities to view models.
+	 *
+	 * @param mapper
+	 * @param <A>
+	 * 		the model to map to.
+	 *
+	 * @return the mapped instance
+	 */
+	public <A> Slice<A> map(Mapper<T, A> mapper) {
+
+		List<A> newData = new ArrayList<>();
+		for(T t : getData()) {
+			newData.add(mapper.map(t));
+		}
+		return new Slice<>(newData, getPage(), getMax(), hasNext());
+	}
+}
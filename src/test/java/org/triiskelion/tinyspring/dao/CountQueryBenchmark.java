@@ -0,0 +1,104 @@
+package org.triiskelion.tinyspring.dao;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.triiskelion.tinyspring.test.dao.base.User;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.triiskelion.tinyspring.dao.TinyPredicate.*;
+
+/**
+ * Compares <code>count()</code>, the existence probe of <code>hasResult()</code> and the
+ * former count based <code>hasResult()</code> on a large HSQLDB table.
+ * <p/>
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.triiskelion.tinyspring.dao.CountQueryBenchmark</code>
+ *
+ * @author Sebastian MA
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CountQueryBenchmark {
+
+	@Param({ "10000", "100000" })
+	int rows;
+
+	EntityManagerFactory emFactory;
+
+	EntityManager entityManager;
+
+	@Setup
+	public void setup() {
+
+		Map<String, String> properties = new HashMap<>();
+		properties.put("hibernate.show_sql", "false");
+		emFactory = Persistence.createEntityManagerFactory("jpa-hsqldb", properties);
+		entityManager = emFactory.createEntityManager();
+		entityManager.getTransaction().begin();
+		for(int i = 0; i < rows; i++) {
+			User user = new User();
+			user.setName("user" + i);
+			user.setSort(i);
+			entityManager.persist(user);
+			if(i % 1000 == 0) {
+				entityManager.flush();
+				entityManager.clear();
+			}
+		}
+		entityManager.getTransaction().commit();
+		entityManager.clear();
+	}
+
+	@TearDown
+	public void tearDown() {
+
+		entityManager.close();
+		emFactory.close();
+	}
+
+	TinyQuery<User> createQuery() {
+
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class);
+		query.select().where(greaterThanOrEqual("sort", 0)).orderBy("name", OrderType.ASC);
+		return query;
+	}
+
+	@Benchmark
+	public long count() {
+
+		return createQuery().count();
+	}
+
+	@Benchmark
+	public boolean hasResult() {
+
+		boolean result = createQuery().hasResult();
+		entityManager.clear();
+		return result;
+	}
+
+	@Benchmark
+	public boolean hasResultByCount() {
+
+		return createQuery().count() != 0;
+	}
+
+	public static void main(String... args) throws RunnerException {
+
+		new Runner(new OptionsBuilder()
+				.include(CountQueryBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -0,0 +1,110 @@
+package org.triiskelion.tinyspring.dao;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.triiskelion.tinyspring.test.dao.base.User;
+import org.triiskelion.tinyspring.viewmodel.KeysetPage;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares retrieving a deep page by offset with seeking to it with a keyset cursor on a large
+ * HSQLDB table ordered by its primary key.
+ * <p/>
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.triiskelion.tinyspring.dao.KeysetPaginationBenchmark</code>
+ *
+ * @author Sebastian MA
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeysetPaginationBenchmark {
+
+	static final int ROWS = 100000;
+
+	static final int PAGE_SIZE = 20;
+
+	@Param({ "10", "1000", "4000" })
+	int page;
+
+	EntityManagerFactory emFactory;
+
+	EntityManager entityManager;
+
+	String cursor;
+
+	@Setup
+	public void setup() {
+
+		Map<String, String> properties = new HashMap<>();
+		properties.put("hibernate.show_sql", "false");
+		emFactory = Persistence.createEntityManagerFactory("jpa-hsqldb", properties);
+		entityManager = emFactory.createEntityManager();
+		entityManager.getTransaction().begin();
+		for(int i = 0; i < ROWS; i++) {
+			User user = new User();
+			user.setName("user" + i);
+			user.setSort(i);
+			entityManager.persist(user);
+			if(i % 1000 == 0) {
+				entityManager.flush();
+				entityManager.clear();
+			}
+		}
+		entityManager.getTransaction().commit();
+		entityManager.clear();
+
+		List<User> previous = createQuery().limit((page - 1) * PAGE_SIZE - 1, 1).getResultList();
+		cursor = KeysetCursor.encode(new Object[]{ previous.get(0).getId() });
+		entityManager.clear();
+	}
+
+	@TearDown
+	public void tearDown() {
+
+		entityManager.close();
+		emFactory.close();
+	}
+
+	TinyQuery<User> createQuery() {
+
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class);
+		query.select().orderBy("id", OrderType.ASC);
+		return query;
+	}
+
+	@Benchmark
+	public List<User> offset() {
+
+		List<User> result = createQuery().page(page, PAGE_SIZE).getResultList();
+		entityManager.clear();
+		return result;
+	}
+
+	@Benchmark
+	public KeysetPage<User> keyset() {
+
+		KeysetPage<User> result = createQuery().seekAfter(cursor).getKeysetPage(PAGE_SIZE);
+		entityManager.clear();
+		return result;
+	}
+
+	public static void main(String... args) throws RunnerException {
+
+		new Runner(new OptionsBuilder()
+				.include(KeysetPaginationBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
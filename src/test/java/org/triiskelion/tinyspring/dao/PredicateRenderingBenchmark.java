@@ -0,0 +1,174 @@
+package org.triiskelion.tinyspring.dao;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.triiskelion.tinyspring.test.dao.base.User;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.triiskelion.tinyspring.dao.TinyPredicate.*;
+
+/**
+ * Compares the single-pass predicate renderer with the former string-joining one on deep
+ * AND/OR trees.
+ * <p/>
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.triiskelion.tinyspring.dao.PredicateRenderingBenchmark</code>
+ *
+ * @author Sebastian MA
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class PredicateRenderingBenchmark {
+
+	@Param({ "2", "4", "6" })
+	int depth;
+
+	TinyPredicate predicate;
+
+	TinyQuery<User> query;
+
+	@Setup
+	public void setup() {
+
+		predicate = createTree(depth, 0);
+		query = new TinyQuery<>(null, User.class);
+	}
+
+	@Benchmark
+	public int singlePass() {
+
+		query.index = 0;
+		query.namedParameters.clear();
+		StringBuilder buffer = new StringBuilder();
+		query.formatPredicate(predicate, buffer);
+		return buffer.length();
+	}
+
+	@Benchmark
+	public int legacy() {
+
+		Map<String, Object> parameters = new HashMap<>();
+		int[] index = new int[1];
+		return legacyFormat(predicate, parameters, index).length();
+	}
+
+	/**
+	 * Build a tree alternating AND and OR nodes with 3 children each and simple predicates as
+	 * leaves.
+	 */
+	static TinyPredicate createTree(int depth, int seed) {
+
+		if(depth == 0) {
+			switch(seed % 3) {
+				case 0:
+					return equal("name", "name" + seed);
+				case 1:
+					return between("sort", seed, seed + 10);
+				default:
+					return in("id", seed, seed + 1, seed + 2, seed + 3);
+			}
+		}
+		TinyPredicate[] children = new TinyPredicate[3];
+		for(int i = 0; i < children.length; i++) {
+			children[i] = createTree(depth - 1, seed * 3 + i);
+		}
+		// build the node directly so the tree is not flattened
+		TinyPredicate node = new TinyPredicate(depth % 2 == 0 ? PredicateType.AND : PredicateType.OR);
+		for(TinyPredicate child : children) {
+			node.predicateList.add(child);
+		}
+		return node;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////
+	// The renderer as it was before the single-pass one
+	////////////////////////////////////////////////////////////////////////////////////////
+
+	static String legacyFormat(TinyPredicate predicate, Map<String, Object> parameters,
+	                           int[] index) {
+
+		if(!predicate.isValid) {
+			return "";
+		}
+		ArrayList<String> list;
+		switch(predicate.predicateType) {
+			case SIMPLE:
+				return legacyExpression(predicate, parameters, index);
+			case AND:
+				list = new ArrayList<>();
+				for(TinyPredicate p : predicate.predicateList) {
+					String exp = legacyFormat(p, parameters, index);
+					if(StringUtils.isNotBlank(exp)) {
+						list.add(exp);
+					}
+				}
+				return "(" + StringUtils.join(list, " AND ") + ")";
+			case OR:
+				list = new ArrayList<>();
+				for(TinyPredicate p : predicate.predicateList) {
+					list.add(legacyFormat(p, parameters, index));
+				}
+				return "(" + StringUtils.join(list, " OR ") + ")";
+			default:
+				return "(NOT " + legacyFormat(predicate.predicateList.get(0), parameters,
+						index) + ")";
+		}
+	}
+
+	static String legacyExpression(TinyPredicate predicate, Map<String, Object> parameters,
+	                               int[] index) {
+
+		String column = String.format("%s", predicate.column);
+		StringBuilder buffer = new StringBuilder(column);
+		String valueHolder;
+		switch(predicate.operator) {
+			case between:
+				buffer.append(" BETWEEN");
+				String valueHolder0 = column.replace(".", "_") + "_" + index[0] + "_0";
+				String valueHolder1 = column.replace(".", "_") + "_" + index[0] + "_1";
+				parameters.put(valueHolder0, predicate.values.get(0));
+				parameters.put(valueHolder1, predicate.values.get(1));
+				index[0]++;
+				buffer.append(":").append(valueHolder0).append(" AND :").append(valueHolder1);
+				break;
+			case in:
+				buffer.append(" IN ");
+				List<String> list = new ArrayList<>();
+				for(Object value : predicate.values) {
+					valueHolder = column.replace(".", "_") + "_" + index[0] + "_"
+							+ predicate.values.indexOf(value);
+					list.add(":" + valueHolder);
+					parameters.put(valueHolder, value);
+				}
+				index[0]++;
+				buffer.append("(").append(StringUtils.join(list, ",")).append(")");
+				break;
+			default:
+				buffer.append("=");
+				valueHolder = column.replace(".", "_") + "_" + index[0];
+				parameters.put(valueHolder, predicate.values.get(0));
+				index[0]++;
+				buffer.append(":").append(valueHolder);
+		}
+		return buffer.toString();
+	}
+
+	public static void main(String... args) throws RunnerException {
+
+		new Runner(new OptionsBuilder()
+				.include(PredicateRenderingBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
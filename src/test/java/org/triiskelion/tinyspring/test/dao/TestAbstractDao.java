@@ -13,10 +13,13 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Sebastian MA
@@ -25,6 +28,8 @@ public class TestAbstractDao {
 
 	Logger log = LoggerFactory.getLogger(TestTinyQuery.class);
 
+	EntityManagerFactory emFactory;
+
 	EntityManager entityManager;
 
 	String[] names = new String[]{ "alice", "beth", "carol", "daisy", "ellen", "ellen" };
@@ -34,7 +39,7 @@ public class TestAbstractDao {
 	@Before
 	public void before() {
 
-		EntityManagerFactory emFactory = Persistence.createEntityManagerFactory("jpa-hsqldb");
+		emFactory = Persistence.createEntityManagerFactory("jpa-hsqldb");
 		entityManager = emFactory.createEntityManager();
 
 		personDao = new PersonDao();
@@ -84,5 +89,27 @@ public class TestAbstractDao {
 
 	}
 
+	@Test
+	public void testWarmUpQueries() {
+
+		assertFalse(PersonDao.FIND_BY_NAME.isRegistered(emFactory));
+		assertEquals(1, personDao.registerPreparedQueries());
+		assertTrue(PersonDao.FIND_BY_NAME.isRegistered(emFactory));
+
+		assertEquals(2, personDao.beginQuery(PersonDao.FIND_BY_NAME).param("name", "ellen")
+		                         .count());
+		assertEquals("alice", personDao.beginQuery(PersonDao.FIND_BY_NAME).param("name", "alice")
+		                               .getFirstResult().get().getName());
+	}
+
+	@Test
+	public void testTopColumnValues() {
+
+		Map<Object, Long> top = personDao.getColumnValues("name", 2);
+		assertEquals(2, top.size());
+		assertEquals(Arrays.<Object>asList("ellen", "alice"), new ArrayList<>(top.keySet()));
+		assertEquals(Long.valueOf(2), top.get("ellen"));
+		assertEquals(Long.valueOf(1), top.get("alice"));
+	}
 
 }
@@ -1,25 +1,72 @@
 package org.triiskelion.tinyspring.test.dao;
 
+import com.google.common.base.Optional;
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.triiskelion.tinyspring.dao.Aggregate;
+import org.triiskelion.tinyspring.dao.ChunkHandler;
+import org.triiskelion.tinyspring.dao.CountCache;
+import org.triiskelion.tinyspring.dao.CountEstimate;
+import org.triiskelion.tinyspring.dao.DoubleColumn;
+import org.triiskelion.tinyspring.dao.ExportFormat;
+import org.triiskelion.tinyspring.dao.ExportResult;
+import org.triiskelion.tinyspring.dao.FetchSizeAdvisor;
+import org.triiskelion.tinyspring.dao.JpqlCache;
+import org.triiskelion.tinyspring.dao.LongColumn;
 import org.triiskelion.tinyspring.dao.OrderType;
+import org.triiskelion.tinyspring.dao.PagePrefetcher;
+import org.triiskelion.tinyspring.dao.PreparedTinyQuery;
+import org.triiskelion.tinyspring.dao.TinyPredicate;
 import org.triiskelion.tinyspring.dao.TinyQuery;
 import org.triiskelion.tinyspring.test.dao.base.Book;
+import org.triiskelion.tinyspring.test.dao.base.HsqldbRowCountEstimator;
 import org.triiskelion.tinyspring.test.dao.base.Person;
 import org.triiskelion.tinyspring.test.dao.base.User;
+import org.triiskelion.tinyspring.test.dao.base.UserView;
+import org.triiskelion.tinyspring.viewmodel.KeysetPage;
+import org.triiskelion.tinyspring.viewmodel.Mapper;
 import org.triiskelion.tinyspring.viewmodel.Page;
+import org.triiskelion.tinyspring.viewmodel.RowSet;
+import org.triiskelion.tinyspring.viewmodel.Slice;
 
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.CacheStoreMode;
+import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
 import javax.persistence.Persistence;
+import javax.persistence.PersistenceUtil;
 import javax.persistence.Query;
+import javax.persistence.QueryTimeoutException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.triiskelion.tinyspring.dao.TinyPredicate.*;
 
 /**
@@ -350,6 +397,1132 @@ public class TestTinyQuery {
 	}
 
 
+	@Test
+	public void testFormatPredicate() {
+
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		String jpql = query.select()
+		                   .where(or(equal("name", "alice"),
+		                             and(between("sort", 1, 2), in("id", 1, 1))))
+		                   .toString();
+		assertTrue(jpql.endsWith(" WHERE ((_this.id IN (:_this_id_0_0,:_this_id_0_1) AND " +
+				"_this.sort BETWEEN :_this_sort_1_0 AND :_this_sort_1_1) OR " +
+				"_this.name=:_this_name_2)"));
+	}
+
+	@Test
+	public void testCountQuery() {
+
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		query.select().where(isNotNull("name")).orderBy("name", OrderType.DESC);
+		assertEquals(6, query.count());
+
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.select("name").distinct().where(isNotNull("name"));
+		assertEquals(5, query.count());
+		assertEquals(5, query.getUntypedResultList().size());
+
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.query("SELECT DISTINCT m.name FROM User m WHERE m.name IS NOT NULL ORDER BY m.name");
+		assertEquals(5, query.count());
+
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.query("SELECT m.name, count(m) FROM User m WHERE m.name IS NOT NULL GROUP BY m.name");
+		assertEquals(5, query.count());
+
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.query("SELECT m FROM User m JOIN FETCH m.books WHERE m.name='alice' ORDER BY m.id");
+		assertEquals(2, query.count());
+
+		// shapes without a count query are counted by their rows
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.select("name", "count(*)").where(isNotNull("name")).groupBy("name")
+		     .having(greaterThanOrEqual("count(*)", 2L)).orderBy("name", OrderType.ASC);
+		assertEquals(1, query.count());
+		assertEquals(1, query.getUntypedResultList().size());
+
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.select("max(sort)").where(isNotNull("name"));
+		assertEquals(1, query.count());
+
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.select("name", "sort").distinct().where(isNotNull("name"));
+		assertEquals(6, query.count());
+
+		PreparedTinyQuery<User> grouped = new TinyQuery<>(User.class)
+				.select("name", "count(*)")
+				.where(in("name", parameter("names")))
+				.groupBy("name")
+				.prepare();
+		assertEquals(2, grouped.with(entityManager)
+		                       .param("names", listOf("alice", "ellen")).count());
+	}
+
+	@Test
+	public void testHasResult() {
+
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		assertTrue(query.select().where(equal("name", "ellen")).hasResult());
+
+		query = new TinyQuery<>(entityManager, User.class, true);
+		assertTrue(query.select().where(equal("name", "frank")).hasNoResult());
+
+		// the probe neither loads the entities nor fetches their collections
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.select().leftJoinFetch("books").where(equal("name", "alice"))
+		     .orderBy("sort", OrderType.ASC);
+		assertTrue(query.hasResult());
+		assertTrue(new TinyQuery<>(entityManager, User.class, true)
+				           .select().joinFetch("books").where(equal("name", "beth"))
+				           .hasNoResult());
+
+		// aggregates have a row without matching rows
+		query = new TinyQuery<>(entityManager, User.class, true);
+		assertTrue(query.select(Aggregate.MAX.of("sort")).where(equal("name", "frank"))
+		                .hasResult());
+
+		PreparedTinyQuery<User> prepared
+				= new TinyQuery<>(User.class).select().leftJoinFetch("books")
+				                             .where(equal("name", parameter("name")))
+				                             .prepare();
+		assertTrue(prepared.with(entityManager).param("name", "alice").hasResult());
+		assertTrue(prepared.with(entityManager).param("name", "frank").hasNoResult());
+	}
+
+	@Test
+	public void testSubquery() {
+
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		List<User> result = query.select()
+		                         .where(exists(new TinyQuery<>(Book.class)
+				                         .select()
+				                         .where(equal("user.id", outer("id")))))
+		                         .getResultList();
+		assertEquals(1, result.size());
+		assertEquals("alice", result.get(0).getName());
+
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.select()
+		     .where(isNotNull("name"),
+				     notExists(new TinyQuery<>(Book.class).select()
+				                                          .where(equal("user.id", outer("id")))));
+		assertEquals(5, query.count());
+
+		// parameters of the subquery do not clash with the enclosing query's
+		for(String name : new String[]{ "alice", "carol" }) {
+			query = new TinyQuery<>(entityManager, User.class, true);
+			query.select()
+			     .where(or(equal("name", "beth"),
+					     in("id", new TinyQuery<>(User.class).select("id")
+					                                         .where(equal("name", name)))));
+			assertEquals(2, query.getResultList().size());
+			assertEquals(2, query.count());
+		}
+
+		// the aliases of the subquery do not clash with the enclosing query's
+		query = new TinyQuery<>(entityManager, User.class, true);
+		result = query.select()
+		              .join(Book.class, "books", "b")
+		              .where(equal("b", "title", "Harry Porter"),
+				              exists(new TinyQuery<>(User.class)
+						              .select()
+						              .join(Book.class, "books", "b")
+						              .where(isNotNull("b", "title"), equal("id", outer("id")))))
+		              .getResultList();
+		assertEquals(1, result.size());
+		assertEquals("alice", result.get(0).getName());
+		assertTrue(query.toString().matches(".*JOIN _s\\d+\\.books _s\\d+_b .*"));
+
+		try {
+			exists(new TinyQuery<>(Book.class).select().orderBy("title", OrderType.ASC));
+			fail("ordered subquery must be rejected");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPreparedSubquery() {
+
+		PreparedTinyQuery<User> prepared
+				= new TinyQuery<>(User.class).select()
+				                             .where(in("id", new TinyQuery<>(Book.class)
+						                             .select("user.id")
+						                             .where(equal("title", parameter("title")))))
+				                             .prepare();
+		assertTrue(prepared.getParameterNames().contains("title"));
+		List<User> result = prepared.with(entityManager)
+		                            .param("title", "Harry Porter")
+		                            .getResultList();
+		assertEquals(1, result.size());
+		assertEquals("alice", result.get(0).getName());
+	}
+
+	@Test
+	public void testJoinFetch() {
+
+		PersistenceUtil util = Persistence.getPersistenceUtil();
+		entityManager.clear();
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		List<User> result = query.select()
+		                         .distinct()
+		                         .leftJoinFetch("books")
+		                         .where(isNotNull("name"))
+		                         .orderBy("sort", OrderType.ASC)
+		                         .getResultList();
+		assertEquals(6, result.size());
+		assertTrue(util.isLoaded(result.get(1), "books"));
+		assertEquals(2, result.get(0).getBooks().size());
+
+		entityManager.clear();
+		query = new TinyQuery<>(entityManager, User.class, true);
+		Page<User> page = query.select()
+		                       .distinct()
+		                       .leftJoinFetch("books")
+		                       .where(isNotNull("name"))
+		                       .page(1, 4)
+		                       .getPagedResult();
+		assertEquals(6, page.getTotal());
+		assertEquals(4, page.getDataSize());
+		assertTrue(util.isLoaded(page.getData().get(0), "books"));
+
+		// the inner fetch join still restricts the count
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.select().distinct().joinFetch("books");
+		assertEquals(1, query.count());
+		assertEquals(1, query.getResultList().size());
+	}
+
+	@Test
+	public void testIdFirstPaging() {
+
+		PersistenceUtil util = Persistence.getPersistenceUtil();
+		entityManager.clear();
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		Page<User> page = query.select()
+		                       .leftJoinFetch("books")
+		                       .where(isNotNull("name"))
+		                       .orderBy("sort", OrderType.DESC)
+		                       .page(2, 2)
+		                       .getPagedResult();
+		assertEquals(6, page.getTotal());
+		assertEquals(2, page.getDataSize());
+		assertEquals(Integer.valueOf(3), page.getData().get(0).getSort());
+		assertEquals(Integer.valueOf(2), page.getData().get(1).getSort());
+		assertTrue(util.isLoaded(page.getData().get(0), "books"));
+
+		// the rows of the collection do not take up the page
+		entityManager.clear();
+		query = new TinyQuery<>(entityManager, User.class, true);
+		List<User> result = query.select()
+		                         .leftJoinFetch("books")
+		                         .where(isNotNull("name"))
+		                         .orderBy("sort", OrderType.ASC)
+		                         .limit(0, 3)
+		                         .getResultList();
+		assertEquals(3, result.size());
+		assertEquals("alice", result.get(0).getName());
+		assertEquals(2, result.get(0).getBooks().size());
+		assertEquals("carol", result.get(2).getName());
+
+		// the ids of a page larger than the IN list limit are loaded in chunks
+		entityManager.clear();
+		query = new TinyQuery<>(entityManager, User.class, true);
+		result = query.select()
+		              .leftJoinFetch("books")
+		              .where(isNotNull("name"))
+		              .orderBy("sort", OrderType.ASC)
+		              .inListLimit(2)
+		              .limit(0, 5)
+		              .getResultList();
+		assertEquals(5, result.size());
+		assertEquals("alice", result.get(0).getName());
+		assertEquals(2, result.get(0).getBooks().size());
+		assertEquals("ellen", result.get(4).getName());
+
+		entityManager.clear();
+		EntityGraph<User> graph = entityManager.createEntityGraph(User.class);
+		graph.addAttributeNodes("books");
+		query = new TinyQuery<>(entityManager, User.class, true);
+		result = query.select()
+		              .where(isNotNull("name"))
+		              .orderBy("name", OrderType.DESC)
+		              .fetchGraph(graph)
+		              .limit(4, 2)
+		              .getResultList();
+		assertEquals(2, result.size());
+		assertEquals("beth", result.get(0).getName());
+		assertEquals("alice", result.get(1).getName());
+		assertTrue(util.isLoaded(result.get(1), "books"));
+	}
+
+	@Test
+	public void testInitialize() {
+
+		PersistenceUtil util = Persistence.getPersistenceUtil();
+		Statistics statistics = entityManager.unwrap(Session.class).getSessionFactory()
+		                                     .getStatistics();
+		statistics.setStatisticsEnabled(true);
+		try {
+			entityManager.clear();
+			TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+			Page<User> page = query.select()
+			                       .where(isNotNull("name"))
+			                       .orderBy("sort", OrderType.ASC)
+			                       .page(1, 4)
+			                       .initialize("books")
+			                       .inListLimit(2)
+			                       .getPagedResult();
+			for(User user : page.getData()) {
+				assertTrue(util.isLoaded(user, "books"));
+			}
+
+			statistics.clear();
+			int books = 0;
+			for(User user : page.getData()) {
+				books += user.getBooks().size();
+			}
+			assertEquals(2, books);
+			assertEquals(0, statistics.getPrepareStatementCount());
+		} finally {
+			statistics.setStatisticsEnabled(false);
+		}
+	}
+
+	@Test
+	public void testEntityGraph() {
+
+		EntityGraph<User> graph = entityManager.createEntityGraph(User.class);
+		graph.addAttributeNodes("books");
+
+		entityManager.clear();
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		Optional<User> user = query.select()
+		                           .where(equal("name", "alice"))
+		                           .loadGraph(graph)
+		                           .getFirstResult();
+		assertTrue(Persistence.getPersistenceUtil().isLoaded(user.get(), "books"));
+	}
+
+	@Test
+	public void testExecutionHints() {
+
+		entityManager.clear();
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		List<User> result = query.select()
+		                         .where(isNotNull("name"))
+		                         .fetchSize(100)
+		                         .timeout(5000)
+		                         .flushMode(FlushModeType.COMMIT)
+		                         .readOnly(true)
+		                         .cacheMode(CacheRetrieveMode.BYPASS, CacheStoreMode.BYPASS)
+		                         .getResultList();
+		assertEquals(6, result.size());
+		assertEquals(Integer.valueOf(100), query.getFetchSize());
+		assertTrue(entityManager.unwrap(Session.class).isReadOnly(result.get(0)));
+		assertEquals(6, query.count());
+	}
+
+	@Test
+	public void testAdaptiveFetchSize() {
+
+		TinyQuery.getFetchSizeAdvisor().clear();
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		query.select().where(isNotNull("name")).fetchSize(500).adaptiveFetchSize();
+		assertEquals(Integer.valueOf(500), query.getFetchSize());
+		assertEquals(6, query.getResultList().size());
+		assertEquals(Integer.valueOf(FetchSizeAdvisor.DEFAULT_MIN_FETCH_SIZE),
+				query.getFetchSize());
+
+		// queries of the same shape share the observation
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.select().where(isNotNull("name")).adaptiveFetchSize();
+		assertEquals(Integer.valueOf(FetchSizeAdvisor.DEFAULT_MIN_FETCH_SIZE),
+				query.getFetchSize());
+	}
+
+	@Test
+	public void testForEachChunk() {
+
+		final List<String> names = new ArrayList<>();
+		final List<Integer> sizes = new ArrayList<>();
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		long rows = query.select()
+		                 .where(isNotNull("name"))
+		                 .orderBy("name", OrderType.DESC)
+		                 .forEachChunk(4, new ChunkHandler<User>() {
+
+			                 @Override
+			                 public boolean handle(List<User> chunk) {
+
+				                 for(User user : chunk) {
+					                 names.add(user.getName());
+				                 }
+				                 sizes.add(chunk.size());
+				                 return true;
+			                 }
+		                 });
+		assertEquals(6, rows);
+		assertEquals(listOf(4, 2), sizes);
+		assertEquals(listOf("ellen", "ellen", "daisy", "carol", "beth", "alice"), names);
+		// the query is left as it was
+		assertEquals(6, query.getResultList().size());
+
+		// changes are flushed before the entities are detached
+		entityManager.getTransaction().begin();
+		query = new TinyQuery<>(entityManager, User.class, true);
+		final List<User> handled = new ArrayList<>();
+		query.select().where(equal("name", "ellen")).forEachChunk(1, new ChunkHandler<User>() {
+
+			@Override
+			public boolean handle(List<User> chunk) {
+
+				chunk.get(0).setName("fiona");
+				handled.add(chunk.get(0));
+				return false;
+			}
+		});
+		entityManager.getTransaction().commit();
+		assertEquals(1, handled.size());
+		assertTrue(!entityManager.contains(handled.get(0)));
+		assertEquals(1, new TinyQuery<>(entityManager, User.class)
+				.select().where(equal("name", "fiona")).count());
+
+		// the entities fetched with a chunk are released as well
+		final List<Book> books = new ArrayList<>();
+		new TinyQuery<>(entityManager, User.class, true)
+				.select().leftJoinFetch("books").where(equal("name", "alice"))
+				.forEachChunk(1, new ChunkHandler<User>() {
+
+					@Override
+					public boolean handle(List<User> chunk) {
+
+						books.addAll(chunk.get(0).getBooks());
+						return false;
+					}
+				});
+		assertTrue(!books.isEmpty());
+		for(Book book : books) {
+			assertTrue(!entityManager.contains(book));
+		}
+	}
+
+	@Test
+	public void testStream() {
+
+		List<String> names = new ArrayList<>();
+		Iterator<User> iterator = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(isNotNull("name")).orderBy("sort", OrderType.ASC).stream(2);
+		User first = iterator.next();
+		while(iterator.hasNext()) {
+			names.add(iterator.next().getName());
+		}
+		assertEquals(listOf("beth", "carol", "daisy", "ellen", "ellen"), names);
+		assertTrue(!entityManager.contains(first));
+
+		// selected columns are walked by offset
+		List<Object> sorts = new ArrayList<>();
+		Iterator columns = new TinyQuery<>(entityManager, User.class, true)
+				.select("name", "sort").where(isNotNull("name"), isNotNull("sort"))
+				.orderBy("sort", OrderType.DESC).stream(4);
+		while(columns.hasNext()) {
+			sorts.add(((Object[]) columns.next())[1]);
+		}
+		assertEquals(listOf(5, 4, 3, 2, 1, 0), sorts);
+	}
+
+	@Test
+	public void testStreamNullsLast() {
+
+		// sort NULLs last like PostgreSQL and Oracle, the books have no sort
+		setNullsFirst(false);
+		try {
+			Iterator<User> iterator = new TinyQuery<>(entityManager, User.class, true)
+					.select().orderBy("sort", OrderType.ASC).stream(3);
+			List<Integer> sorts = new ArrayList<>();
+			while(iterator.hasNext()) {
+				sorts.add(iterator.next().getSort());
+			}
+			assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, null, null), sorts);
+
+			LongColumn column = new TinyQuery<>(entityManager, User.class, true)
+					.select().orderBy("sort", OrderType.ASC).getLongColumn("sort");
+			assertEquals(8, column.size());
+			assertEquals(2, column.getNullCount());
+			assertTrue(column.isNull(7));
+		} finally {
+			setNullsFirst(true);
+		}
+	}
+
+	private void setNullsFirst(boolean nullsFirst) {
+
+		entityManager.getTransaction().begin();
+		entityManager.createNativeQuery("SET DATABASE SQL NULLS FIRST " + nullsFirst)
+		             .executeUpdate();
+		entityManager.getTransaction().commit();
+	}
+
+	@Test
+	public void testSlice() {
+
+		TinyQuery<Person> query = new TinyQuery<>(entityManager, Person.class, true);
+		Slice<Person> slice = query.select().orderBy("name", OrderType.ASC).page(2, 4).getSlice();
+		assertEquals(2, slice.getPage());
+		assertEquals(4, slice.getMax());
+		assertEquals(2, slice.getDataSize());
+		assertTrue(!slice.hasNext());
+		assertTrue(slice.hasPrevious());
+
+		query = new TinyQuery<>(entityManager, Person.class, true);
+		slice = query.select().orderBy("name", OrderType.ASC).limit(0, 5).getSlice();
+		assertEquals(1, slice.getPage());
+		assertEquals(5, slice.getDataSize());
+		assertTrue(slice.hasNext());
+		assertEquals("alice", slice.getData().get(0).getName());
+
+		List<Integer> sorts = FIND_BY_NAMES.with(entityManager)
+		                                   .param("names", listOf("alice", "beth", "carol"))
+		                                   .page(1, 3)
+		                                   .getSlice()
+		                                   .map(new Mapper<User, Integer>() {
+
+			                                   @Override
+			                                   public Integer map(User user) {
+
+				                                   return user.getSort();
+			                                   }
+		                                   })
+		                                   .getData();
+		assertEquals(listOf(0, 1, 2), sorts);
+	}
+
+	@Test
+	public void testKeysetPage() {
+
+		List<Integer> sorts = new ArrayList<>();
+		String cursor = null;
+		int pages = 0;
+		do {
+			TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+			KeysetPage<User> page = query.select()
+			                             .where(isNotNull("sort"))
+			                             .orderBy("sort", OrderType.DESC)
+			                             .seekAfter(cursor)
+			                             .getKeysetPage(2);
+			for(User user : page.getData()) {
+				sorts.add(user.getSort());
+			}
+			cursor = page.getNextCursor();
+			pages++;
+		} while(cursor != null);
+		assertEquals(3, pages);
+		assertEquals(listOf(5, 4, 3, 2, 1, 0), sorts);
+
+		// a fetched collection does not multiply the rows of a page
+		PersistenceUtil util = Persistence.getPersistenceUtil();
+		entityManager.clear();
+		KeysetPage<User> page = new TinyQuery<>(entityManager, User.class, true)
+				.select()
+				.leftJoinFetch("books")
+				.where(isNotNull("name"))
+				.orderBy("sort", OrderType.ASC)
+				.getKeysetPage(2);
+		assertEquals(2, page.getDataSize());
+		assertEquals("alice", page.getData().get(0).getName());
+		assertEquals("beth", page.getData().get(1).getName());
+		assertTrue(util.isLoaded(page.getData().get(0), "books"));
+		assertEquals(2, page.getData().get(0).getBooks().size());
+		page = new TinyQuery<>(entityManager, User.class, true)
+				.select()
+				.leftJoinFetch("books")
+				.where(isNotNull("name"))
+				.orderBy("sort", OrderType.ASC)
+				.seekAfter(page.getNextCursor())
+				.getKeysetPage(2);
+		assertEquals("carol", page.getData().get(0).getName());
+		assertEquals("daisy", page.getData().get(1).getName());
+
+		// the associations are initialized in batches as for other pages
+		entityManager.clear();
+		page = new TinyQuery<>(entityManager, User.class, true)
+				.select()
+				.initialize("books")
+				.where(isNotNull("name"))
+				.orderBy("sort", OrderType.ASC)
+				.getKeysetPage(2);
+		assertTrue(util.isLoaded(page.getData().get(0), "books"));
+	}
+
+	@Test
+	public void testKeysetPageMixedOrder() {
+
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		KeysetPage<User> page = query.select()
+		                             .where(isNotNull("name"))
+		                             .orderBy("name", OrderType.ASC)
+		                             .orderBy("sort", OrderType.DESC)
+		                             .getKeysetPage(5);
+		assertEquals(5, page.getDataSize());
+		assertEquals(Integer.valueOf(5), page.getData().get(4).getSort());
+		assertTrue(page.hasNext());
+
+		// the restrictions conjoined with OR are kept together
+		query = new TinyQuery<>(entityManager, User.class, true);
+		page = query.select()
+		            .where(equal("name", "ellen"))
+		            .or(equal("name", "alice"))
+		            .orderBy("name", OrderType.ASC)
+		            .orderBy("sort", OrderType.DESC)
+		            .seekAfter(page.getNextCursor())
+		            .getKeysetPage(5);
+		assertEquals(1, page.getDataSize());
+		assertEquals("ellen", page.getData().get(0).getName());
+		assertEquals(Integer.valueOf(4), page.getData().get(0).getSort());
+		assertTrue(!page.hasNext());
+
+		// selected columns
+		query = new TinyQuery<>(entityManager, User.class, true);
+		KeysetPage<User> columns = query.select("name", "sort")
+		                                .where(isNotNull("name"))
+		                                .orderBy("name", OrderType.DESC)
+		                                .orderBy("sort", OrderType.ASC)
+		                                .getKeysetPage(1);
+		query = new TinyQuery<>(entityManager, User.class, true);
+		List<Object[]> next = query.select("name", "sort")
+		                           .where(isNotNull("name"))
+		                           .orderBy("name", OrderType.DESC)
+		                           .orderBy("sort", OrderType.ASC)
+		                           .seekAfter(columns.getNextCursor())
+		                           .getUntypedResultList();
+		assertEquals(5, next.size());
+		assertEquals(5, next.get(0)[1]);
+	}
+
+	@Test
+	public void testInListPadding() {
+
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		String three = query.select().where(in("sort", 0, 1, 2)).toString();
+		assertTrue(three.endsWith("_this.sort IN (:_this_sort_0_0,:_this_sort_0_1," +
+				":_this_sort_0_2,:_this_sort_0_3)"));
+		assertEquals(3, query.count());
+
+		// lists of the same size bucket share the JPQL
+		query = new TinyQuery<>(entityManager, User.class, true);
+		assertEquals(three, query.select().where(in("sort", 3, 4, 5, 6)).toString());
+		assertEquals(3, query.getResultList().size());
+	}
+
+	@Test
+	public void testInListChunks() {
+
+		List<Integer> sorts = new ArrayList<>();
+		for(int i = 2499; i >= 0; i--) {
+			sorts.add(i);
+		}
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		query.select().where(in("sort", sorts), isNotNull("name")).inListLimit(1000);
+		assertEquals(6, query.count());
+		assertEquals(6, query.getResultList().size());
+		assertTrue(query.hasResult());
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			query = new TinyQuery<>(entityManager, User.class, true);
+			query.select().where(in("sort", sorts)).inListLimit(1000).parallel(executor);
+			assertEquals(6, query.count());
+			assertEquals(6, query.getResultList().size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentCount() throws Exception {
+
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		try {
+			TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+			Page<User> page = query.select()
+			                       .where(isNotNull("name"))
+			                       .orderBy("sort", OrderType.ASC)
+			                       .page(2, 4)
+			                       .concurrentCount(executor, 5000)
+			                       .getPagedResult();
+			assertEquals(6, page.getTotal());
+			assertEquals(2, page.getDataSize());
+
+			// sequential inside a transaction, the other entity manager can not see the insert
+			entityManager.getTransaction().begin();
+			Person person = new Person();
+			person.setName("fiona");
+			entityManager.persist(person);
+			entityManager.flush();
+			Page<Person> persons = new TinyQuery<>(entityManager, Person.class, true)
+					.select().page(1, 10).concurrentCount(executor, 5000).getPagedResult();
+			assertEquals(7, persons.getTotal());
+			assertEquals(7, persons.getDataSize());
+			entityManager.getTransaction().rollback();
+
+			// the count waits behind a blocked task and times out
+			final CountDownLatch latch = new CountDownLatch(1);
+			executor.submit(new Callable<Object>() {
+
+				@Override
+				public Object call() throws Exception {
+
+					return latch.await(5, TimeUnit.SECONDS);
+				}
+			});
+			try {
+				new TinyQuery<>(entityManager, User.class, true)
+						.select().page(1, 2).concurrentCount(executor, 50).getPagedResult();
+				fail();
+			} catch(QueryTimeoutException e) {
+				// expected
+			} finally {
+				latch.countDown();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCountCache() {
+
+		CountCache cache = TinyQuery.getCountCache();
+		cache.clear();
+
+		Page<User> page = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(isNotNull("name")).page(1, 4).cacheCount().getPagedResult();
+		assertEquals(6, page.getTotal());
+		assertTrue(!page.isTotalCached());
+
+		page = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(isNotNull("name")).page(2, 4).cacheCount().getPagedResult();
+		assertEquals(6, page.getTotal());
+		assertEquals(2, page.getDataSize());
+		assertTrue(page.isTotalCached());
+
+		// other values are counted
+		page = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(equal("name", "ellen")).page(1, 4).cacheCount().getPagedResult();
+		assertEquals(2, page.getTotal());
+		assertTrue(!page.isTotalCached());
+
+		// modifying the entity class evicts its totals until the transaction ends
+		entityManager.getTransaction().begin();
+		new TinyQuery<>(entityManager, User.class, true)
+				.update().set("name", null).where(equal("name", "alice")).execute();
+		assertEquals(0, cache.size());
+		// the modifying transaction counts by itself without caching
+		page = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(isNotNull("name")).page(1, 4).cacheCount().getPagedResult();
+		assertEquals(5, page.getTotal());
+		assertTrue(!page.isTotalCached());
+		assertEquals(0, cache.size());
+		entityManager.getTransaction().commit();
+		page = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(isNotNull("name")).page(1, 4).cacheCount().getPagedResult();
+		assertEquals(5, page.getTotal());
+		assertTrue(!page.isTotalCached());
+
+		// so does modifying the entity class of a subquery
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		query.select()
+		     .where(exists(new TinyQuery<>(Book.class).select()
+		                                              .where(equal("user.id", outer("id")))))
+		     .page(1, 4)
+		     .cacheCount()
+		     .getPagedResult();
+		assertEquals(1, query.getPagedResult().getTotal());
+		assertTrue(query.getPagedResult().isTotalCached());
+		entityManager.getTransaction().begin();
+		new TinyQuery<>(entityManager, Book.class, true)
+				.update().set("title", "Dune").where(equal("title", "Harry Porter")).execute();
+		entityManager.getTransaction().commit();
+		assertTrue(!query.getPagedResult().isTotalCached());
+		cache.clear();
+	}
+
+	@Test
+	public void testCountCacheAcrossTransactions() {
+
+		CountCache cache = TinyQuery.getCountCache();
+		cache.clear();
+		EntityManager other = entityManager.getEntityManagerFactory().createEntityManager();
+		try {
+			Page<User> page = new TinyQuery<>(other, User.class, true)
+					.select().where(isNotNull("name")).page(1, 4).cacheCount().getPagedResult();
+			assertEquals(6, page.getTotal());
+
+			entityManager.getTransaction().begin();
+			new TinyQuery<>(entityManager, User.class, true)
+					.update().set("name", null).where(equal("name", "beth")).execute();
+			entityManager.getTransaction().commit();
+			// a new transaction of the same entity manager before the cache is used again
+			entityManager.getTransaction().begin();
+
+			page = new TinyQuery<>(other, User.class, true)
+					.select().where(isNotNull("name")).page(1, 4).cacheCount().getPagedResult();
+			assertEquals(5, page.getTotal());
+			assertTrue(!page.isTotalCached());
+			entityManager.getTransaction().commit();
+
+			page = new TinyQuery<>(other, User.class, true)
+					.select().where(isNotNull("name")).page(1, 4).cacheCount().getPagedResult();
+			page = new TinyQuery<>(other, User.class, true)
+					.select().where(isNotNull("name")).page(1, 4).cacheCount().getPagedResult();
+			assertEquals(5, page.getTotal());
+			assertTrue(page.isTotalCached());
+		} finally {
+			other.close();
+			cache.clear();
+		}
+	}
+
+	@Test
+	public void testApproximateCount() {
+
+		// counted up to the threshold
+		Page<User> page = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(isNotNull("name")).page(1, 2).approximateCount(3).getPagedResult();
+		assertEquals(3, page.getTotal());
+		assertTrue(!page.isTotalExact());
+		assertTrue(page.hasNext());
+
+		CountEstimate estimate = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(isNotNull("name")).approximateCount(3).estimateCount();
+		assertEquals("3+", estimate.toString());
+
+		estimate = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(equal("name", "ellen")).approximateCount(3).estimateCount();
+		assertEquals(new CountEstimate(2, CountEstimate.Kind.EXACT), estimate);
+
+		estimate = new TinyQuery<>(entityManager, User.class, true)
+				.select("name").distinct().approximateCount(100).estimateCount();
+		assertEquals(new CountEstimate(6, CountEstimate.Kind.EXACT), estimate);
+
+		// only the exact totals are cached, then they are used by any threshold
+		TinyQuery.getCountCache().clear();
+		page = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(isNotNull("name")).page(1, 2).approximateCount(3).cacheCount()
+				.getPagedResult();
+		assertTrue(!page.isTotalExact());
+		assertEquals(0, TinyQuery.getCountCache().size());
+		for(int i = 0; i < 2; i++) {
+			page = new TinyQuery<>(entityManager, User.class, true)
+					.select().where(isNotNull("name")).page(1, 2).approximateCount(100)
+					.cacheCount().getPagedResult();
+			assertEquals(6, page.getTotal());
+			assertTrue(page.isTotalExact());
+			assertEquals(i == 1, page.isTotalCached());
+		}
+		page = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(isNotNull("name")).page(1, 2).approximateCount(3).cacheCount()
+				.getPagedResult();
+		assertEquals(6, page.getTotal());
+		assertTrue(page.isTotalCached());
+		TinyQuery.getCountCache().clear();
+
+		// estimated from the statistics when unfiltered
+		TinyQuery.setRowCountEstimator(new HsqldbRowCountEstimator());
+		try {
+			estimate = new TinyQuery<>(entityManager, Person.class, true)
+					.select().approximateCount(3).estimateCount();
+			assertEquals(new CountEstimate(names.length, CountEstimate.Kind.ESTIMATED), estimate);
+
+			estimate = new TinyQuery<>(entityManager, Person.class, true)
+					.select().where(equal("name", "alice")).approximateCount(3).estimateCount();
+			assertTrue(estimate.isExact());
+
+			Page<Person> persons = new TinyQuery<>(entityManager, Person.class, true)
+					.select().page(1, 4).approximateCount(100).getPagedResult();
+			assertEquals(names.length, persons.getTotal());
+			assertTrue(persons.isTotalExact());
+		} finally {
+			TinyQuery.setRowCountEstimator(null);
+		}
+	}
+
+	@Test
+	public void testPrefetch() {
+
+		PagePrefetcher prefetcher = new PagePrefetcher();
+		TinyQuery.setPagePrefetcher(prefetcher);
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		try {
+			List<Integer> sorts = new ArrayList<>();
+			for(int page = 1; page <= 3; page++) {
+				TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+				for(User user : query.select()
+				                     .where(isNotNull("name"))
+				                     .orderBy("sort", OrderType.ASC)
+				                     .page(page, 2)
+				                     .prefetch(executor)
+				                     .getResultList()) {
+					sorts.add(user.getSort());
+				}
+			}
+			assertEquals(listOf(0, 1, 2, 3, 4, 5), sorts);
+			assertEquals(2, prefetcher.getHitCount());
+			assertEquals(1, prefetcher.getMissCount());
+			// the third page is full, so the fourth one is prefetched
+			assertEquals(3, prefetcher.getPrefetchCount());
+
+			// other values are not answered from the buffer
+			Slice<User> slice = new TinyQuery<>(entityManager, User.class, true)
+					.select().where(equal("name", "ellen")).page(2, 1).prefetch(executor)
+					.getSlice();
+			assertEquals(1, slice.getDataSize());
+			assertTrue(!slice.hasNext());
+			assertEquals(2, prefetcher.getHitCount());
+
+			// a modification discards the prefetched pages
+			new TinyQuery<>(entityManager, User.class, true)
+					.select().where(isNotNull("name")).orderBy("sort", OrderType.ASC)
+					.page(1, 2).prefetch(executor).getResultList();
+			entityManager.getTransaction().begin();
+			new TinyQuery<>(entityManager, User.class, true)
+					.update().set("name", "xenia").where(equal("name", "carol")).execute();
+			entityManager.getTransaction().commit();
+			assertEquals(0, prefetcher.size());
+			assertTrue(prefetcher.getWastedCount() >= 2);
+
+			entityManager.clear();
+			List<User> page = new TinyQuery<>(entityManager, User.class, true)
+					.select().where(isNotNull("name")).orderBy("sort", OrderType.ASC)
+					.page(2, 2).prefetch(executor).getResultList();
+			assertEquals("xenia", page.get(0).getName());
+			assertEquals(2, prefetcher.getHitCount());
+
+			// the slices are prefetched with their lookahead row
+			List<String> names = new ArrayList<>();
+			for(int number = 1; number <= 3; number++) {
+				slice = new TinyQuery<>(entityManager, User.class, true)
+						.select().where(isNotNull("name")).orderBy("sort", OrderType.ASC)
+						.page(number, 2).prefetch(executor).getSlice();
+				assertEquals(number < 3, slice.hasNext());
+				for(User user : slice.getData()) {
+					names.add(user.getName());
+				}
+			}
+			assertEquals(listOf("alice", "beth", "xenia", "daisy", "ellen", "ellen"), names);
+			assertEquals(4, prefetcher.getHitCount());
+		} finally {
+			executor.shutdown();
+			TinyQuery.setPagePrefetcher(new PagePrefetcher());
+		}
+	}
+
+	@Test
+	public void testPrefetchQueued() {
+
+		PagePrefetcher prefetcher = new PagePrefetcher(PagePrefetcher.DEFAULT_MAXIMUM_SIZE,
+				PagePrefetcher.DEFAULT_TIME_TO_LIVE, TimeUnit.SECONDS, 50, TimeUnit.MILLISECONDS);
+		TinyQuery.setPagePrefetcher(prefetcher);
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		final CountDownLatch latch = new CountDownLatch(1);
+		try {
+			// keep the only thread busy so that the prefetch stays queued
+			executor.submit(new Callable<Object>() {
+
+				@Override
+				public Object call() throws Exception {
+
+					return latch.await(1, TimeUnit.MINUTES);
+				}
+			});
+			for(int page = 1; page <= 2; page++) {
+				List<User> result = new TinyQuery<>(entityManager, User.class, true)
+						.select().where(isNotNull("name")).orderBy("sort", OrderType.ASC)
+						.page(page, 2).prefetch(executor).getResultList();
+				assertEquals(Integer.valueOf(page * 2 - 2), result.get(0).getSort());
+			}
+			// the queued prefetch is cancelled after the maximum wait
+			assertEquals(0, prefetcher.getHitCount());
+			assertEquals(2, prefetcher.getMissCount());
+		} finally {
+			latch.countDown();
+			executor.shutdown();
+			TinyQuery.setPagePrefetcher(new PagePrefetcher());
+		}
+	}
+
+	@Test
+	public void testNormalizePredicate() {
+
+		TinyPredicate nested = and(equal("sort", 1),
+				and(isNotNull("name"), not(not(like("name", "a%")))));
+		TinyPredicate flat = and(like("name", "b%"), equal("sort", 2), isNotNull("name"));
+
+		String jpql = new TinyQuery<>(entityManager, User.class).select().where(nested).toString();
+		String other = new TinyQuery<>(entityManager, User.class).select().where(flat).toString();
+		assertEquals(jpql, other);
+		assertEquals(-1, jpql.indexOf("(NOT "));
+
+		// equal predicates on the same column in an OR are folded into IN
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		jpql = query.select()
+		            .where(or(equal("name", "alice"), equal("name", "beth"), equal("name", null)))
+		            .toString();
+		assertEquals(-1, jpql.indexOf("WHERE"));
+
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.select().where(or(equal("name", "alice"), equal("sort", 3), equal("name", "beth")));
+		assertTrue(query.toString().contains("_this.name IN (:_this_name_0_0,:_this_name_0_1)"));
+		assertEquals(3, query.count());
+
+		// an ignored predicate only drops itself from an AND
+		query = new TinyQuery<>(entityManager, User.class, true);
+		assertEquals(2, query.select().where(and(equal("name", "ellen"), equal("sort", null)))
+		                     .count());
+	}
+
+	@Test
+	public void testJpqlCache() {
+
+		JpqlCache cache = TinyQuery.getJpqlCache();
+		long hits = cache.getHitCount();
+
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		long result = query.select().where(in("name", listOf("alice", "alice", "beth"))).count();
+		assertEquals(2, result);
+
+		// same shape, different values
+		query = new TinyQuery<>(entityManager, User.class, true);
+		result = query.select().where(in("name", listOf("alice", "carol", "carol"))).count();
+		assertEquals(2, result);
+		assertEquals(hits + 1, cache.getHitCount());
+
+		// count and list queries are cached separately
+		query = new TinyQuery<>(entityManager, User.class, true);
+		Page<User> page = query.select().where(in("name", listOf("beth", "daisy", "daisy")))
+		                       .page(1, 1).getPagedResult();
+		assertEquals(2, page.getTotal());
+		assertEquals(1, page.getDataSize());
+		assertEquals(hits + 2, cache.getHitCount());
+
+		// toString() neither uses the cache nor rebinds the parameters
+		long misses = cache.getMissCount();
+		query = new TinyQuery<>(entityManager, User.class, true);
+		query.select().where(in("name", listOf("beth", "daisy")),
+				exists(new TinyQuery<>(Book.class).select().where(equal("title", "Harry Porter"))));
+		String jpql = query.toString();
+		assertEquals(jpql, query.toString());
+		assertEquals(hits + 2, cache.getHitCount());
+		assertEquals(misses, cache.getMissCount());
+		assertEquals(2, query.count());
+	}
+
+	static final PreparedTinyQuery<User> FIND_BY_NAMES
+			= new TinyQuery<>(User.class).select()
+			                             .where(in("name", parameter("names")))
+			                             .and(greaterThanOrEqual("sort", 0))
+			                             .orderBy("sort", OrderType.ASC)
+			                             .prepare();
+
+	@Test
+	public void testPreparedQuery() {
+
+		List<User> result = FIND_BY_NAMES.with(entityManager)
+		                                 .param("names", listOf("alice", "carol"))
+		                                 .getResultList();
+		assertEquals(2, result.size());
+
+		Page<User> page = FIND_BY_NAMES.with(entityManager)
+		                               .param("names", listOf("beth", "ellen"))
+		                               .page(1, 2)
+		                               .getPagedResult();
+		assertEquals(3, page.getTotal());
+		assertEquals(2, page.getDataSize());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPreparedQueryMissingParameter() {
+
+		FIND_BY_NAMES.with(entityManager).count();
+	}
+
+	@Test
+	public void testPreparedQueryHavingParameter() {
+
+		PreparedTinyQuery<User> grouped = new TinyQuery<>(User.class)
+				.select("name", "count(*)")
+				.where(isNotNull("name"))
+				.groupBy("name")
+				.having(greaterThanOrEqual("count(*)", parameter("min")))
+				.prepare();
+		assertTrue(grouped.getParameterNames().contains("min"));
+		assertEquals(1, grouped.with(entityManager).param("min", 2L).getUntypedResultList().size());
+
+		PreparedTinyQuery<User> owners = new TinyQuery<>(User.class)
+				.select()
+				.where(exists(new TinyQuery<>(Book.class)
+						.select("user.id")
+						.where(equal("user.id", outer("id")))
+						.groupBy("user.id")
+						.having(greaterThanOrEqual("count(*)", parameter("books")))))
+				.prepare();
+		assertTrue(owners.getParameterNames().contains("books"));
+		assertEquals(1, owners.with(entityManager).param("books", 2L).getResultList().size());
+		try {
+			owners.with(entityManager).getResultList();
+			fail("missing parameter must be rejected");
+		} catch(IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("books"));
+		}
+	}
+
+	@Test
+	public void testPreparedQueryRegistered() {
+
+		PreparedTinyQuery<User> grouped = new TinyQuery<>(User.class)
+				.select("name", "count(*)")
+				.where(greaterThanOrEqual("sort", parameter("sort")))
+				.groupBy("name")
+				.prepare();
+		EntityManagerFactory factory = entityManager.getEntityManagerFactory();
+		grouped.register(factory);
+		assertTrue(grouped.isRegistered(factory));
+
+		// the row count and probe queries are registered alongside the query
+		assertNotNull(entityManager.createNamedQuery(grouped.getName() + "#rows"));
+		assertNotNull(entityManager.createNamedQuery(grouped.getName() + "#probe"));
+		assertEquals(2, grouped.with(entityManager).param("sort", 3).count());
+		assertTrue(grouped.with(entityManager).param("sort", 5).hasResult());
+		assertFalse(grouped.with(entityManager).param("sort", 6).hasResult());
+	}
+
+	@Test
+	public void testPreparedQueryFlushMode() {
+
+		PreparedTinyQuery<User> prepared
+				= new TinyQuery<>(User.class).select()
+				                             .where(equal("name", parameter("name")))
+				                             .flushMode(FlushModeType.COMMIT)
+				                             .fetchSize(50)
+				                             .prepare();
+		assertEquals(FlushModeType.COMMIT, prepared.getFlushMode());
+		assertEquals(50, prepared.getHints().get("org.hibernate.fetchSize"));
+
+		entityManager.getTransaction().begin();
+		try {
+			new TinyQuery<>(entityManager, User.class).select()
+			                                          .where(equal("name", "alice"))
+			                                          .getFirstResult().get().setName("fiona");
+
+			// the pending update is not flushed before a COMMIT mode query
+			assertEquals(0, prepared.with(entityManager).param("name", "fiona").count());
+			assertEquals(1, prepared.with(entityManager).param("name", "fiona")
+			                        .flushMode(FlushModeType.AUTO).count());
+		} finally {
+			entityManager.getTransaction().rollback();
+		}
+	}
+
 	@Test
 	public void testQuery() {
 
@@ -439,4 +1612,319 @@ public class TestTinyQuery {
 
 
 
+
+	@Test
+	public void testSelectIntoViewModel() {
+
+		entityManager.clear();
+		TinyQuery<UserView> query = new TinyQuery<>(entityManager, User.class, true)
+				.select(UserView.class);
+		List<UserView> result = query.where(greaterThan("sort", 0))
+		                             .orderBy("sort", OrderType.DESC)
+		                             .getResultList();
+		assertEquals(5, result.size());
+		assertEquals("ellen", result.get(0).getName());
+		assertEquals(5, result.get(0).getRank());
+		assertTrue(query.toString().startsWith("SELECT NEW " + UserView.class.getName()
+				+ "(_this.name,_this.sort)"));
+		assertEquals(0, entityManager.unwrap(Session.class).getStatistics().getEntityCount());
+
+		Page<UserView> page = new TinyQuery<>(entityManager, User.class, true)
+				.select(UserView.class)
+				.where(greaterThanOrEqual("sort", 0))
+				.orderBy("name", OrderType.ASC)
+				.page(2, 2)
+				.getPagedResult();
+		assertEquals(6, page.getTotal());
+		assertEquals(2, page.getDataSize());
+		assertEquals("carol", page.getData().get(0).getName());
+		assertEquals(2, page.getData().get(0).getRank());
+
+		KeysetPage<UserView> keysetPage = new TinyQuery<>(entityManager, User.class, true)
+				.select(UserView.class)
+				.where(greaterThanOrEqual("sort", 0))
+				.orderBy("sort", OrderType.ASC)
+				.getKeysetPage(3);
+		assertEquals(3, keysetPage.getDataSize());
+		assertEquals("daisy", new TinyQuery<>(entityManager, User.class, true)
+				.select(UserView.class)
+				.where(greaterThanOrEqual("sort", 0))
+				.orderBy("sort", OrderType.ASC)
+				.seekAfter(keysetPage.getNextCursor())
+				.getKeysetPage(3)
+				.getData().get(0).getName());
+
+		// the query of the entity is left unchanged
+		TinyQuery<User> users = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(greaterThanOrEqual("sort", 4)).orderBy("sort", OrderType.ASC);
+		List<UserView> views = users.select(UserView.class).getResultList();
+		assertEquals("ellen", views.get(0).getName());
+		assertEquals(Integer.valueOf(4), users.getResultList().get(0).getSort());
+
+		try {
+			new TinyQuery<>(entityManager, User.class).select(Mapper.class);
+			fail("view model without fields must be rejected");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRowSet() {
+
+		RowSet rows = new TinyQuery<>(entityManager, User.class, true)
+				.select("name", "sort")
+				.where(greaterThanOrEqual("sort", 3))
+				.orderBy("sort", OrderType.ASC)
+				.getRowSet("name");
+		assertEquals(listOf("name", "sort"), rows.getColumns());
+		assertEquals(3, rows.size());
+		assertEquals("daisy", rows.get(0).getString("name"));
+		assertEquals(Long.valueOf(3), rows.get(0).getLong("sort"));
+		assertEquals("daisy", rows.get(0).get(0));
+		assertEquals(5, rows.get(2).get("sort"));
+		assertTrue(rows.get(1).getValue("name") == rows.get(2).getValue("name"));
+		assertEquals("{name=ellen, sort=4}", rows.get(1).toString());
+
+		rows = new TinyQuery<>(entityManager, User.class, true)
+				.select("name")
+				.where(equal("sort", 0))
+				.getRowSet();
+		assertEquals("alice", rows.get(0).getString("name"));
+
+		// the given rows are not modified by the deduplication
+		String second = new String("ellen");
+		List<Object[]> given = new ArrayList<>();
+		given.add(new Object[]{ "ellen", 4 });
+		given.add(new Object[]{ second, 5 });
+		RowSet deduplicated = new RowSet(listOf("name", "sort"), given, "name");
+		assertTrue(given.get(1)[0] == second);
+		assertTrue(deduplicated.get(1).getValue("name") == deduplicated.get(0).getValue("name"));
+
+		try {
+			rows.get(0).getValue("sort");
+			fail("unknown column must be rejected");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new TinyQuery<>(entityManager, User.class).select().getRowSet();
+			fail("row set of entities must be rejected");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPrimitiveColumns() {
+
+		LongColumn sorts = new TinyQuery<>(entityManager, User.class, true)
+				.select()
+				.where(isNotNull("name"))
+				.orderBy("sort", OrderType.DESC)
+				.getLongColumn("sort");
+		assertEquals(6, sorts.size());
+		assertTrue(Arrays.equals(new long[]{ 5, 4, 3, 2, 1, 0 }, sorts.toArray()));
+		assertTrue(!sorts.hasNulls());
+
+		// books have no sort
+		DoubleColumn[] columns = new TinyQuery<>(entityManager, User.class, true)
+				.select()
+				.orderBy("id", OrderType.ASC)
+				.getDoubleColumns("sort", "id");
+		assertEquals(2, columns.length);
+		assertEquals(8, columns[0].size());
+		assertEquals(2, columns[0].getNullCount());
+		assertEquals(0.0, columns[0].get(columns[0].getNulls().nextSetBit(0)), 0);
+		assertTrue(!columns[1].hasNulls());
+		assertEquals("id", columns[1].getName());
+
+		LongColumn distinct = new TinyQuery<>(entityManager, Person.class, true)
+				.select()
+				.distinct()
+				.orderBy("id", OrderType.ASC)
+				.getLongColumn("id");
+		assertEquals(6, distinct.size());
+
+		try {
+			new TinyQuery<>(entityManager, User.class).select().getLongColumn("name");
+			fail("non numeric column must be rejected");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+		// aggregates are selected without the keyset columns
+		LongColumn sum = new TinyQuery<>(entityManager, User.class, true)
+				.select().where(isNotNull("name")).getLongColumn("sum(sort)");
+		assertTrue(Arrays.equals(new long[]{ 15 }, sum.toArray()));
+		DoubleColumn[] aggregates = new TinyQuery<>(entityManager, User.class, true)
+				.select().getDoubleColumns("avg(sort)", "count(*)");
+		assertEquals(2.5, aggregates[0].get(0), 0);
+		assertEquals(8.0, aggregates[1].get(0), 0);
+
+		try {
+			new TinyQuery<>(entityManager, User.class).select().where(isNotNull("name"))
+			                                          .groupBy("name").getLongColumn("avg(sort)");
+			fail("floating point column must be rejected");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testExport() throws IOException {
+
+		entityManager.getTransaction().begin();
+		entityManager.find(User.class, 1).setName("alice, \"the\" first");
+		entityManager.getTransaction().commit();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ExportResult result = new TinyQuery<>(entityManager, User.class, true)
+				.select("name", "sort")
+				.where(lessThan("sort", 2))
+				.orderBy("sort", OrderType.ASC)
+				.export(ExportFormat.CSV, Channels.newChannel(out), false);
+		assertEquals(2, result.getRows());
+		assertEquals("name,sort\r\n\"alice, \"\"the\"\" first\",0\r\nbeth,1\r\n",
+				out.toString("UTF-8"));
+		assertEquals(out.size(), result.getBytes());
+
+		out = new ByteArrayOutputStream();
+		WritableByteChannel channel = Channels.newChannel(out);
+		new TinyQuery<>(entityManager, User.class, true)
+				.select("name", "sort")
+				.where(lessThan("sort", 2))
+				.orderBy("sort", OrderType.ASC)
+				.export(ExportFormat.NDJSON, channel, true);
+		// the channel is left open for the caller
+		assertTrue(channel.isOpen());
+		ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+		try(GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+			byte[] bytes = new byte[1024];
+			for(int n; (n = in.read(bytes)) != -1; ) {
+				unzipped.write(bytes, 0, n);
+			}
+		}
+		assertEquals("{\"name\":\"alice, \\\"the\\\" first\",\"sort\":0}\n"
+				+ "{\"name\":\"beth\",\"sort\":1}\n", unzipped.toString("UTF-8"));
+
+		out = new ByteArrayOutputStream();
+		result = new TinyQuery<>(entityManager, Book.class, true)
+				.select()
+				.where(isNotNull("title"))
+				.export(ExportFormat.NDJSON, Channels.newChannel(out), false);
+		assertEquals(2, result.getRows());
+		String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0].contains("\"title\":"));
+
+		try {
+			new TinyQuery<>(entityManager, User.class)
+					.select()
+					.export(ExportFormat.CSV, Channels.newChannel(out), false);
+			fail("entities must not be exported as CSV");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testAggregates() {
+
+		TinyQuery<User> query = new TinyQuery<>(entityManager, User.class, true);
+		query.select().where(greaterThan("sort", 1)).orderBy("name", OrderType.ASC).page(1, 2);
+		assertEquals(14L, query.sum("sort"));
+		assertEquals(3.5, query.avg("sort"), 0.001);
+		assertEquals(Integer.valueOf(2), query.<Integer>min("sort"));
+		assertEquals("ellen", query.<String>max("name"));
+		assertEquals(3, query.countDistinct("name"));
+		// the query is left as it was
+		assertEquals(2, query.getResultList().size());
+
+		assertEquals(null, new TinyQuery<>(entityManager, User.class, true)
+				.select().where(greaterThan("sort", 10)).sum("sort"));
+
+		Map<String, Long> sums = new TinyQuery<>(entityManager, User.class, true)
+				.select()
+				.where(isNotNull("name"))
+				.having(greaterThan("sum(sort)", 1L))
+				.orderBy("sum(sort)", OrderType.DESC)
+				.aggregateBy("name", Aggregate.SUM, "sort");
+		assertEquals(listOf("ellen", "daisy", "carol"), new ArrayList<>(sums.keySet()));
+		assertEquals(Long.valueOf(9), sums.get("ellen"));
+
+		// the rows of a fetched collection are not aggregated
+		Map<String, Long> counts = new TinyQuery<>(entityManager, User.class, true)
+				.select()
+				.leftJoinFetch("books")
+				.where(equal("name", "alice"))
+				.aggregateBy("name", Aggregate.COUNT, "*");
+		assertEquals(Long.valueOf(1), counts.get("alice"));
+
+		List<Object[]> rows = new TinyQuery<>(entityManager, Book.class, true)
+				.select("user.name", "count(*)", "max(title)")
+				.where(isNotNull("title"))
+				.groupBy("user.name")
+				.having(greaterThanOrEqual("count(*)", 2L))
+				.getUntypedResultList();
+		assertEquals(1, rows.size());
+		assertEquals("alice", rows.get(0)[0]);
+		assertEquals(2L, rows.get(0)[1]);
+
+		try {
+			new TinyQuery<>(entityManager, User.class).select().groupBy("name").sum("sort");
+			fail("grouped query must be rejected");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFacets() throws Exception {
+
+		CountCache cache = TinyQuery.getCountCache();
+		cache.clear();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Map<String, LinkedHashMap<Object, Long>> facets =
+					new TinyQuery<>(entityManager, User.class, true)
+							.select()
+							.where(isNotNull("name"))
+							.orderBy("sort", OrderType.ASC)
+							.page(2, 2)
+							.parallel(executor)
+							.cacheCount()
+							.facets("name", "sort");
+			assertEquals(listOf("name", "sort"), new ArrayList<>(facets.keySet()));
+			LinkedHashMap<Object, Long> names = facets.get("name");
+			assertEquals(listOf("ellen", "alice", "beth", "carol", "daisy"),
+					new ArrayList<>(names.keySet()));
+			assertEquals(Long.valueOf(2), names.get("ellen"));
+			assertEquals(6, facets.get("sort").size());
+			assertEquals(2, cache.size());
+
+			// the same predicates are served from the cache
+			long hits = cache.getHitCount();
+			facets = new TinyQuery<>(entityManager, User.class, true)
+					.select().where(isNotNull("name")).cacheCount().facets("name");
+			assertEquals(names, facets.get("name"));
+			assertEquals(hits + 1, cache.getHitCount());
+
+			// other values are counted
+			facets = new TinyQuery<>(entityManager, User.class, true)
+					.select().where(greaterThan("sort", 3)).cacheCount().facets("name");
+			assertEquals(1, facets.get("name").size());
+			assertEquals(Long.valueOf(2), facets.get("name").get("ellen"));
+
+			// modifying the entity class evicts the counts
+			entityManager.getTransaction().begin();
+			new TinyQuery<>(entityManager, User.class, true)
+					.update().set("name", "ellen").where(equal("name", "daisy")).execute();
+			entityManager.getTransaction().commit();
+			facets = new TinyQuery<>(entityManager, User.class, true)
+					.select().where(isNotNull("name")).cacheCount().facets("name");
+			assertEquals(Long.valueOf(3), facets.get("name").get("ellen"));
+		} finally {
+			executor.shutdown();
+		}
+	}
 }
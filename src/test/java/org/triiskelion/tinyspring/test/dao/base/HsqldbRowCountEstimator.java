@@ -0,0 +1,33 @@
+package org.triiskelion.tinyspring.test.dao.base;
+
+import org.triiskelion.tinyspring.dao.RowCountEstimator;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Table;
+import java.util.List;
+
+/**
+ * Estimates the rows of a table from the cardinality HSQLDB keeps in
+ * <code>INFORMATION_SCHEMA.SYSTEM_TABLESTATS</code>.
+ *
+ * @author Sebastian MA
+ */
+public class HsqldbRowCountEstimator implements RowCountEstimator {
+
+	@Override
+	public Long estimate(EntityManager entityManager, Class<?> entityClass) {
+
+		Table table = entityClass.getAnnotation(Table.class);
+		String tableName = table != null && !table.name().isEmpty()
+		                   ? table.name()
+		                   : entityClass.getSimpleName();
+		List result = entityManager.createNativeQuery(
+				"SELECT CARDINALITY FROM INFORMATION_SCHEMA.SYSTEM_TABLESTATS "
+						+ "WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME = ?1")
+		                           .setParameter(1, tableName.toUpperCase())
+		                           .getResultList();
+		return result.isEmpty() || result.get(0) == null
+		       ? null
+		       : ((Number) result.get(0)).longValue();
+	}
+}
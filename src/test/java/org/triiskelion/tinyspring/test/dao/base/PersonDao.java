@@ -1,16 +1,35 @@
 package org.triiskelion.tinyspring.test.dao.base;
 
 import org.triiskelion.tinyspring.dao.AbstractDao;
+import org.triiskelion.tinyspring.dao.PreparedTinyQuery;
+import org.triiskelion.tinyspring.dao.TinyQuery;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.triiskelion.tinyspring.dao.TinyPredicate.equal;
+import static org.triiskelion.tinyspring.dao.TinyPredicate.parameter;
 
 /**
  * @author Sebastian MA
  */
 public class PersonDao extends AbstractDao<Person> {
 
+	public static final PreparedTinyQuery<Person> FIND_BY_NAME
+			= new TinyQuery<>(Person.class).select()
+			                               .where(equal("name", parameter("name")))
+			                               .prepare("Person.findByName");
+
 	@Override
 	protected Class<Person> getEntityClass() {
 
 		return Person.class;
 	}
 
+	@Override
+	protected List<PreparedTinyQuery<Person>> getPreparedQueries() {
+
+		return Collections.singletonList(FIND_BY_NAME);
+	}
+
 }
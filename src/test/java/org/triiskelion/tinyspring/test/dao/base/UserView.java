@@ -0,0 +1,31 @@
+package org.triiskelion.tinyspring.test.dao.base;
+
+import org.triiskelion.tinyspring.dao.Projected;
+
+/**
+ * @author Sebastian MA
+ */
+public class UserView {
+
+	@Projected
+	private final String name;
+
+	@Projected("sort")
+	private final int rank;
+
+	public UserView(String name, int rank) {
+
+		this.name = name;
+		this.rank = rank;
+	}
+
+	public String getName() {
+
+		return name;
+	}
+
+	public int getRank() {
+
+		return rank;
+	}
+}